@@ -0,0 +1,7 @@
+#!/bin/sh
+# Serves PJS-DB to the servers started with -Dpjs.db.backend=derby-client.
+DBDIR=${DBDIR-$HOME/pjs/LibraryManager/PJS-DB}
+DERBY_HOME=${DERBY_HOME-$HOME/pjs/LibraryManager/derby}
+DB_PORT=${DB_PORT-1527}
+
+java -server -Dderby.system.home=${DBDIR} -jar ${DERBY_HOME}/lib/derbyrun.jar server start -h 0.0.0.0 -p ${DB_PORT}
@@ -2,13 +2,24 @@
 DBDIR=${DBDIR-$HOME/pjs/LibraryManager/PJS-DB}
 WARFILE=${WARFILE-$HOME/pjs/LibraryManager/system/LibraryManager.war}
 JETTY_RUNNER=${JETTY_RUNNER-$(dirname $0)/jetty-runner-8.1.8.v20121106.jar}
+PORT=${PORT-8080}
+# To share one DB among several servers, run start-db-server.sh on the DB
+# machine and start each server with e.g.
+#   PJS_OPTS="-Dpjs.db.backend=derby-client -Dpjs.db.host=dbhost -Dpjs.node.id=desk1"
+# (derbyclient.jar must be in the war's WEB-INF/lib).  Each server then
+# writes its journal to ${DBDIR}/journal/<pjs.node.id>, so give every
+# server on one machine its own pjs.node.id.
+# To keep a warm standby, run "DBUtil replication-standby" in STANDBY_DIR
+# and start the server with e.g.
+#   PJS_OPTS="-Dpjs.replication.host=localhost -Dpjs.replication.standbyHome=STANDBY_DIR"
+PJS_OPTS=${PJS_OPTS-}
 
-if /usr/bin/lsof -i:8080 > /dev/null 2>&1; then
+if /usr/bin/lsof -i:${PORT} > /dev/null 2>&1; then
     /usr/bin/xmessage "Server already running...."
     exit 1
 fi
 
-java -server -Xmx512M -Dderby.system.home=${DBDIR} -jar ${JETTY_RUNNER} ${WARFILE} 
+java -server -Xmx512M -Dderby.system.home=${DBDIR} ${PJS_OPTS} -jar ${JETTY_RUNNER} --port ${PORT} ${WARFILE}
 
 #-Dkakasi.kanwaDictionary=${APPDIR}/kanwadict
 
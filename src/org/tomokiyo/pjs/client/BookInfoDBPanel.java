@@ -263,23 +263,18 @@ public class BookInfoDBPanel extends Composite implements LibraryManager.Abstrac
         view.reset();
         return;
       }
-      final int offset = model.getOffsetForCurrentPage();
-      // HasMorePageをセットするために一つ余分にリクエストする。
-      final int max = BookSearchResultPagingModel.NUM_ELEMENT_PER_PAGE + 1;
-      RPCServices.getDBLookupService().searchBooks(
-        query, offset, max,
-        new AsyncCallback<List<BookRecord>>() {
-          public void onSuccess(final List<BookRecord> books) {
-            if (books == null)  // Bug
+      RPCServices.getDBLookupService().searchBooksAfter(
+        query, model.getTokenForCurrentPage(),
+        BookSearchResultPagingModel.NUM_ELEMENT_PER_PAGE,
+        new AsyncCallback<ResultPage<BookRecord>>() {
+          public void onSuccess(final ResultPage<BookRecord> page) {
+            if (page == null)  // Bug
               throw new IllegalStateException("null BookRecord result");
+            final List<BookRecord> books = page.getRecords();
             if (books.isEmpty()) {
               view.displayNoMatchFor(query);
             } else {
-              final boolean hasMorePage = (books.size() == max);
-              model.setHasMorePage(hasMorePage);
-              if (hasMorePage) {
-                books.remove(books.size()-1);
-              }
+              model.setNextPageToken(page.getContinuationToken());
               // 貸出中かどうかを調べる。
               final HashSet<String> bookIds = new HashSet<String>();
               for (BookRecord r: books)
@@ -313,10 +308,13 @@ public class BookInfoDBPanel extends Composite implements LibraryManager.Abstrac
     private String query;
 
     // 現在のページ(0ページから)。
-    // NUM_ELEMENT_PER_PAGE * currentPage が先頭の要素のINDEX。
     private int currentPage = 0;
-    
-    private boolean hasMorePage = false;
+
+    // 各ページを取得するためのトークン (0ページ目はnull)。
+    private final List<String> pageTokens = new ArrayList<String>();
+
+    // 次のページのトークン (nullなら最後のページ)。
+    private String nextPageToken = null;
 
     // BookRecord list.
     private final List<BookRecord> recordList = new ArrayList<BookRecord>();
@@ -324,22 +322,30 @@ public class BookInfoDBPanel extends Composite implements LibraryManager.Abstrac
     public void setQuery(String q) {
       query = q;
       currentPage = 0;
+      pageTokens.clear();
+      pageTokens.add(null);
+      nextPageToken = null;
     }
 
     public String getQuery() { return query; }
 
-    public void setHasMorePage(boolean v) { hasMorePage = v; }
+    public void setNextPageToken(String token) { nextPageToken = token; }
 
-    public boolean getHasMorePage() { return hasMorePage; }
+    public boolean getHasMorePage() { return nextPageToken != null; }
     
-    public void nextPage() { if (hasMorePage) ++currentPage; }
+    public void nextPage() {
+      if (nextPageToken == null) return;
+      ++currentPage;
+      pageTokens.subList(currentPage, pageTokens.size()).clear();
+      pageTokens.add(nextPageToken);
+    }
 
     public void prevPage() { if (currentPage > 0) --currentPage; }
     
     public int getCurrentPage() { return currentPage; }
 
-    public int getOffsetForCurrentPage() {
-      return NUM_ELEMENT_PER_PAGE * currentPage;
+    public String getTokenForCurrentPage() {
+      return pageTokens.get(currentPage);
     }
   }  // Model
 }
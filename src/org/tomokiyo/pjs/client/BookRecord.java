@@ -49,6 +49,9 @@ public class BookRecord implements IsSerializable, Comparable<BookRecord> {
   // c.f. http://code.google.com/p/google-web-toolkit/issues/detail?id=3028
   private String flagValues = "";
 
+  // 行のバージョン。更新の競合を検出するため、編集時にそのまま送り返す。
+  private int version = 0;
+
   // private String series;
   // private int public_book_id; // 全国書誌番号      
   // private String language;
@@ -226,6 +229,14 @@ public class BookRecord implements IsSerializable, Comparable<BookRecord> {
     this.discardDate = discardDate;
   }
 
+  public final int getVersion() {
+    return version;
+  }
+
+  public final void setVersion(final int version) {
+    this.version = version;
+  }
+
   /**
    * Get the <code>comments</code> value.
    *
@@ -213,9 +213,14 @@ public final class BookRecordView extends Composite {
       RPCServices.getDBLookupService().updateRecord(record, new AsyncCallback<Boolean>() {
             public void onSuccess(Boolean updated) {
               if (!updated) throw new IllegalStateException();
+              // サーバ側と同じバージョンにしておく (続けて編集できるように)。
+              record.setVersion(record.getVersion() + 1);
             }
             public void onFailure(Throwable ex) {
-              com.google.gwt.user.client.Window.alert(ex.toString());
+              if (ex instanceof ConcurrentUpdateException)
+                com.google.gwt.user.client.Window.alert(ex.getMessage());
+              else
+                com.google.gwt.user.client.Window.alert(ex.toString());
             }
           });
     }
@@ -116,14 +116,7 @@ public class BookRegisterPanel extends Composite implements LibraryManager.Abstr
           // Warn: use of values() but okay for on-the-fly access.
           final String categoryName = Category.values()[idx-1].name();
           logger.fine(categoryName);
-          RPCServices.getDBLookupService().getNextBookId(categoryName, new AsyncCallback<String>() {
-              public void onSuccess(String result) {
-                codeIdLabel.setText(result);
-              }
-              public void onFailure(Throwable ex) {
-                com.google.gwt.user.client.Window.alert(ex.toString());
-              }
-            });
+          showNextBookId(categoryName);
         }
       });
 
@@ -290,6 +283,21 @@ public class BookRegisterPanel extends Composite implements LibraryManager.Abstr
       });
   }
 
+  /**
+   * Shows the next book ID of the category.  (The number is taken only
+   * when the book is registered.)
+   */
+  private void showNextBookId(String categoryName) {
+    RPCServices.getDBLookupService().getNextBookId(categoryName, new AsyncCallback<String>() {
+        public void onSuccess(String result) {
+          codeIdLabel.setText(result);
+        }
+        public void onFailure(Throwable ex) {
+          com.google.gwt.user.client.Window.alert(ex.toString());
+        }
+      });
+  }
+
   public void onTabSelected() {
     isbnInputBox.setFocus(true);
   }  
@@ -333,8 +341,15 @@ public class BookRegisterPanel extends Composite implements LibraryManager.Abstr
     bookRecord.setISBN(isbnInputBox.getText());
     bookRecord.setImageURL(image.getUrl());
     bookRecord.setRegisterDate(new java.util.Date());
+    final String bookId = bookRecord.getId();
     RPCServices.getDBLookupService().registerNewBook(bookRecord, new AsyncCallback<Boolean>() {
         public void onSuccess(Boolean result) {
+          if (!result) {
+            // 他の端末で先に登録された。新しい番号にして登録し直してもらう。
+            com.google.gwt.user.client.Window.alert("図書番号" + bookId + "は既に登録されています。新しい番号で登録し直してください。");
+            showNextBookId(bookId.substring(0, 1));
+            return;
+          }
           reset();
         }
         public void onFailure(Throwable ex) {
@@ -37,6 +37,9 @@ public final class BookRentalHistoryRecord implements IsSerializable {
   // 返却日 (null は未返却をあらわす)。
   private Date returnedDate;
 
+  // 返却期限
+  private Date dueDate;
+
   // Default constructor to ensure RPC serializability.
   public BookRentalHistoryRecord() {}
 
@@ -96,6 +99,14 @@ public final class BookRentalHistoryRecord implements IsSerializable {
     return returnedDate;
   }
 
+  public Date getDueDate() {
+    return dueDate;
+  }
+
+  public void setDueDate(Date dueDate) {
+    this.dueDate = dueDate;
+  }
+
   public String toString() {
     final StringBuilder sbuf = new StringBuilder();
     sbuf.append("bookID: "+bookID);
@@ -107,6 +118,7 @@ public final class BookRentalHistoryRecord implements IsSerializable {
     sbuf.append(", personKanaName: "+personKanaName);
     sbuf.append(", checkoutDate: "+checkoutDate);
     sbuf.append(", returnedDate:"+returnedDate);
+    sbuf.append(", dueDate:"+dueDate);
     return sbuf.toString();
   }
 
@@ -118,6 +130,7 @@ public final class BookRentalHistoryRecord implements IsSerializable {
     FIVE_WEEKS_AGO("5週間以上貸出中"),
     THREE_WEEKS_AGO("3週間以上貸出中"),
     TWO_WEEKS_AGO  ("2週間以上貸出中"),
+    OVERDUE        ("返却期限切れ"),
     EXCEPT_TODAY   ("本日貸出分を除く"),
     ONLY_TODAY     ("本日貸出分のみ"),
     EVERYTHING     ("すべて表示");
@@ -0,0 +1,19 @@
+package org.tomokiyo.pjs.client;
+
+import com.google.gwt.user.client.rpc.IsSerializable;
+
+/**
+ * Thrown when a record has been updated by someone else since it
+ * was read.
+ * This class is meant to be serialized in RPC calls.
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public class ConcurrentUpdateException extends Exception implements IsSerializable {
+  // Default constructor to ensure RPC serializability.
+  public ConcurrentUpdateException() {}
+
+  public ConcurrentUpdateException(String message) {
+    super(message);
+  }
+}
@@ -46,11 +46,23 @@ public interface DBLookupService extends RemoteService {
    */
   public java.util.List<BookRecord> searchBooks(String key, int offset, int max);
 
+  /**
+   * One Box 蔵書検索。continuationTokenの次からmax件を返す。
+   * (最初のページはcontinuationTokenにnullを指定する)
+   */
+  public ResultPage<BookRecord> searchBooksAfter(String key, String continuationToken, int max);
+
   /**
    * 未返却の書籍情報の取得。
    */
   public java.util.List<BookRentalHistoryRecord> getUnreturnedBookInfo(BookRentalHistoryRecord.Constraints constraints, int offset, int max);
 
+  /**
+   * 未返却の書籍情報の取得。continuationTokenの次からmax件を返す。
+   * (最初のページはcontinuationTokenにnullを指定する)
+   */
+  public ResultPage<BookRentalHistoryRecord> getUnreturnedBookInfoAfter(BookRentalHistoryRecord.Constraints constraints, String continuationToken, int max);
+
   /**
    * 特定ユーザの貸出し履歴/状況の取得。
    */
@@ -66,13 +78,25 @@ public interface DBLookupService extends RemoteService {
    */
   public boolean recordRentalEvent(String bookId, int borrowerId);
 
+  /**
+   * 複数図書の貸出イベント。一つのトランザクションで記録する。
+   * 各図書について貸出できたかどうかを同じ順序で返す。既に貸し出されていた場合にはfalse。
+   */
+  public java.util.List<Boolean> recordRentalEvents(java.util.List<String> bookIds, int borrowerId);
+
   /**
    * 図書の返却イベント。返却された図書の情報詳細を返す。貸し出されていない場合にはnullを返す。
    */
   public BookRentalHistoryRecord recordReturnEvent(String bookId);
 
   /**
-   * 対象カテゴリの次のIDを返す。(例 "A"->"A078")
+   * 複数図書の返却イベント。返却された図書の情報詳細を同じ順序で返す。
+   * 貸し出されていない図書に対応する要素はnull。
+   */
+  public java.util.List<BookRentalHistoryRecord> recordReturnEvents(java.util.List<String> bookIds);
+
+  /**
+   * 対象カテゴリの次のIDを返す。(例 "A"->"A078") 番号は登録するまで消費しない。
    */
   public String getNextBookId(String category);
   
@@ -84,10 +108,12 @@ public interface DBLookupService extends RemoteService {
   /**
    * Update the book record information.  The database should
    * already contain the record for the book ID.  Return true
-   * if update happened.  If the information is identical, for example,
-   * false is returned.
+   * if update happened.  The version of the record is incremented.
+   *
+   * @throws ConcurrentUpdateException if the record has been updated
+   * by someone else since it was read (i.e. the version differs).
    */
-  public boolean updateRecord(BookRecord record);
+  public boolean updateRecord(BookRecord record) throws ConcurrentUpdateException;
 
 
   /**
@@ -96,8 +122,11 @@ public interface DBLookupService extends RemoteService {
    * Also family ID could be -1, in that case a new family id is
    * created and assigned.  The return value is a PersonRecord
    * with all ID fields are filled.
+   *
+   * @throws ConcurrentUpdateException if the record has been updated
+   * by someone else since it was read (i.e. the version differs).
    */
-  public PersonRecord updateRecord(PersonRecord record);
+  public PersonRecord updateRecord(PersonRecord record) throws ConcurrentUpdateException;
 
   /**
    * Delete a user.
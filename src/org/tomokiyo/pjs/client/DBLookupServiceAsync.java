@@ -14,16 +14,24 @@ public interface DBLookupServiceAsync {
 
   public void searchBooks(String key, int offset, int max, AsyncCallback callback);
 
+  public void searchBooksAfter(String key, String continuationToken, int max, AsyncCallback callback);
+
   public void getUnreturnedBookInfo(BookRentalHistoryRecord.Constraints constraints, int offset, int max, AsyncCallback callback);
 
+  public void getUnreturnedBookInfoAfter(BookRentalHistoryRecord.Constraints constraints, String continuationToken, int max, AsyncCallback callback);
+
   public void getRentalHistoryForUsers(int[] userIds, boolean unreturnedOnly, AsyncCallback callback);
 
   public void getRentalHistoryForBooks(java.util.Set<String> bookIds, boolean unreturnedOnly, AsyncCallback callback);
 
   public void recordRentalEvent(String bookId, int borrowerId, AsyncCallback callback);
 
+  public void recordRentalEvents(java.util.List<String> bookIds, int borrowerId, AsyncCallback callback);
+
   public void recordReturnEvent(String bookId, AsyncCallback callback);
 
+  public void recordReturnEvents(java.util.List<String> bookIds, AsyncCallback callback);
+
   public void getNextBookId(String category, AsyncCallback callback);
 
   public void registerNewBook(BookRecord record, AsyncCallback callback);
@@ -2,8 +2,11 @@ package org.tomokiyo.pjs.client;
 
 import com.google.gwt.user.client.ui.*;
 import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.user.client.Timer;
 import com.google.gwt.user.client.rpc.AsyncCallback;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 /**
  * Describe class <code>HenkyakuPanel</code> here.
@@ -24,6 +27,22 @@ public class HenkyakuPanel extends Composite implements LibraryManager.AbstractT
   // The table to display the retrieved list of records.
   private final SimpleTable table = new SimpleTable(new String[] { "貸出者番号", "学年", "貸出者氏名", "図書番号", "題名", "貸出日"});
 
+  // 連続返却モード: 読み取った図書番号をためておき、まとめて返却する。
+  private final CheckBox rapidReturnMode = new CheckBox("連続返却モード");
+
+  // まとめて返却する冊数と、最後の読み取りから返却するまでの時間(ms)。
+  static private final int FLUSH_SIZE = 20;
+  static private final int FLUSH_DELAY_MILLIS = 2000;
+
+  // 返却待ちの図書番号
+  private final ArrayList<String> pendingBookIds = new ArrayList<String>();
+
+  private final Timer flushTimer = new Timer() {
+      public void run() {
+        flushPendingReturns();
+      }
+    };
+
 
   public HenkyakuPanel() {
     final VerticalPanel contentPanel = new VerticalPanel();
@@ -38,10 +57,18 @@ public class HenkyakuPanel extends Composite implements LibraryManager.AbstractT
     // contentPanel.setHeight("100%");
     contentPanel.add(topLabel);
     contentPanel.add(inputBox);
+    contentPanel.add(rapidReturnMode);
     contentPanel.add(table);
     contentPanel.setCellHeight(table, "100%");
     contentPanel.setSpacing(5);
     inputBox.addStyleName(Resources.INSTANCE.css().imeDisabled());
+    rapidReturnMode.addClickListener(new ClickListener() {
+        public void onClick(Widget sender) {
+          if (!rapidReturnMode.isChecked())
+            flushPendingReturns();
+          inputBox.setFocus(true);
+        }
+      });
     inputBox.addChangeListener(new ChangeListener() {
         public void onChange(Widget sender) {
           final String barCode = ClientStringUtil.normalize(inputBox.getText());
@@ -51,6 +78,14 @@ public class HenkyakuPanel extends Composite implements LibraryManager.AbstractT
           // TODO: check more validity of the barCode format.
           if (ClientStringUtil.isBookId(barCode)) {
             // this is a book ID
+            if (rapidReturnMode.isChecked()) {
+              pendingBookIds.add(barCode);
+              if (pendingBookIds.size() >= FLUSH_SIZE)
+                flushPendingReturns();
+              else
+                flushTimer.schedule(FLUSH_DELAY_MILLIS);
+              return;
+            }
             RPCServices.getDBLookupService().recordReturnEvent(barCode, new AsyncCallback<BookRentalHistoryRecord>() {
                   public void onSuccess(BookRentalHistoryRecord record) {
                     if (record == null) {
@@ -60,15 +95,7 @@ public class HenkyakuPanel extends Composite implements LibraryManager.AbstractT
                     }
                     // 表示する。
                     SoundUtil.beepOK();
-                    logger.fine("Record: " + record.toString());
-                    table.insertRow(new String[] {
-                          UserInfoDBPanel.formatPersonId(record.getPersonID()),
-                          record.getPersonType().getDisplayName(),
-                          record.getPersonName(),
-                          record.getBookID(),
-                          record.getBookTitle(),
-                          record.getCheckoutDate().toString()},
-                        1);
+                    showReturnedRecord(record);
                   }
                   public void onFailure(Throwable ex) {
                     new SimpleDialog("Failure: "+ex.toString(), inputBox).show();
@@ -81,6 +108,49 @@ public class HenkyakuPanel extends Composite implements LibraryManager.AbstractT
         }
       });
   }
+  private final void showReturnedRecord(BookRentalHistoryRecord record) {
+    logger.fine("Record: " + record.toString());
+    table.insertRow(new String[] {
+          UserInfoDBPanel.formatPersonId(record.getPersonID()),
+          record.getPersonType().getDisplayName(),
+          record.getPersonName(),
+          record.getBookID(),
+          record.getBookTitle(),
+          record.getCheckoutDate().toString()},
+        1);
+  }
+
+  /**
+   * 返却待ちの図書をまとめて返却する。
+   */
+  private final void flushPendingReturns() {
+    flushTimer.cancel();
+    if (pendingBookIds.isEmpty())
+      return;
+    final ArrayList<String> bookIds = new ArrayList<String>(pendingBookIds);
+    pendingBookIds.clear();
+    RPCServices.getDBLookupService().recordReturnEvents(bookIds, new AsyncCallback<List<BookRentalHistoryRecord>>() {
+        public void onSuccess(List<BookRentalHistoryRecord> records) {
+          final ArrayList<String> notCheckedOut = new ArrayList<String>();
+          for (int i = 0; i < records.size(); i++) {
+            if (records.get(i) == null)
+              notCheckedOut.add(bookIds.get(i));
+            else
+              showReturnedRecord(records.get(i));
+          }
+          if (notCheckedOut.isEmpty()) {
+            SoundUtil.beepOK();
+          } else {
+            SoundUtil.beepNG();
+            com.google.gwt.user.client.Window.alert(notCheckedOut + "は貸し出しの記録がありません。");
+          }
+        }
+        public void onFailure(Throwable ex) {
+          new SimpleDialog("Failure: "+ex.toString()+" "+bookIds, inputBox).show();
+        }
+      });
+  }
+
   // implements AbstractTabComponent
   public void onTabSelected() {
     Scheduler.get().scheduleDeferred(new Scheduler.ScheduledCommand() {
@@ -1,7 +1,6 @@
 package org.tomokiyo.pjs.client;
 
 import com.google.gwt.core.client.Scheduler;
-import com.google.gwt.user.client.Command;
 import com.google.gwt.user.client.rpc.AsyncCallback;
 import com.google.gwt.user.client.ui.*;
 
@@ -156,10 +155,15 @@ public class KashidashiPanel extends Composite implements LibraryManager.Abstrac
       com.google.gwt.user.client.Window.alert("図書情報が空です。");
       return;
     }
-    // Create Command to notify a set of already-checked books for the RPC calls.
-    final HashSet<String> alreadyCheckedBookIds = new HashSet<String>();
-    final CountDownCommandExecuter barrier = new CountDownCommandExecuter(bookRecordList.size(), new Command() {
-        public void execute() {
+    // すべての図書を一度のRPCで貸し出す。
+    final ArrayList<String> bookIds = new ArrayList<String>();
+    for (BookRecord bookRecord: bookRecordList)
+      bookIds.add(bookRecord.getId());
+    RPCServices.getDBLookupService().recordRentalEvents(bookIds, personInfo.getRecord().getId(), new AsyncCallback<List<Boolean>>() {
+        public void onSuccess(List<Boolean> results) {
+          final ArrayList<String> alreadyCheckedBookIds = new ArrayList<String>();
+          for (int i = 0; i < results.size(); i++)
+            if (!results.get(i)) alreadyCheckedBookIds.add(bookIds.get(i));
           if (alreadyCheckedBookIds.isEmpty()) {
             SoundUtil.beepOK();
           } else {
@@ -167,21 +171,11 @@ public class KashidashiPanel extends Composite implements LibraryManager.Abstrac
             com.google.gwt.user.client.Window.alert(alreadyCheckedBookIds + "は既に貸出中となっています。");
           }
         }
+        public void onFailure(Throwable ex) {
+          SoundUtil.beepNG();
+          com.google.gwt.user.client.Window.alert("Failure: "+ex.toString());
+        }
       });
-    for (final BookRecord bookRecord: bookRecordList) {
-      RPCServices.getDBLookupService().recordRentalEvent(bookRecord.getId(), personInfo.getRecord().getId(), new AsyncCallback<Boolean>() {
-          public void onSuccess(Boolean ok) {
-            // KOKO
-            if (!ok) alreadyCheckedBookIds.add(bookRecord.getId());
-            barrier.countDown();
-          }
-          public void onFailure(Throwable ex) {
-            SoundUtil.beepNG();
-            com.google.gwt.user.client.Window.alert("Failure: "+ex.toString());
-            barrier.countDown();
-          }
-        });
-    }
     reset();
   }
 
@@ -49,6 +49,11 @@ public class PersonRecord implements IsSerializable {
    */
   private Date deletionDate;
 
+  /**
+   * 行のバージョン。更新の競合を検出するため、編集時にそのまま送り返す。
+   */
+  private int version = 0;
+
   public PersonRecord() {
   }
 
@@ -142,6 +147,14 @@ public class PersonRecord implements IsSerializable {
     deletionDate = date;
   }
 
+  public final int getVersion() {
+    return version;
+  }
+
+  public final void setVersion(final int version) {
+    this.version = version;
+  }
+
   /**
    * Get a string representation of this object.
    */
@@ -0,0 +1,43 @@
+package org.tomokiyo.pjs.client;
+
+import com.google.gwt.user.client.rpc.IsSerializable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One page of a result list with the token to fetch the next page.
+ * This class is meant to be serialized in RPC calls.
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public final class ResultPage<T> implements IsSerializable {
+  private ArrayList<T> records;
+
+  // 次のページを取得するためのトークン (null なら最後のページ)。
+  private String continuationToken;
+
+  // Default constructor to ensure RPC serializability.
+  public ResultPage() {}
+
+  public ResultPage(ArrayList<T> records, String continuationToken) {
+    this.records = records;
+    this.continuationToken = continuationToken;
+  }
+
+  public List<T> getRecords() {
+    return records;
+  }
+
+  /**
+   * Returns the opaque token to pass to get the next page, or null if
+   * this is the last page.
+   */
+  public String getContinuationToken() {
+    return continuationToken;
+  }
+
+  public boolean hasMorePage() {
+    return continuationToken != null;
+  }
+} // ResultPage
@@ -6,6 +6,7 @@ import com.google.gwt.user.client.rpc.AsyncCallback;
 import com.google.gwt.user.client.ui.*;
 import com.google.gwt.user.client.Window;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -16,7 +17,7 @@ import java.util.List;
 public class UnreturnedBookListPanel extends Composite implements LibraryManager.AbstractTabComponent {
   // The table to display the retrieved list of records.
   private SimpleTable table = new SimpleTable(new String[] {
-      "貸出者番号", "学年", "貸出者氏名", "図書番号", "題名", "貸出日"
+      "貸出者番号", "学年", "貸出者氏名", "図書番号", "題名", "貸出日", "返却期限"
     });
   private final OptionSelector optionSelector;
   private final HyperlinkButton printButton;
@@ -128,7 +129,8 @@ public class UnreturnedBookListPanel extends Composite implements LibraryManager
           r.getPersonName(),
           r.getBookID(),
           r.getBookTitle(),
-          r.getCheckoutDate().toString() });
+          r.getCheckoutDate().toString(),
+          (r.getDueDate() != null) ? r.getDueDate().toString() : "" });
     }
   }
   
@@ -206,21 +208,16 @@ public class UnreturnedBookListPanel extends Composite implements LibraryManager
      * モデルのパラメータにしたがって、データを取得し再表示する。
      */
     public final void reload() {
-      RPCServices.getDBLookupService().getUnreturnedBookInfo(
+      RPCServices.getDBLookupService().getUnreturnedBookInfoAfter(
         model.getConstraints(),
-        model.getOffsetForCurrentPage(),
-        1 + BookCheckoutListModel.NUM_ELEMENT_PER_PAGE,
-        new AsyncCallback<List<BookRentalHistoryRecord>>() {
-          public void onSuccess(List<BookRentalHistoryRecord> results) {
-            if (results == null)
+        model.getTokenForCurrentPage(),
+        BookCheckoutListModel.NUM_ELEMENT_PER_PAGE,
+        new AsyncCallback<ResultPage<BookRentalHistoryRecord>>() {
+          public void onSuccess(ResultPage<BookRentalHistoryRecord> page) {
+            if (page == null)
               throw new IllegalStateException("null BookRentalHistoryRecord result");
-            final boolean hasMorePage =
-              results.size() > BookCheckoutListModel.NUM_ELEMENT_PER_PAGE;
-            model.setHasMorePage(hasMorePage);
-            if (hasMorePage) {
-              results.remove(results.size()-1);
-            }
-            view.updateView(model, results);
+            model.setNextPageToken(page.getContinuationToken());
+            view.updateView(model, page.getRecords());
           }
           public void onFailure(Throwable ex) {
             com.google.gwt.user.client.Window.alert(ex.toString());
@@ -251,29 +248,40 @@ public class UnreturnedBookListPanel extends Composite implements LibraryManager
 
     // 現在のページ(0ページから)。
     private int currentPage = 0;
-    
-    private boolean hasMorePage = false;
+
+    // 各ページを取得するためのトークン (0ページ目はnull)。
+    private final List<String> pageTokens = new ArrayList<String>();
+
+    // 次のページのトークン (nullなら最後のページ)。
+    private String nextPageToken = null;
 
     private BookRentalHistoryRecord.Constraints constraints;
 
-    public void nextPage() { if (hasMorePage) ++currentPage; }
+    public void nextPage() {
+      if (nextPageToken == null) return;
+      ++currentPage;
+      pageTokens.subList(currentPage, pageTokens.size()).clear();
+      pageTokens.add(nextPageToken);
+    }
 
     public void prevPage() { if (currentPage > 0) --currentPage; }
     
-    public void setHasMorePage(boolean v) { hasMorePage = v; }
+    public void setNextPageToken(String token) { nextPageToken = token; }
 
-    public boolean getHasMorePage() { return hasMorePage; }
+    public boolean getHasMorePage() { return nextPageToken != null; }
 
     public int getCurrentPage() { return currentPage; }
 
-    public int getOffsetForCurrentPage() {
-      return NUM_ELEMENT_PER_PAGE * currentPage;
+    public String getTokenForCurrentPage() {
+      return pageTokens.get(currentPage);
     }
     
     public void setConstraints(BookRentalHistoryRecord.Constraints c) {
       constraints = c;
       currentPage = 0;
-      hasMorePage = false;
+      pageTokens.clear();
+      pageTokens.add(null);
+      nextPageToken = null;
     }
 
     public BookRentalHistoryRecord.Constraints getConstraints() {
@@ -318,7 +318,7 @@ public final class UserInfoDBPanel extends Composite implements LibraryManager.A
                     throw new IllegalStateException();
                   logger.info("New record: " + newRecord);
                   final int index = findIndex(personRecord.getId());
-                  members.set(index, personRecord);
+                  members.set(index, newRecord);  // with the new version
                   setMemberView(index, newRecord, false);
                 }
               });
@@ -362,6 +362,7 @@ public final class UserInfoDBPanel extends Composite implements LibraryManager.A
     private final TextBox nameInputBox = new TextBox();
     private final TextBox katakanaNameInputBox = new TextBox();
     private final TextBox romanNameInputBox = new TextBox();
+    private int version = 0;  // 既存レコードの編集時のバージョン
 
     /**
      * Creates a new <code>UserRecordInputPanel</code> instance.
@@ -415,6 +416,7 @@ public final class UserInfoDBPanel extends Composite implements LibraryManager.A
      */
     public UserRecordInputPanel(final PersonRecord record) {
       this();
+      version = record.getVersion();
       nameInputBox.setText(record.getName());
       final String typeName = record.getType().getDisplayName();
       for (int j = 0; j < typeSelector.getItemCount(); j++) {
@@ -445,6 +447,7 @@ public final class UserInfoDBPanel extends Composite implements LibraryManager.A
       record.setType(type);
       record.setKatakanaName(katakanaNameInputBox.getText());
       record.setRomanName(romanNameInputBox.getText());
+      record.setVersion(version);
       return record;
     }
 
@@ -526,7 +529,10 @@ public final class UserInfoDBPanel extends Composite implements LibraryManager.A
                   visitor.visit(updatedRecord);
                 }
                 public void onFailure(Throwable ex) {
-                  com.google.gwt.user.client.Window.alert(ex.toString());
+                  if (ex instanceof ConcurrentUpdateException)
+                    com.google.gwt.user.client.Window.alert(ex.getMessage());
+                  else
+                    com.google.gwt.user.client.Window.alert(ex.toString());
                 }
               });
           dialog.hide();
@@ -0,0 +1,29 @@
+package org.tomokiyo.pjs.server;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Starts the scheduled backup with the web application and stops it
+ * on shutdown.  See {@link BackupManager}.
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public class BackupListener implements ServletContextListener {
+  public void contextInitialized(ServletContextEvent event) {
+    // NB: DB を共有する場合は、明示的に指定した一台 (DB サーバと同じマシン) だけで行なう。
+    final long intervalHours = Long.getLong("pjs.backup.intervalHours",
+                                            DBUtil.getStorageBackend().isShared() ? 0L : 24L);
+    if (intervalHours <= 0 || DBUtil.getStorageBackend().isTransient())
+      return;
+    BackupManager.getDefault().start(intervalHours * 60 * 60 * 1000);
+    event.getServletContext().log("Scheduled backup every " + intervalHours + " hours to "
+                                  + BackupManager.getDefault().getBackupDir());
+  }
+
+  public void contextDestroyed(ServletContextEvent event) {
+    if (DBUtil.getStorageBackend().isTransient())
+      return;
+    BackupManager.getDefault().stop();
+  }
+} // BackupListener
@@ -0,0 +1,403 @@
+package org.tomokiyo.pjs.server;
+
+import org.apache.derby.jdbc.EmbeddedDataSource;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import javax.sql.DataSource;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 稼働中のデータベースのバックアップ。
+ *
+ * Derby のオンラインバックアップ (SYSCS_BACKUP_DATABASE_NOWAIT) で
+ * スナップショットを取り、別の場所に複製して起動し、全テーブルを
+ * SYSCS_CHECK_TABLE で検査してから保存する。古いスナップショットは
+ * 新しいものから keep 個を残して削除する。
+ *
+ * 貸出・返却を止めないように:
+ * <ul>
+ *  <li>コネクションプールは使わず、専用の接続で実行する。
+ *  <li>優先度の低いスレッド一つで、一度に一つしか実行しない。
+ *  <li>検査用の複製は maxBytesPerSecond に抑えて読み書きする。
+ * </ul>
+ * Derby のバックアップ自体はログを取りながら行なわれるので、通常の
+ * 更新は待たされない (NOWAIT なので、ログを取らない操作の実行中は
+ * 待たずに失敗し、次回に回す)。
+ *
+ * Configured by the system properties below (defaults in parentheses):
+ * <ul>
+ *  <li>pjs.backup.dir (${derby.system.home}/backup): where the snapshots are stored.
+ *  <li>pjs.backup.keep (7): number of snapshots to keep.
+ *  <li>pjs.backup.intervalHours (24): 0 to disable the scheduled backup.
+ *  <li>pjs.backup.maxBytesPerSecond (4194304): I/O rate of the verification.
+ * </ul>
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public final class BackupManager {
+  static private final String SNAPSHOT_FORMAT = "yyyyMMdd-HHmmss-SSS";
+
+  private final DataSource dataSource;
+  private final File backupDir;
+  private final int keep;
+  private final long maxBytesPerSecond;
+
+  private ScheduledExecutorService scheduler = null;
+  private volatile Status lastStatus = null;
+
+  /**
+   * @param dataSource a non-pooled DataSource of the database.
+   * @param maxBytesPerSecond 0 for unlimited.
+   */
+  public BackupManager(DataSource dataSource, File backupDir, int keep, long maxBytesPerSecond) {
+    if (keep <= 0)
+      throw new IllegalArgumentException("keep should be positive: " + keep);
+    this.dataSource = dataSource;
+    this.backupDir = backupDir;
+    this.keep = keep;
+    this.maxBytesPerSecond = maxBytesPerSecond;
+  }
+
+  /**
+   * Create a manager of the given DataSource configured by the
+   * "pjs.backup.*" system properties.
+   */
+  static public BackupManager create(DataSource dataSource) {
+    final String dir = System.getProperty("pjs.backup.dir");
+    return new BackupManager(dataSource,
+        (dir != null) ? new File(dir) : new File(System.getProperty("derby.system.home", "."), "backup"),
+        Integer.getInteger("pjs.backup.keep", 7),
+        Long.getLong("pjs.backup.maxBytesPerSecond", 4L << 20));
+  }
+
+  /**
+   * The manager of the application database.
+   */
+  static public BackupManager getDefault() {
+    return LazyHolder.instance;
+  }
+
+  static private final class LazyHolder {
+    static private final BackupManager instance = create(DBUtil.makeDataSource(false));
+  }
+
+  public File getBackupDir() {
+    return backupDir;
+  }
+
+  // ---------------------------------------------------------------------
+  // Schedule
+
+  /**
+   * Starts the scheduled backup.  The first one runs after an interval.
+   */
+  public synchronized void start(long intervalMillis) {
+    if (scheduler != null)
+      return;
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          final Thread t = new Thread(r, "pjs-backup");
+          t.setDaemon(true);
+          t.setPriority(Thread.MIN_PRIORITY);
+          return t;
+        }
+      });
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          final Status status = backup();
+          System.out.println(status);
+        }
+      }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops the scheduled backup, waiting for the running one if any.
+   */
+  public synchronized void stop() {
+    if (scheduler == null)
+      return;
+    scheduler.shutdown();
+    try {
+      scheduler.awaitTermination(10, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    scheduler = null;
+  }
+
+  // ---------------------------------------------------------------------
+  // Status
+
+  /**
+   * The result of a backup.
+   */
+  static public final class Status {
+    private final Date startTime = new Date();
+    private Date endTime;
+    private File snapshot;
+    private long bytes;
+    private int numBooks = -1;
+    private int numPersons = -1;
+    private String error;
+
+    public Date getStartTime() { return startTime; }
+    public Date getEndTime() { return endTime; }
+    public File getSnapshot() { return snapshot; }
+    public long getBytes() { return bytes; }
+    public int getNumBooks() { return numBooks; }
+    public int getNumPersons() { return numPersons; }
+    public String getError() { return error; }
+    public boolean isSuccessful() { return endTime != null && error == null; }
+
+    public String toString() {
+      final StringBuilder sbuf = new StringBuilder("backup ");
+      sbuf.append(isSuccessful() ? "OK" : "FAILED");
+      sbuf.append(" started=").append(startTime);
+      if (endTime != null)
+        sbuf.append(" elapsed=").append(endTime.getTime() - startTime.getTime()).append("ms");
+      if (snapshot != null)
+        sbuf.append(" snapshot=").append(snapshot);
+      sbuf.append(" bytes=").append(bytes);
+      sbuf.append(" books=").append(numBooks).append(" persons=").append(numPersons);
+      if (error != null)
+        sbuf.append(" error=").append(error);
+      return sbuf.toString();
+    }
+  }
+
+  /**
+   * The status of the last backup, or null if none has run.
+   */
+  public Status getLastStatus() {
+    return lastStatus;
+  }
+
+  // ---------------------------------------------------------------------
+  // Backup
+
+  /**
+   * Takes a snapshot, verifies it and removes the old ones.  Never throws;
+   * the error is in the returned status.
+   */
+  public synchronized Status backup() {
+    final Status status = new Status();
+    final String name = new SimpleDateFormat(SNAPSHOT_FORMAT).format(status.startTime);
+    final File work = new File(backupDir, name + ".tmp");
+    try {
+      if (!backupDir.isDirectory() && !backupDir.mkdirs())
+        throw new IOException("Cannot create " + backupDir);
+      final Connection conn = dataSource.getConnection();
+      try {
+        final CallableStatement cs = conn.prepareCall("CALL SYSCS_UTIL.SYSCS_BACKUP_DATABASE_NOWAIT(?)");
+        cs.setString(1, work.getAbsolutePath());
+        cs.execute();
+        cs.close();
+      } finally {
+        conn.close();
+      }
+      verify(work, status);
+      final File snapshot = new File(backupDir, name);
+      if (!work.renameTo(snapshot))
+        throw new IOException("Cannot rename " + work + " to " + snapshot);
+      status.snapshot = snapshot;
+      rotate();
+    } catch (Exception e) {
+      status.error = e.toString();
+      deleteRecursively(work);
+    }
+    status.endTime = new Date();
+    lastStatus = status;
+    return status;
+  }
+
+  /**
+   * Boots a copy of the snapshot and checks all the tables.  (The
+   * snapshot itself is not booted, since booting runs the recovery
+   * and modifies it.)
+   */
+  private void verify(File snapshot, Status status) throws IOException, SQLException {
+    final File[] dbs = snapshot.listFiles();
+    if (dbs == null || dbs.length != 1 || !dbs[0].isDirectory())
+      throw new IOException("Unexpected backup layout in " + snapshot);
+    final File copy = new File(backupDir, "verify");
+    deleteRecursively(copy);
+    try {
+      status.bytes = copyRecursively(dbs[0], copy, new Throttle(maxBytesPerSecond));
+      final EmbeddedDataSource ds = new EmbeddedDataSource();
+      ds.setDatabaseName(copy.getAbsolutePath());
+      final Connection conn = ds.getConnection();
+      try {
+        for (String table : getTables(conn)) {
+          final PreparedStatement ps = conn.prepareStatement("VALUES SYSCS_UTIL.SYSCS_CHECK_TABLE('APP', ?)");
+          ps.setString(1, table);
+          final ResultSet rs = ps.executeQuery();
+          rs.next();
+          if (rs.getInt(1) != 1)
+            throw new SQLException("Check failed: " + table);
+          ps.close();
+        }
+        status.numBooks = count(conn, "Book");
+        status.numPersons = count(conn, "Person");
+      } finally {
+        conn.close();
+        shutdown(copy);
+      }
+    } finally {
+      deleteRecursively(copy);
+    }
+  }
+
+  static private final List<String> getTables(Connection conn) throws SQLException {
+    final List<String> tables = new ArrayList<String>();
+    final Statement s = conn.createStatement();
+    final ResultSet rs = s.executeQuery(
+      "SELECT t.tablename FROM sys.systables t, sys.sysschemas s" +
+      " WHERE t.schemaid = s.schemaid AND s.schemaname = 'APP' AND t.tabletype = 'T'");
+    while (rs.next())
+      tables.add(rs.getString(1));
+    s.close();
+    return tables;
+  }
+
+  static private final int count(Connection conn, String table) throws SQLException {
+    final Statement s = conn.createStatement();
+    try {
+      final ResultSet rs = s.executeQuery("SELECT COUNT(*) FROM " + table);
+      rs.next();
+      return rs.getInt(1);
+    } finally {
+      s.close();
+    }
+  }
+
+  static private final void shutdown(File db) {
+    try {
+      DriverManager.getConnection("jdbc:derby:" + db.getAbsolutePath() + ";shutdown=true");
+    } catch (SQLException e) {
+      // "08006": Database shut down normally.
+      if (!"08006".equals(e.getSQLState()))
+        e.printStackTrace();
+    }
+  }
+
+  /**
+   * Removes all but the newest keep snapshots.
+   */
+  private void rotate() {
+    final List<File> snapshots = listSnapshots();
+    for (int i = 0; i < snapshots.size() - keep; i++)
+      deleteRecursively(snapshots.get(i));
+  }
+
+  /**
+   * The verified snapshots, oldest first.
+   */
+  public List<File> listSnapshots() {
+    final List<File> snapshots = new ArrayList<File>();
+    final File[] files = backupDir.listFiles();
+    if (files == null)
+      return snapshots;
+    Arrays.sort(files);  // by name, i.e. by time
+    for (File f : files)
+      if (f.isDirectory() && f.getName().matches("[0-9]{8}-[0-9]{6}-[0-9]{3}"))
+        snapshots.add(f);
+    return snapshots;
+  }
+
+  // ---------------------------------------------------------------------
+  // Files
+
+  /**
+   * Sleeps so that the bytes passed are at most maxBytesPerSecond.
+   */
+  static private final class Throttle {
+    private final long maxBytesPerSecond;
+    private final long start = System.currentTimeMillis();
+    private long bytes = 0;
+
+    Throttle(long maxBytesPerSecond) {
+      this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    void passed(int n) throws IOException {
+      bytes += n;
+      if (maxBytesPerSecond <= 0)
+        return;
+      final long wait = bytes * 1000 / maxBytesPerSecond - (System.currentTimeMillis() - start);
+      if (wait > 0) {
+        try {
+          Thread.sleep(wait);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted");
+        }
+      }
+    }
+  }
+
+  /**
+   * Copies the directory (or file) at full speed.
+   */
+  static final long copyRecursively(File from, File to) throws IOException {
+    return copyRecursively(from, to, new Throttle(0));
+  }
+
+  static private final long copyRecursively(File from, File to, Throttle throttle) throws IOException {
+    if (from.isDirectory()) {
+      if (!to.mkdirs())
+        throw new IOException("Cannot create " + to);
+      long bytes = 0;
+      for (String name : from.list())
+        bytes += copyRecursively(new File(from, name), new File(to, name), throttle);
+      return bytes;
+    }
+    final InputStream in = new FileInputStream(from);
+    try {
+      final OutputStream out = new FileOutputStream(to);
+      try {
+        final byte[] buf = new byte[64 * 1024];
+        long bytes = 0;
+        int n;
+        while ((n = in.read(buf)) > 0) {
+          out.write(buf, 0, n);
+          bytes += n;
+          throttle.passed(n);
+        }
+        return bytes;
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  static final void deleteRecursively(File f) {
+    final File[] children = f.listFiles();
+    if (children != null)
+      for (File child : children)
+        deleteRecursively(child);
+    f.delete();
+  }
+} // BackupManager
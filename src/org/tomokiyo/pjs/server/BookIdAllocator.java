@@ -0,0 +1,183 @@
+package org.tomokiyo.pjs.server;
+
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+
+import javax.sql.DataSource;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 新しい図書番号の払い出し。
+ *
+ * カテゴリ毎のカウンタをメモリ上に持ち、LastID テーブルからは
+ * BLOCK_SIZE 個ずつ番号の範囲を予約する。予約は条件付きの UPDATE
+ * (compare-and-set) 一回で行なうので、複数の登録端末に同じ番号を渡す
+ * ことはない。予約済みの範囲内の払い出しでは DB にアクセスしない。
+ *
+ * LastID は予約済みの最大の番号なので、再起動後は LastID の次から
+ * 払い出す (使われなかった予約分は欠番になる)。
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public final class BookIdAllocator {
+  static private final int BLOCK_SIZE = Integer.getInteger("pjs.bookid.block", 10);
+
+  static private final class Counter {
+    final AtomicInteger next = new AtomicInteger(1);
+    volatile int limit = 0;  // reserved up to this number (inclusive)
+  }
+
+  private final SimpleJdbcTemplate jdbcTemplate;
+  private final ConcurrentHashMap<String,Counter> counters = new ConcurrentHashMap<String,Counter>();
+
+  BookIdAllocator(DataSource dataSource) {
+    this.jdbcTemplate = new SimpleJdbcTemplate(dataSource);
+  }
+
+  private Counter getCounter(String category) {
+    Counter counter = counters.get(category);
+    if (counter == null) {
+      final Counter prev = counters.putIfAbsent(category, counter = new Counter());
+      if (prev != null)
+        counter = prev;
+    }
+    return counter;
+  }
+
+  /**
+   * Returns a new book number of the category which is never
+   * returned again.
+   */
+  public int allocate(String category) {
+    final Counter counter = getCounter(category);
+    while (true) {
+      final int n = counter.next.get();
+      if (n <= counter.limit) {
+        if (counter.next.compareAndSet(n, n + 1))
+          return n;
+      } else {
+        synchronized (counter) {
+          if (counter.next.get() > counter.limit)
+            reserve(category, counter);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns a new book ID (e.g. "A029").
+   */
+  public String allocateId(String category) {
+    return formatId(category, allocate(category));
+  }
+
+  /**
+   * Returns the number which would be handed out next without taking
+   * it, e.g. to show on the registration form.  The number is taken
+   * when the book is registered (see {@link #registered}).
+   */
+  public int peek(String category) {
+    final Counter counter = getCounter(category);
+    final int n = counter.next.get();
+    if (n <= counter.limit)
+      return n;
+    return Math.max(DBUtil.getLastIdFor(jdbcTemplate, category), n - 1) + 1;
+  }
+
+  /**
+   * Returns the book ID (e.g. "A029") of {@link #peek}.
+   */
+  public String peekId(String category) {
+    return formatId(category, peek(category));
+  }
+
+  static private String formatId(String category, int number) {
+    return String.format("%s%03d", category, number);
+  }
+
+  /**
+   * Reserves the next block in LastID.
+   */
+  private void reserve(String category, Counter counter) {
+    while (true) {
+      final int last = DBUtil.getLastIdFor(jdbcTemplate, category);
+      final int start = Math.max(last, counter.next.get() - 1);
+      final int end = start + BLOCK_SIZE;
+      if (last < 0) {
+        try {
+          jdbcTemplate.update("INSERT INTO LastID (last_id, name) VALUES (?, ?)", end, category);
+        } catch (DataIntegrityViolationException e) {
+          continue;  // inserted by someone else
+        }
+      } else if (jdbcTemplate.update("UPDATE LastID SET last_id = ? WHERE name = ? AND last_id = ?",
+                                     end, category, last) == 0) {
+        continue;  // updated by someone else
+      }
+      advance(counter, start + 1);
+      counter.limit = end;
+      return;
+    }
+  }
+
+  static private void advance(Counter counter, int next) {
+    while (true) {
+      final int n = counter.next.get();
+      if (n >= next || counter.next.compareAndSet(n, next))
+        return;
+    }
+  }
+
+  /**
+   * Call this after a book is registered (possibly with a number typed
+   * in by hand), so that the number is not handed out.  LastID itself
+   * is updated by the registration.
+   */
+  public void registered(String category, int number) {
+    advance(getCounter(category), number + 1);
+  }
+
+  /**
+   * Skips the numbers up to the largest one in Book, e.g. after a
+   * registration failed because another node (which has its own
+   * counters) has registered the number.
+   */
+  public void resync(String category) {
+    final int max = jdbcTemplate.queryForInt("SELECT COALESCE(MAX(sortkey), 0) FROM Book WHERE category = ?", category) / 1000;
+    if (max <= 0)
+      return;
+    DBUtil.setLastIdIfLarger(jdbcTemplate, category, max);
+    advance(getCounter(category), max + 1);
+  }
+
+  /**
+   * Forgets the counters, e.g. after LastID is modified directly.
+   */
+  public void reset() {
+    counters.clear();
+  }
+
+  // ---------------------------------------------------------------------
+  // One allocator for each DataSource.
+
+  static private final Map<DataSource,BookIdAllocator> allocators = new HashMap<DataSource,BookIdAllocator>();
+
+  static public BookIdAllocator forDataSource(SimpleJdbcTemplate jdbcTemplate) {
+    return forDataSource(((JdbcTemplate) jdbcTemplate.getJdbcOperations()).getDataSource());
+  }
+
+  static public BookIdAllocator forDataSource(DataSource dataSource) {
+    synchronized (allocators) {
+      BookIdAllocator allocator = allocators.get(dataSource);
+      if (allocator == null) {
+        allocator = new BookIdAllocator(dataSource);
+        allocators.put(dataSource, allocator);
+      }
+      return allocator;
+    }
+  }
+} // BookIdAllocator
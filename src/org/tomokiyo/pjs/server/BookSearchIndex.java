@@ -0,0 +1,172 @@
+package org.tomokiyo.pjs.server;
+
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.simple.ParameterizedRowMapper;
+import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 蔵書検索のための N-gram 転置インデックス (BookNGram テーブル)。
+ *
+ * 日本語のタイトルは空白で区切られていないので、title, kana_title,
+ * authors の bigram と trigram を索引付けする。検索時は各フレーズの
+ * n-gram の posting list の積集合を候補とし、最終的な判定は従来通り
+ * LIKE で行う。
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public final class BookSearchIndex {
+  /**
+   * 索引付けするフィールド (Book のカラム名)。
+   */
+  static public final String[] FIELDS = { "title", "kana_title", "authors" };
+
+  static public final String CREATE_TABLE_SQL = "CREATE TABLE BookNGram(" +
+    "field VARCHAR(16) NOT NULL," +
+    "gram VARCHAR(3) NOT NULL," +
+    "book_id VARCHAR(20) NOT NULL CONSTRAINT ngram_book_ref REFERENCES Book(id) ON DELETE CASCADE," +
+    "CONSTRAINT ngram_pk PRIMARY KEY (field, gram, book_id))";
+
+  private BookSearchIndex() {}
+
+  /**
+   * Returns the set of bigrams and trigrams of the text.  The raw
+   * text is indexed together with the normalized one so that the
+   * candidates never miss a row that the LIKE predicate accepts.
+   */
+  static final Set<String> getNGrams(String text) {
+    final Set<String> grams = new LinkedHashSet<String>();
+    if (text == null)
+      return grams;
+    addNGrams(text, grams);
+    addNGrams(JapaneseUtil.normalize(text), grams);
+    return grams;
+  }
+
+  // NB: Derby compares VARCHARs ignoring trailing spaces ('山田 ' = '山田'),
+  // so n-grams ending with a space are not stored (they would violate
+  // ngram_pk) nor looked up.
+  static private final void addNGrams(String text, Set<String> grams) {
+    for (int n = 2; n <= 3; n++)
+      for (int i = 0; i + n <= text.length(); i++)
+        if (text.charAt(i + n - 1) != ' ')
+          grams.add(text.substring(i, i + n));
+  }
+
+  /**
+   * Returns the n-grams to look up for a phrase which appears as
+   * <code>LIKE '%phrase%'</code>.  Any text containing the phrase
+   * contains all of its trigrams (or the bigram for a 2-letter
+   * phrase).  Returns null when the phrase is too short to use the index.
+   */
+  static final Set<String> getQueryNGrams(String phrase) {
+    if (phrase.length() < 2)
+      return null;
+    final Set<String> grams = new LinkedHashSet<String>();
+    if (phrase.length() == 2) {
+      if (phrase.charAt(1) != ' ')
+        grams.add(phrase);
+    } else {
+      for (int i = 0; i + 3 <= phrase.length(); i++)
+        if (phrase.charAt(i + 2) != ' ')
+          grams.add(phrase.substring(i, i + 3));
+    }
+    return grams.isEmpty() ? null : grams;
+  }
+
+  /**
+   * Adds index entries for a newly registered book.
+   */
+  static public void addBook(final SimpleJdbcTemplate jdbcTemplate, String bookId, String title, String kanaTitle, String authors) {
+    final List<Object[]> batch = new ArrayList<Object[]>();
+    addEntries(batch, bookId, title, kanaTitle, authors);
+    if (!batch.isEmpty())
+      jdbcTemplate.batchUpdate(INSERT_SQL, batch);
+  }
+
+  static final String INSERT_SQL = "INSERT INTO BookNGram (field, gram, book_id) VALUES (?,?,?)";
+
+  /**
+   * Adds the arguments of INSERT_SQL for the book to the batch.
+   */
+  static void addEntries(List<Object[]> batch, String bookId, String title, String kanaTitle, String authors) {
+    final String[] values = { title, kanaTitle, authors };
+    for (int i = 0; i < FIELDS.length; i++)
+      for (String gram : getNGrams(values[i]))
+        batch.add(new Object[] { FIELDS[i], gram, bookId });
+  }
+
+  /**
+   * Replaces the index entries of a book whose title or authors are updated.
+   */
+  static public void updateBook(final SimpleJdbcTemplate jdbcTemplate, String bookId, String title, String kanaTitle, String authors) {
+    jdbcTemplate.update("DELETE FROM BookNGram WHERE book_id = ?", bookId);
+    addBook(jdbcTemplate, bookId, title, kanaTitle, authors);
+  }
+
+  /**
+   * Rebuilds the whole index from the Book table.
+   */
+  static public void rebuild(final SimpleJdbcTemplate jdbcTemplate) {
+    jdbcTemplate.update("DELETE FROM BookNGram");
+    final List<String[]> books = new ArrayList<String[]>();
+    jdbcTemplate.getJdbcOperations().query("SELECT id, title, kana_title, authors FROM Book", new RowCallbackHandler() {
+        public void processRow(ResultSet rs) throws SQLException {
+          books.add(new String[] { rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4) });
+        }
+      });
+    for (String[] book : books)
+      addBook(jdbcTemplate, book[0], book[1], book[2], book[3]);
+    System.out.println("Indexed " + books.size() + " books.");
+  }
+
+  /**
+   * Returns the IDs of the books which may match all the terms
+   * ({field, phrase} pairs of {@link DBUtil.BookPhraseQueryParser}),
+   * or null when none of the terms can be looked up in the index.
+   */
+  static public Set<String> findCandidates(final SimpleJdbcTemplate jdbcTemplate, List<String[]> terms) {
+    final List<Set<String>> postings = new ArrayList<Set<String>>();
+    for (String[] term : terms) {
+      final Set<String> grams = getQueryNGrams(term[1]);
+      if (grams == null)
+        continue;
+      for (String gram : grams) {
+        final Set<String> posting = new HashSet<String>(
+          jdbcTemplate.query("SELECT book_id FROM BookNGram WHERE field = ? AND gram = ?",
+                             bookIdMapper, term[0], gram));
+        if (posting.isEmpty())
+          return posting;  // no need to look further
+        postings.add(posting);
+      }
+    }
+    if (postings.isEmpty())
+      return null;
+    // 小さい posting list から順に積集合をとる。
+    Collections.sort(postings, new Comparator<Set<String>>() {
+        public int compare(Set<String> a, Set<String> b) {
+          return a.size() - b.size();
+        }
+      });
+    final Set<String> result = new HashSet<String>(postings.get(0));
+    for (int i = 1; i < postings.size() && !result.isEmpty(); i++)
+      result.retainAll(postings.get(i));
+    return result;
+  }
+
+  static private final ParameterizedRowMapper<String> bookIdMapper = new ParameterizedRowMapper<String>() {
+    public String mapRow(ResultSet rs, int rowNum) throws SQLException {
+      return rs.getString(1);
+    }
+  };
+} // BookSearchIndex
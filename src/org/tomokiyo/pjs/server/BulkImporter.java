@@ -0,0 +1,364 @@
+package org.tomokiyo.pjs.server;
+
+import org.tomokiyo.pjs.client.BookRecord;
+import org.tomokiyo.pjs.client.PersonRecord;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+import org.springframework.jdbc.core.simple.ParameterizedRowMapper;
+import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import javax.sql.DataSource;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 利用者/図書の CSV ファイルの一括登録。
+ *
+ * 各行の正規化と検証は {@link CSVPipeline} で並列に行なう。
+ * まずファイル全体を読んで検証し、エラーが一つでもあれば何も登録しない。
+ * 検証が通れば、家族、利用者、図書を JDBC batch で一つのトランザクションで
+ * 登録し、LastID は最後にカテゴリ毎に一度だけ更新する。
+ *
+ * <pre>
+ *   final BulkImporter importer = new BulkImporter(dataSource, msgout, "UTF-8");
+ *   importer.readPersonRecords(in);
+ *   importer.readBookRecords(in);
+ *   if (!importer.hasErrors())
+ *     importer.commit();
+ * </pre>
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public final class BulkImporter {
+  // 一度の JDBC batch で送る行数。
+  static private final int BATCH_SIZE = 500;
+
+  private final DataSource dataSource;
+  private final SimpleJdbcTemplate jdbcTemplate;
+  private final PrintWriter msgout;
+  private final String encoding;
+
+  // 検証済みの利用者 (CSV の列)。家族番号が変わるところで家族を作る。
+  private final List<String[]> personLines = new ArrayList<String[]>();
+  // 検証済みの図書。
+  private final List<BookRecord> bookRecords = new ArrayList<BookRecord>();
+  private final Set<String> bookIds = new HashSet<String>();
+  private Set<String> existingBookIds = null;  // lazily loaded
+
+  private int numErrors = 0;
+
+  public BulkImporter(DataSource dataSource, PrintWriter msgout, String encoding) {
+    this.dataSource = dataSource;
+    this.jdbcTemplate = new SimpleJdbcTemplate(dataSource);
+    this.msgout = msgout;
+    this.encoding = encoding;
+  }
+
+  public boolean hasErrors() {
+    return numErrors > 0;
+  }
+
+  private void error(String message, String[] columns, int lineno) {
+    msgout.println(message + ": " + quote(StringUtil.join(columns)) + " at line " + lineno);
+    numErrors++;
+  }
+
+  static private final String quote(String s) {
+    return "\"" + s + "\"";
+  }
+
+  private CSVReader makeCSVReader(InputStream inputStream) throws IOException {
+    return new CSVReader(
+      new BufferedReader(
+        new InputStreamReader(
+          new UTF8BOMSkippingInputStream(inputStream), encoding)));
+  }
+
+  /**
+   * Reads and validates person records.
+   * e.g. "1002,保護者,山田 太郎,ヤマダ タロウ,Yamada Taro[,削除日]"
+   */
+  public void readPersonRecords(InputStream inputStream) throws IOException {
+    CSVPipeline.run(makeCSVReader(inputStream), personStage, new CSVPipeline.Sink<String[]>() {
+        public void accept(int lineno, String[] columns, String[] value, Exception e) {
+          if (e != null) {
+            error(e.getMessage(), columns, lineno);
+          } else if (value == null) {
+            msgout.println("Skipping: " + quote(StringUtil.join(columns)) + " at line " + lineno);
+          } else {
+            personLines.add(value);
+          }
+        }
+      });
+  }
+
+  static private final CSVPipeline.Stage<String[]> personStage = new CSVPipeline.Stage<String[]>() {
+    public String[] process(String[] columns) {
+      final String error = validatePersonLine(columns);
+      if (error == SKIP)
+        return null;
+      if (error != null)
+        throw new IllegalArgumentException(error);
+      return columns;
+    }
+  };
+
+  static final String SKIP = "Skip";
+
+  /**
+   * Normalizes the columns in place and returns null if valid, SKIP
+   * for comment or empty lines, or the error message.
+   */
+  static String validatePersonLine(String[] columns) {
+    if (columns.length == 0 || columns[0].startsWith("#")
+        || (columns.length == 1 && StringUtil.isWhitespace(columns[0])))
+      return SKIP;
+    if (columns.length != 5 && columns.length != 6)
+      return "Wrong number of columns";
+    // Normalize Japanese characters.
+    for (int j = 0; j < columns.length; j++)
+      columns[j] = JapaneseUtil.normalize(columns[j]);
+    if (!StringUtil.isAllDigit(columns[0]))
+      return "First column should be a number";
+    if (PersonRecord.Type.lookupByDisplayName(columns[1]) == null)
+      return "Second column should be a valid type";
+    if (!JapaneseUtil.isAllKatakana(StringUtil.removeSpace(columns[3])))
+      return "Fourth column should be in Katakana";
+    if (columns.length > 5 && !StringUtil.isWhitespace(columns[5])) {
+      try {
+        DateUtil.parseShortDate(columns[5]);
+      } catch (java.text.ParseException e) {
+        return "Sixth column should be a date";
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Reads and validates book records.
+   */
+  public void readBookRecords(InputStream inputStream) throws IOException {
+    CSVPipeline.run(makeCSVReader(inputStream), bookStage, new CSVPipeline.Sink<BookRecord>() {
+        public void accept(int lineno, String[] columns, BookRecord record, Exception e) {
+          if (e != null) {
+            error("Invalid book record (" + e + ")", columns, lineno);
+          } else if (record != null) {
+            addBookRecord(record, columns, lineno);
+          }
+        }
+      });
+  }
+
+  static private final CSVPipeline.Stage<BookRecord> bookStage = new CSVPipeline.Stage<BookRecord>() {
+    public BookRecord process(String[] columns) throws Exception {
+      if (columns[0].equals("題名"))  // skip header
+        return null;
+      if (StringUtil.isWhitespace(columns[0]))
+        return null;
+      final BookRecord record = DBUtil.createBookRecordFromCSV(columns);
+      DBUtil.getBookNumber(record.getId());  // validates the ID
+      return record;
+    }
+  };
+
+  private void addBookRecord(BookRecord record, String[] columns, int lineno) {
+    if (existingBookIds == null)
+      existingBookIds = new HashSet<String>(jdbcTemplate.query("SELECT id FROM Book", idMapper));
+    if (!bookIds.add(record.getId())) {
+      error("Duplicated book ID " + record.getId(), columns, lineno);
+    } else if (existingBookIds.contains(record.getId())) {
+      error("Book ID " + record.getId() + " is already registered", columns, lineno);
+    } else {
+      bookRecords.add(record);
+    }
+  }
+
+  /**
+   * Adds a person record given as the CSV columns, without reading a
+   * file.  (used by {@link Fixtures})
+   */
+  void addPersonRecord(String... columns) {
+    final String error = validatePersonLine(columns);
+    if (error != null)
+      throw new IllegalArgumentException(error + ": " + StringUtil.join(columns));
+    personLines.add(columns);
+  }
+
+  /**
+   * Adds a book record without reading a file.  (used by {@link Fixtures})
+   */
+  void addBookRecord(BookRecord record) {
+    addBookRecord(record, new String[] { record.getTitle(), record.getId() }, 0);
+  }
+
+  static private final ParameterizedRowMapper<String> idMapper = new ParameterizedRowMapper<String>() {
+    public String mapRow(ResultSet rs, int rowNum) throws SQLException {
+      return rs.getString(1).trim();
+    }
+  };
+
+  /**
+   * Inserts all the validated records in one transaction.
+   */
+  public void commit() {
+    if (hasErrors())
+      throw new IllegalStateException(numErrors + " errors in the input.");
+    DBUtil.makeTransactionTemplate(dataSource).execute(new TransactionCallback() {
+        public Object doInTransaction(TransactionStatus status) {
+          insertPersons(personLines);
+          insertBooks();
+          return null;
+        }
+      });
+    if (!personLines.isEmpty())
+      RecordCache.forPersons(dataSource).invalidateAll();
+    if (!bookRecords.isEmpty())
+      RecordCache.forBooks(dataSource).invalidateAll();
+    for (BookRecord record : bookRecords)
+      BookIdAllocator.forDataSource(dataSource).registered(DBUtil.getCategory(record.getId()), DBUtil.getBookNumber(record.getId()));
+    msgout.println("Added " + personLines.size() + " person records and " + bookRecords.size() + " book records.");
+  }
+
+  private void insertPersons(List<String[]> personLines) {
+    if (personLines.isEmpty())
+      return;
+    // 家族: CSV の家族番号が変わる度に一つ作る。代表者の名前を家族の名前とする。
+    final List<Object[]> families = new ArrayList<Object[]>();
+    String lastFamilyId = null;
+    for (String[] columns: personLines) {
+      if (!columns[0].equals(lastFamilyId)) {
+        lastFamilyId = columns[0];
+        families.add(new Object[] { columns[2] });
+      }
+    }
+    // NB: Derby does not return the generated keys of a batch.  With
+    // the table locked, the new rows are the ones above the current
+    // maximum, in the order of insertion.
+    jdbcTemplate.getJdbcOperations().execute("LOCK TABLE Family IN EXCLUSIVE MODE");
+    final int maxBefore = jdbcTemplate.queryForInt("SELECT COALESCE(MAX(id), 0) FROM Family");
+    batchUpdate("INSERT INTO Family (name) VALUES (?)", families);
+    final List<Integer> familyKeys = jdbcTemplate.query(
+      "SELECT id FROM Family WHERE id > ? ORDER BY id", familyKeyMapper, maxBefore);
+    if (familyKeys.size() != families.size())
+      throw new IllegalStateException("Inconsistent DB?");
+    msgout.println("Created " + familyKeys.size() + " family records.");
+
+    final List<Object[]> persons = new ArrayList<Object[]>(personLines.size());
+    lastFamilyId = null;
+    int familyIndex = -1;
+    for (String[] columns: personLines) {
+      if (!columns[0].equals(lastFamilyId)) {
+        lastFamilyId = columns[0];
+        familyIndex++;
+      }
+      final java.util.Date deletionDate;
+      try {
+        deletionDate = (columns.length <= 5 || StringUtil.isWhitespace(columns[5])) ? null : DateUtil.parseShortDate(columns[5]);
+      } catch (java.text.ParseException e) {
+        throw new IllegalStateException(e);  // already validated
+      }
+      persons.add(new Object[] { familyKeys.get(familyIndex), columns[1], columns[2], columns[3], columns[4], deletionDate });
+    }
+    batchUpdate("INSERT INTO Person (family_id, type, name, katakana, romaji, deletion_date) VALUES (?,?,?,?,?,?)", persons);
+  }
+
+  // 逐次登録で一度にコミットする利用者の数の目安。
+  static private final int COMMIT_SIZE = 200;
+
+  /**
+   * Reads person records and commits them in chunks as they are
+   * read, so that the memory use is bounded and the progress can be
+   * watched.  Unlike {@link #commit}, invalid lines are reported and
+   * skipped while the valid ones are registered.  A family is never
+   * split across chunks.
+   */
+  public void importPersonRecords(InputStream inputStream, final ImportProgress progress) throws IOException {
+    final List<String[]> chunk = new ArrayList<String[]>();
+    try {
+      CSVPipeline.run(makeCSVReader(inputStream), personStage, new CSVPipeline.Sink<String[]>() {
+          private String lastFamilyId = null;
+          public void accept(int lineno, String[] columns, String[] value, Exception e) {
+            progress.parsed();
+            if (e != null) {
+              error(e.getMessage(), columns, lineno);
+              progress.error();
+            } else if (value != null) {
+              if (!value[0].equals(lastFamilyId) && chunk.size() >= COMMIT_SIZE)
+                commitPersons(chunk, progress);
+              lastFamilyId = value[0];
+              chunk.add(value);
+            }
+          }
+        });
+      commitPersons(chunk, progress);
+    } finally {
+      progress.finished();
+      RecordCache.forPersons(dataSource).invalidateAll();
+    }
+    msgout.println(progress);
+  }
+
+  private void commitPersons(final List<String[]> chunk, ImportProgress progress) {
+    if (chunk.isEmpty())
+      return;
+    DBUtil.makeTransactionTemplate(dataSource).execute(new TransactionCallback() {
+        public Object doInTransaction(TransactionStatus status) {
+          insertPersons(chunk);
+          return null;
+        }
+      });
+    progress.inserted(chunk.size());
+    chunk.clear();
+    msgout.println(progress);
+    msgout.flush();
+  }
+
+  static private final ParameterizedRowMapper<Integer> familyKeyMapper = new ParameterizedRowMapper<Integer>() {
+    public Integer mapRow(ResultSet rs, int rowNum) throws SQLException {
+      return rs.getInt(1);
+    }
+  };
+
+  private void insertBooks() {
+    if (bookRecords.isEmpty())
+      return;
+    final List<Object[]> books = new ArrayList<Object[]>(bookRecords.size());
+    final List<Object[]> ngrams = new ArrayList<Object[]>();
+    final Map<String,Integer> lastIds = new HashMap<String,Integer>();
+    for (BookRecord record : bookRecords) {
+      books.add(DBUtil.getInsertBookArguments(record));
+      BookSearchIndex.addEntries(ngrams, record.getId(),
+        record.getTitle(), record.getKatakanaTitle(), DBUtil.truncate(record.getAuthors(), 128));
+      final String category = DBUtil.getCategory(record.getId());
+      final int id = DBUtil.getBookNumber(record.getId());
+      final Integer v = lastIds.get(category);
+      if (v == null || id > v)
+        lastIds.put(category, id);
+    }
+    batchUpdate(DBUtil.INSERT_BOOK_SQL, books);
+    batchUpdate(BookSearchIndex.INSERT_SQL, ngrams);
+    for (Map.Entry<String,Integer> e : lastIds.entrySet())
+      DBUtil.setLastIdIfLarger(jdbcTemplate, e.getKey(), e.getValue());
+  }
+
+  private void batchUpdate(String sql, List<Object[]> args) {
+    for (int i = 0; i < args.size(); i += BATCH_SIZE)
+      jdbcTemplate.batchUpdate(sql, args.subList(i, Math.min(i + BATCH_SIZE, args.size())));
+  }
+} // BulkImporter
@@ -0,0 +1,124 @@
+package org.tomokiyo.pjs.server;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * CSV の読み込みのパイプライン。
+ *
+ * 呼び出し側のスレッドが CSVReader から行を読んで CHUNK_SIZE 行ずつ
+ * worker に渡し、正規化と検証を並列に行なう。結果は読んだ順に同じ
+ * スレッドで Sink に渡すので、Sink は (DB への書き込みを含めて)
+ * スレッドセーフでなくてよい。処理中のチャンクの数には上限があるので、
+ * 大きなファイルでもメモリ使用量は一定。
+ *
+ * Stage はスレッドセーフであること。
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+final class CSVPipeline {
+  /**
+   * Normalizes and validates one line.  Runs on the worker threads.
+   */
+  static interface Stage<T> {
+    /**
+     * Returns the parsed value, or null to skip the line.  The
+     * message of the exception is reported as the error of the line.
+     */
+    T process(String[] columns) throws Exception;
+  }
+
+  /**
+   * Receives the results in the order of the lines.
+   */
+  static interface Sink<T> {
+    /** error is non-null if the line is invalid, value is null if skipped. */
+    void accept(int lineno, String[] columns, T value, Exception error);
+  }
+
+  static private final int CHUNK_SIZE = 200;
+  static private final int NUM_THREADS =
+    Integer.getInteger("pjs.import.threads", Runtime.getRuntime().availableProcessors());
+  // 先読みするチャンクの数。
+  static private final int MAX_PENDING = NUM_THREADS * 2;
+
+  static private final ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS, new ThreadFactory() {
+      private int count = 0;
+      public synchronized Thread newThread(Runnable r) {
+        final Thread t = new Thread(r, "csv-worker-" + (++count));
+        t.setDaemon(true);
+        return t;
+      }
+    });
+
+  private CSVPipeline() {}
+
+  static private final class Row<T> {
+    final int lineno;
+    final String[] columns;
+    T value;
+    Exception error;
+    Row(int lineno, String[] columns) {
+      this.lineno = lineno;
+      this.columns = columns;
+    }
+  }
+
+  /**
+   * Reads all the lines and passes them to the sink.
+   */
+  static <T> void run(CSVReader reader, final Stage<T> stage, Sink<T> sink) throws IOException {
+    final LinkedList<Future<List<Row<T>>>> pending = new LinkedList<Future<List<Row<T>>>>();
+    int lineno = 0;
+    while (true) {
+      final List<Row<T>> chunk = new ArrayList<Row<T>>(CHUNK_SIZE);
+      String[] columns;    // an array of values from the line
+      while (chunk.size() < CHUNK_SIZE && (columns = reader.readNext()) != null)
+        chunk.add(new Row<T>(++lineno, columns));
+      if (chunk.isEmpty())
+        break;
+      pending.add(executor.submit(new Callable<List<Row<T>>>() {
+          public List<Row<T>> call() {
+            for (Row<T> row : chunk) {
+              try {
+                row.value = stage.process(row.columns);
+              } catch (Exception e) {
+                row.error = e;
+              }
+            }
+            return chunk;
+          }
+        }));
+      if (pending.size() >= MAX_PENDING)
+        drain(pending.removeFirst(), sink);
+    }
+    while (!pending.isEmpty())
+      drain(pending.removeFirst(), sink);
+  }
+
+  static private <T> void drain(Future<List<Row<T>>> future, Sink<T> sink) throws IOException {
+    final List<Row<T>> chunk;
+    try {
+      chunk = future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+    for (Row<T> row : chunk)
+      sink.accept(row.lineno, row.columns, row.value, row.error);
+  }
+} // CSVPipeline
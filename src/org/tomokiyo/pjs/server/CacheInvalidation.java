@@ -0,0 +1,194 @@
+package org.tomokiyo.pjs.server;
+
+import org.tomokiyo.pjs.client.BookRecord;
+import org.tomokiyo.pjs.client.PersonRecord;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import javax.sql.DataSource;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 複数の Web サーバ (node) が一つの DB を共有する場合の {@link RecordCache}
+ * の無効化。
+ *
+ * 各 node は自分のキャッシュの無効化を CacheInvalidation テーブルに書き、
+ * 他の node が書いたものを定期的に読んで自分のキャッシュに反映する。
+ * 書き込み時刻 (DB サーバの時刻) で読むので、コミットが遅れた行も
+ * LOOKBACK_MILLIS 以内なら拾う (既に反映したものは seq で除く)。
+ * 古い行は RETENTION_MILLIS 後に消す。
+ *
+ * Configured by the system properties below (defaults in parentheses):
+ * <ul>
+ *  <li>pjs.node.id (pid@host): the name of this node.
+ *  <li>pjs.cache.invalidation.pollMillis (1000): how often to read the others' invalidations.
+ * </ul>
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public final class CacheInvalidation implements RecordCache.InvalidationListener {
+  static public final String CREATE_TABLE_SQL = "CREATE TABLE CacheInvalidation(" +
+    "seq BIGINT GENERATED ALWAYS AS IDENTITY CONSTRAINT cache_invalidation_pk PRIMARY KEY," +
+    "cache_name VARCHAR(16) NOT NULL," +
+    "record_key VARCHAR(20)," +  // NULL: all the records
+    "node VARCHAR(64) NOT NULL," +
+    "created TIMESTAMP NOT NULL DEFAULT CURRENT TIMESTAMP)";
+
+  static public final String CREATE_INDEX_SQL = "CREATE INDEX cache_invalidation_idx ON CacheInvalidation(created)";
+
+  static private final long LOOKBACK_MILLIS = 30 * 1000L;
+  static private final long RETENTION_MILLIS = 60 * 60 * 1000L;
+
+  private final SimpleJdbcTemplate jdbcTemplate;
+  private final String nodeId;
+  private final RecordCache<String,BookRecord> books;
+  private final RecordCache<Integer,PersonRecord> persons;
+
+  // DB time of the last poll, and the entries applied since LOOKBACK_MILLIS before it (seq -> created).
+  private Timestamp lastPoll;
+  private final Map<Long,Long> applied = new HashMap<Long,Long>();
+  private long lastPruned = 0;
+  private ScheduledExecutorService scheduler = null;
+
+  // Statistics.
+  private final AtomicLong numPublished = new AtomicLong();
+  private final AtomicLong numReceived = new AtomicLong();
+  private final AtomicLong numErrors = new AtomicLong();
+
+  /**
+   * Starts publishing the invalidations of the caches of the DataSource.
+   */
+  public CacheInvalidation(DataSource dataSource, String nodeId) {
+    this.jdbcTemplate = new SimpleJdbcTemplate(dataSource);
+    this.nodeId = nodeId;
+    this.books = RecordCache.forBooks(dataSource);
+    this.persons = RecordCache.forPersons(dataSource);
+    this.lastPoll = now();  // the caches are empty (or stale anyway) before this.
+    books.setInvalidationListener(this);
+    persons.setInvalidationListener(this);
+  }
+
+  /**
+   * The "pjs.node.id" system property, or "pid@host" of the JVM.
+   */
+  static public String getDefaultNodeId() {
+    final String id = System.getProperty("pjs.node.id",
+                                         java.lang.management.ManagementFactory.getRuntimeMXBean().getName());
+    return (id.length() > 64) ? id.substring(0, 64) : id;
+  }
+
+  private Timestamp now() {
+    return (Timestamp) jdbcTemplate.getJdbcOperations().queryForObject("VALUES CURRENT_TIMESTAMP", Timestamp.class);
+  }
+
+  public void invalidated(String cacheName, Object key) {
+    try {
+      if (key == null)
+        jdbcTemplate.update("INSERT INTO CacheInvalidation (cache_name, node) VALUES (?, ?)", cacheName, nodeId);
+      else
+        jdbcTemplate.update("INSERT INTO CacheInvalidation (cache_name, record_key, node) VALUES (?, ?, ?)",
+                            cacheName, key.toString(), nodeId);
+      numPublished.incrementAndGet();
+    } catch (DataAccessException e) {
+      // NB: 変更自体は保存済みなので、呼び出し側は失敗させない。
+      numErrors.incrementAndGet();
+      System.err.println("Failed to publish the invalidation of " + cacheName + "/" + key + ": " + e);
+    }
+  }
+
+  /**
+   * Applies the invalidations made by the other nodes since the last
+   * call and returns the number of them.
+   */
+  public synchronized int poll() {
+    final Timestamp now = now();
+    final long since = lastPoll.getTime() - LOOKBACK_MILLIS;
+    final int[] count = new int[1];
+    jdbcTemplate.getJdbcOperations().query(
+      "SELECT seq, cache_name, record_key, created FROM CacheInvalidation WHERE created >= ? AND node <> ?",
+      new Object[] { new Timestamp(since), nodeId },
+      new RowCallbackHandler() {
+        public void processRow(ResultSet rs) throws SQLException {
+          final long seq = rs.getLong(1);
+          if (applied.containsKey(seq))
+            return;
+          applied.put(seq, rs.getTimestamp(4).getTime());
+          apply(rs.getString(2), rs.getString(3));
+          count[0]++;
+        }
+      });
+    lastPoll = now;
+    for (Iterator<Long> it = applied.values().iterator(); it.hasNext(); )
+      if (it.next() < since)
+        it.remove();
+    if (now.getTime() - lastPruned > RETENTION_MILLIS / 10) {
+      jdbcTemplate.update("DELETE FROM CacheInvalidation WHERE created < ?", new Timestamp(now.getTime() - RETENTION_MILLIS));
+      lastPruned = now.getTime();
+    }
+    numReceived.addAndGet(count[0]);
+    return count[0];
+  }
+
+  private void apply(String cacheName, String key) {
+    if (books.getName().equals(cacheName)) {
+      if (key == null) books.invalidateAllLocally(); else books.addedLocally(key);
+    } else if (persons.getName().equals(cacheName)) {
+      if (key == null) persons.invalidateAllLocally(); else persons.addedLocally(Integer.valueOf(key));
+    }
+  }
+
+  /**
+   * Polls every intervalMillis in a background thread.
+   */
+  public synchronized void start(long intervalMillis) {
+    if (scheduler != null)
+      return;
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          final Thread t = new Thread(r, "pjs-cache-invalidation");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          try {
+            poll();
+          } catch (RuntimeException e) {
+            numErrors.incrementAndGet();
+            System.err.println("Failed to read the cache invalidations: " + e);
+          }
+        }
+      }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized void stop() {
+    if (scheduler == null)
+      return;
+    scheduler.shutdownNow();
+    scheduler = null;
+  }
+
+  /**
+   * Summary of the statistics in one line.
+   */
+  public String getStatistics() {
+    return "node=" + nodeId
+      + ", published=" + numPublished.get()
+      + ", received=" + numReceived.get()
+      + ", errors=" + numErrors.get();
+  }
+} // CacheInvalidation
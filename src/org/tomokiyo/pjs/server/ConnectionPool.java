@@ -0,0 +1,527 @@
+package org.tomokiyo.pjs.server;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sql.DataSource;
+
+/**
+ * A small bounded connection pool in front of a non-pooled DataSource.
+ *
+ * The pool hands out proxies of physical connections; closing a proxy
+ * returns the physical connection to the pool instead of closing it.
+ * Each physical connection also keeps a small LRU cache of
+ * PreparedStatements keyed by SQL, so that statements issued through
+ * JdbcTemplate are not re-prepared on every call.
+ *
+ * Configured by the system properties below (defaults in parentheses):
+ * <ul>
+ *  <li>pjs.db.pool.minSize (2): connections opened on the first use.
+ *  <li>pjs.db.pool.maxSize (10): upper bound of the open connections.
+ *  <li>pjs.db.pool.maxWaitMillis (10000): how long a caller waits for a free connection.
+ *  <li>pjs.db.pool.validationQuery ("VALUES 1"): query to check an idle connection.
+ *  <li>pjs.db.pool.validationIntervalMillis (30000): idle time after which a connection is validated.
+ *  <li>pjs.db.pool.statementCacheSize (32): cached PreparedStatements per connection.
+ *  <li>pjs.db.pool.isolation (driver default): e.g. READ_COMMITTED, READ_UNCOMMITTED.
+ * </ul>
+ * Derby's own compiled plan cache is sized by "derby.language.statementCacheSize".
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public final class ConnectionPool implements DataSource {
+  private final DataSource dataSource;
+  private final int minSize;
+  private final int maxSize;
+  private final long maxWaitMillis;
+  private final String validationQuery;
+  private final long validationIntervalMillis;
+  private final int statementCacheSize;
+  private volatile int defaultTransactionIsolation = -1;  // -1: the driver's default
+  private volatile boolean defaultReadOnly = false;
+
+  // Number of connections which can still be borrowed.
+  private final Semaphore permits;
+
+  // Idle physical connections, most recently returned first.
+  private final LinkedList<PhysicalConnection> idle = new LinkedList<PhysicalConnection>();
+
+  private boolean initialized = false;
+  private volatile boolean closed = false;
+
+  // Statistics.
+  private final AtomicLong numCreated = new AtomicLong();
+  private final AtomicLong numBorrowed = new AtomicLong();
+  private final AtomicLong numDiscarded = new AtomicLong();
+  private final AtomicLong numStatementCacheHits = new AtomicLong();
+  private final AtomicLong numStatementCacheMisses = new AtomicLong();
+
+  public ConnectionPool(DataSource dataSource,
+                        int minSize,
+                        int maxSize,
+                        long maxWaitMillis,
+                        String validationQuery,
+                        long validationIntervalMillis,
+                        int statementCacheSize) {
+    if (maxSize <= 0 || minSize < 0 || minSize > maxSize)
+      throw new IllegalArgumentException("Invalid pool size: min=" + minSize + ", max=" + maxSize);
+    this.dataSource = dataSource;
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+    this.maxWaitMillis = maxWaitMillis;
+    this.validationQuery = validationQuery;
+    this.validationIntervalMillis = validationIntervalMillis;
+    this.statementCacheSize = statementCacheSize;
+    this.permits = new Semaphore(maxSize, true);
+  }
+
+  /**
+   * Create a pool over the given DataSource configured by the
+   * "pjs.db.pool.*" system properties.
+   */
+  static public ConnectionPool create(DataSource dataSource) {
+    return create(dataSource, "pjs.db.pool.");
+  }
+
+  /**
+   * Same as above, but reads the properties with the given prefix
+   * so that more than one pool can be configured independently.
+   */
+  static public ConnectionPool create(DataSource dataSource, String prefix) {
+    final ConnectionPool pool = new ConnectionPool(dataSource,
+        Integer.getInteger(prefix + "minSize", 2),
+        Integer.getInteger(prefix + "maxSize", 10),
+        Long.getLong(prefix + "maxWaitMillis", 10000L),
+        System.getProperty(prefix + "validationQuery", "VALUES 1"),
+        Long.getLong(prefix + "validationIntervalMillis", 30000L),
+        Integer.getInteger(prefix + "statementCacheSize", 32));
+    final String isolation = System.getProperty(prefix + "isolation");
+    if (isolation != null)
+      pool.setDefaultTransactionIsolation(parseIsolation(isolation));
+    return pool;
+  }
+
+  /**
+   * Returns the Connection.TRANSACTION_* constant of the name
+   * (e.g. "READ_COMMITTED").
+   */
+  static public int parseIsolation(String name) {
+    if ("READ_UNCOMMITTED".equals(name)) return Connection.TRANSACTION_READ_UNCOMMITTED;
+    if ("READ_COMMITTED".equals(name)) return Connection.TRANSACTION_READ_COMMITTED;
+    if ("REPEATABLE_READ".equals(name)) return Connection.TRANSACTION_REPEATABLE_READ;
+    if ("SERIALIZABLE".equals(name)) return Connection.TRANSACTION_SERIALIZABLE;
+    throw new IllegalArgumentException("Unknown isolation level: " + name);
+  }
+
+  /**
+   * Sets the isolation level of the connections opened from now on.
+   * Call this before the first getConnection().
+   */
+  public void setDefaultTransactionIsolation(int level) {
+    this.defaultTransactionIsolation = level;
+  }
+
+  /**
+   * Makes the connections opened from now on read-only.  Call this
+   * before the first getConnection().
+   */
+  public void setDefaultReadOnly(boolean readOnly) {
+    this.defaultReadOnly = readOnly;
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public Connection getConnection() throws SQLException {
+    if (closed)
+      throw new SQLException("The connection pool is closed.");
+    prefillIfNecessary();
+    try {
+      if (!permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS))
+        throw new SQLException("Timed out waiting for a database connection (max " + maxSize + ").");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a database connection.");
+    }
+    try {
+      final PhysicalConnection pc = borrowPhysicalConnection();
+      numBorrowed.incrementAndGet();
+      return pc.newHandle();
+    } catch (SQLException e) {
+      permits.release();
+      throw e;
+    } catch (RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Not supported: the pooled connections are all opened by the
+   * underlying DataSource with its own credentials.
+   */
+  public Connection getConnection(String username, String password) throws SQLException {
+    throw new SQLException("The connection pool is bound to the credentials of its DataSource.");
+  }
+
+  // Open minSize connections on the first use.
+  private void prefillIfNecessary() throws SQLException {
+    synchronized (idle) {
+      if (initialized) return;
+      initialized = true;
+      for (int i = 0; i < minSize; i++)
+        idle.addLast(new PhysicalConnection(openPhysicalConnection()));
+    }
+  }
+
+  private Connection openPhysicalConnection() throws SQLException {
+    final Connection conn = dataSource.getConnection();
+    numCreated.incrementAndGet();
+    try {
+      if (defaultTransactionIsolation != -1)
+        conn.setTransactionIsolation(defaultTransactionIsolation);
+      if (defaultReadOnly)
+        conn.setReadOnly(true);
+    } catch (SQLException e) {
+      conn.close();
+      throw e;
+    }
+    return conn;
+  }
+
+  private PhysicalConnection borrowPhysicalConnection() throws SQLException {
+    while (true) {
+      final PhysicalConnection pc;
+      synchronized (idle) {
+        pc = idle.poll();
+      }
+      if (pc == null)
+        return new PhysicalConnection(openPhysicalConnection());
+      if (pc.isUsable())
+        return pc;
+      discard(pc);
+    }
+  }
+
+  // Called when a handle is closed.
+  private void release(PhysicalConnection pc) {
+    try {
+      if (closed || pc.broken || !pc.reset()) {
+        discard(pc);
+      } else {
+        pc.lastReturned = System.currentTimeMillis();
+        synchronized (idle) {
+          idle.addFirst(pc);
+        }
+      }
+    } finally {
+      permits.release();
+    }
+  }
+
+  private void discard(PhysicalConnection pc) {
+    numDiscarded.incrementAndGet();
+    pc.closeQuietly();
+  }
+
+  /**
+   * Close all the idle connections and refuse further requests.
+   * Connections in use are closed when they are returned.
+   */
+  public void close() {
+    closed = true;
+    synchronized (idle) {
+      for (PhysicalConnection pc: idle)
+        pc.closeQuietly();
+      idle.clear();
+    }
+  }
+
+  /**
+   * Summary of the pool statistics in one line.
+   */
+  public String getStatistics() {
+    final int numIdle;
+    synchronized (idle) {
+      numIdle = idle.size();
+    }
+    return "max=" + maxSize
+      + ", inUse=" + (maxSize - permits.availablePermits())
+      + ", idle=" + numIdle
+      + ", created=" + numCreated.get()
+      + ", borrowed=" + numBorrowed.get()
+      + ", discarded=" + numDiscarded.get()
+      + ", stmtCacheHits=" + numStatementCacheHits.get()
+      + ", stmtCacheMisses=" + numStatementCacheMisses.get();
+  }
+
+  public String toString() {
+    return "ConnectionPool(" + getStatistics() + ")";
+  }
+
+  // SQLState class "08" is a connection exception.
+  static private final boolean isFatal(Throwable t) {
+    if (!(t instanceof SQLException)) return false;
+    final String state = ((SQLException)t).getSQLState();
+    return state != null && state.startsWith("08");
+  }
+
+  /**
+   * A physical connection with its statement cache.
+   */
+  private final class PhysicalConnection {
+    private final Connection conn;
+    private final int defaultIsolation;
+    private final LinkedHashMap<String,PreparedStatement> statementCache;
+    private long lastReturned = System.currentTimeMillis();
+    private boolean broken = false;
+    private boolean dirty = false;  // isolation or read-only flag changed.
+
+    PhysicalConnection(Connection conn) throws SQLException {
+      this.conn = conn;
+      this.defaultIsolation = conn.getTransactionIsolation();
+      this.statementCache = new LinkedHashMap<String,PreparedStatement>(16, 0.75f, true) {
+          protected boolean removeEldestEntry(Map.Entry<String,PreparedStatement> eldest) {
+            if (size() <= statementCacheSize) return false;
+            closeQuietly(eldest.getValue());
+            return true;
+          }
+        };
+    }
+
+    Connection newHandle() {
+      return (Connection)Proxy.newProxyInstance(
+        ConnectionPool.class.getClassLoader(),
+        new Class<?>[] { Connection.class },
+        new ConnectionHandler(this));
+    }
+
+    boolean isUsable() {
+      if (System.currentTimeMillis() - lastReturned < validationIntervalMillis)
+        return true;
+      try {
+        if (conn.isClosed()) return false;
+        if (validationQuery == null || validationQuery.length() == 0) return true;
+        final Statement s = conn.createStatement();
+        try {
+          s.execute(validationQuery);
+        } finally {
+          s.close();
+        }
+        return true;
+      } catch (SQLException e) {
+        return false;
+      }
+    }
+
+    // Restore the default state before returning to the pool.
+    boolean reset() {
+      try {
+        if (!conn.getAutoCommit()) {
+          conn.rollback();
+          conn.setAutoCommit(true);
+        }
+        if (dirty) {
+          conn.setTransactionIsolation(defaultIsolation);
+          conn.setReadOnly(defaultReadOnly);
+          dirty = false;
+        }
+        conn.clearWarnings();
+        return true;
+      } catch (SQLException e) {
+        return false;
+      }
+    }
+
+    PreparedStatement takeCachedStatement(String sql) {
+      synchronized (statementCache) {
+        final PreparedStatement ps = statementCache.remove(sql);
+        if (ps != null) numStatementCacheHits.incrementAndGet(); else numStatementCacheMisses.incrementAndGet();
+        return ps;
+      }
+    }
+
+    // Return true if the statement was cached.
+    boolean returnCachedStatement(String sql, PreparedStatement ps) {
+      if (statementCacheSize <= 0 || broken) return false;
+      try {
+        ps.clearParameters();
+        ps.clearWarnings();
+      } catch (SQLException e) {
+        return false;
+      }
+      synchronized (statementCache) {
+        if (statementCache.containsKey(sql)) return false;  // prepared twice; keep the older one.
+        statementCache.put(sql, ps);
+        return true;
+      }
+    }
+
+    void closeQuietly() {
+      synchronized (statementCache) {
+        for (Iterator<PreparedStatement> it = statementCache.values().iterator(); it.hasNext(); )
+          closeQuietly(it.next());
+        statementCache.clear();
+      }
+      try {
+        conn.close();
+      } catch (SQLException e) {
+        // ignore
+      }
+    }
+
+    private void closeQuietly(Statement s) {
+      try {
+        s.close();
+      } catch (SQLException e) {
+        // ignore
+      }
+    }
+  } // PhysicalConnection
+
+  /**
+   * The handle given to the users of the pool.
+   */
+  private final class ConnectionHandler implements InvocationHandler {
+    private PhysicalConnection pc;
+
+    ConnectionHandler(PhysicalConnection pc) {
+      this.pc = pc;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      final String name = method.getName();
+      if ("equals".equals(name))
+        return Boolean.valueOf(proxy == args[0]);
+      if ("hashCode".equals(name))
+        return Integer.valueOf(System.identityHashCode(proxy));
+      if ("toString".equals(name))
+        return "Pooled(" + (pc == null ? "closed" : pc.conn.toString()) + ")";
+      if ("isClosed".equals(name))
+        return Boolean.valueOf(pc == null);
+      if ("close".equals(name)) {
+        if (pc != null) {
+          final PhysicalConnection returned = pc;
+          pc = null;
+          release(returned);
+        }
+        return null;
+      }
+      if (pc == null)
+        throw new SQLException("Connection is already returned to the pool.");
+      if ("setTransactionIsolation".equals(name) || "setReadOnly".equals(name))
+        pc.dirty = true;
+      if ("prepareStatement".equals(name) && args.length == 1) {
+        final String sql = (String)args[0];
+        PreparedStatement ps = pc.takeCachedStatement(sql);
+        if (ps == null) ps = (PreparedStatement)invokeOnPhysical(method, args);
+        return Proxy.newProxyInstance(
+          ConnectionPool.class.getClassLoader(),
+          new Class<?>[] { PreparedStatement.class },
+          new StatementHandler(pc, sql, ps));
+      }
+      return invokeOnPhysical(method, args);
+    }
+
+    private Object invokeOnPhysical(Method method, Object[] args) throws Throwable {
+      try {
+        return method.invoke(pc.conn, args);
+      } catch (InvocationTargetException e) {
+        if (isFatal(e.getCause())) pc.broken = true;
+        throw e.getCause();
+      }
+    }
+  } // ConnectionHandler
+
+  /**
+   * A cached PreparedStatement whose close() puts it back to the cache.
+   */
+  private final class StatementHandler implements InvocationHandler {
+    private final PhysicalConnection pc;
+    private final String sql;
+    private final PreparedStatement ps;
+    private boolean closed = false;
+    private boolean cacheable = true;
+
+    StatementHandler(PhysicalConnection pc, String sql, PreparedStatement ps) {
+      this.pc = pc;
+      this.sql = sql;
+      this.ps = ps;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      final String name = method.getName();
+      if ("equals".equals(name))
+        return Boolean.valueOf(proxy == args[0]);
+      if ("hashCode".equals(name))
+        return Integer.valueOf(System.identityHashCode(proxy));
+      if ("isClosed".equals(name))
+        return Boolean.valueOf(closed);
+      if ("close".equals(name)) {
+        if (!closed) {
+          closed = true;
+          if (!cacheable || !pc.returnCachedStatement(sql, ps))
+            ps.close();
+        }
+        return null;
+      }
+      if (closed)
+        throw new SQLException("Statement is already closed.");
+      // Statement-level settings (setFetchSize(), setMaxRows(), ...) would
+      // leak to the next user, so such a statement is not cached.
+      if (name.startsWith("set") && args != null && args.length == 1)
+        cacheable = false;
+      try {
+        return method.invoke(ps, args);
+      } catch (InvocationTargetException e) {
+        if (isFatal(e.getCause())) pc.broken = true;
+        throw e.getCause();
+      }
+    }
+  } // StatementHandler
+
+  ////////////////////////////////////////////////////////////////////////
+  // The rest of javax.sql.DataSource.
+
+  public PrintWriter getLogWriter() throws SQLException {
+    return dataSource.getLogWriter();
+  }
+
+  public void setLogWriter(PrintWriter out) throws SQLException {
+    dataSource.setLogWriter(out);
+  }
+
+  public void setLoginTimeout(int seconds) throws SQLException {
+    dataSource.setLoginTimeout(seconds);
+  }
+
+  public int getLoginTimeout() throws SQLException {
+    return dataSource.getLoginTimeout();
+  }
+
+  public java.util.logging.Logger getParentLogger() throws java.sql.SQLFeatureNotSupportedException {
+    throw new java.sql.SQLFeatureNotSupportedException();
+  }
+
+  public <T> T unwrap(Class<T> iface) throws SQLException {
+    if (iface.isInstance(this)) return iface.cast(this);
+    return dataSource.unwrap(iface);
+  }
+
+  public boolean isWrapperFor(Class<?> iface) throws SQLException {
+    return iface.isInstance(this) || dataSource.isWrapperFor(iface);
+  }
+} // ConnectionPool
@@ -5,8 +5,10 @@ import com.google.gwt.user.server.rpc.RemoteServiceServlet;
 import org.tomokiyo.pjs.client.DBLookupService;
 import org.tomokiyo.pjs.client.BookRecord;
 import org.tomokiyo.pjs.client.BookRentalHistoryRecord;
+import org.tomokiyo.pjs.client.ConcurrentUpdateException;
 import org.tomokiyo.pjs.client.PersonRecord.Type;
 import org.tomokiyo.pjs.client.PersonRecord;
+import org.tomokiyo.pjs.client.ResultPage;
 
 import java.util.*;
 import java.io.*;
@@ -16,10 +18,12 @@ import javax.sql.DataSource;
 
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementCreator;
-import org.springframework.jdbc.core.simple.ParameterizedRowMapper;
 import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
 
 // http://static.springframework.org/spring/docs/2.5.x/api/org/springframework/jdbc/core/simple/SimpleJdbcTemplate.html
 // http://static.springframework.org/spring/docs/2.0.x/reference/jdbc.html
@@ -31,19 +35,49 @@ import org.springframework.jdbc.support.KeyHolder;
  */
 public class DBLookupServiceImpl extends RemoteServiceServlet implements DBLookupService {
   private final SimpleJdbcTemplate jdbcTemplate;
+  private final TransactionTemplate transactionTemplate;
+  private final RecordCache<String,BookRecord> bookCache;
+  private final RecordCache<Integer,PersonRecord> personCache;
+  private final BookIdAllocator bookIdAllocator;
+  private final MutationJournal journal;
+  private final LoanPolicy loanPolicy = LoanPolicy.getDefault();
 
   /**
-   * Creates a new <code>DBLookupServiceImpl</code> instance.
+   * 検索候補がこれより多い場合は絞り込みの効果が薄いので LIKE のみで検索する。
+   */
+  static private final int MAX_SEARCH_CANDIDATES = InList.MAX_SIZE;
+
+  /**
+   * 貸出・返却時に図書ID毎にとるロック (すべてのインスタンスで共有)。
+   * The number of stripes is set by "pjs.circulation.lockStripes" (64).
+   */
+  static final StripedLock circulationLocks = new StripedLock(Integer.getInteger("pjs.circulation.lockStripes", 64));
+
+  /**
+   * Creates a new <code>DBLookupServiceImpl</code> instance which
+   * does not record the mutations.
    */
   public DBLookupServiceImpl(DataSource dataSource) {
+    this(dataSource, MutationJournal.NONE);
+  }
+
+  /**
+   * Creates a new <code>DBLookupServiceImpl</code> instance.
+   */
+  public DBLookupServiceImpl(DataSource dataSource, MutationJournal journal) {
+    this.journal = journal;
     this.jdbcTemplate = new SimpleJdbcTemplate(dataSource);
+    this.transactionTemplate = DBUtil.makeTransactionTemplate(dataSource);
+    this.bookCache = RecordCache.forBooks(dataSource);
+    this.personCache = RecordCache.forPersons(dataSource);
+    this.bookIdAllocator = BookIdAllocator.forDataSource(dataSource);
   }
 
   /**
    * Creates a new <code>DBLookupServiceImpl</code> instance.
    */
   public DBLookupServiceImpl() {
-    this(DBUtil.makeDataSource(false));
+    this(DBUtil.getDataSource(), MutationJournal.getDefault());
     // this(DBUtil.getDataSourceFromJNDI());
   }
 
@@ -51,11 +85,7 @@ public class DBLookupServiceImpl extends RemoteServiceServlet implements DBLooku
    * 利用者のIDによる検索。削除されたものも検索可能。
    */
   public PersonRecord lookupUserByID(final int id) {
-    return queryForObjectOrNull(
-      DBUtil.PersonRecordMapper.getSelectStatement() + " WHERE id = ?",
-      // NOTE: "AND deletion_date IS NULL" はここでは不要。
-      new DBUtil.PersonRecordMapper(),
-      id);
+    return personCache.get(id);
   }
 
   /**
@@ -100,39 +130,93 @@ public class DBLookupServiceImpl extends RemoteServiceServlet implements DBLooku
    * 指定された家族IDにマッチしたPersonRecordを検索しリストを返す。リストは家族IDと利用者IDでソートされていること(ORDER BY family_id, id)。
    */
   public java.util.List<PersonRecord> findUsersByFamilyId(final int[] familyIds) {
-    final StringBuilder sbuf = new StringBuilder(DBUtil.PersonRecordMapper.getSelectStatement());
-    sbuf.append(" WHERE deletion_date IS NULL AND (");
-    for (int i = 0; i < familyIds.length; i++) {
-      if (i > 0) sbuf.append(" OR");
-      sbuf.append(" family_id = ");
-      sbuf.append(familyIds[i]);
+    // NB: 家族IDを昇順に分割するので、結果をつなげても順序は保たれる。
+    final Set<Integer> ids = new TreeSet<Integer>();
+    for (int familyId : familyIds)
+      ids.add(familyId);
+    final ArrayList<PersonRecord> result = new ArrayList<PersonRecord>();
+    for (List<Integer> chunk : InList.partition(ids)) {
+      result.addAll(jdbcTemplate.query(
+        DBUtil.PersonRecordMapper.getSelectStatement()
+        + " WHERE deletion_date IS NULL AND " + InList.sql("family_id", chunk.size())
+        + " ORDER BY family_id, id",
+        new DBUtil.PersonRecordMapper(), InList.arguments(chunk)));
     }
-    sbuf.append(") ORDER BY family_id, id");
-    return jdbcTemplate.query(sbuf.toString(), new DBUtil.PersonRecordMapper());
+    return result;
   }
 
   /**
    * 本のIDによる検索
    */
   public BookRecord lookupBookByID(final String id) {
-    final String sql = DBUtil.BookRecordMapper.getSelectStatement() + " WHERE id = ?";
-    return queryForObjectOrNull(sql,
-        new DBUtil.BookRecordMapper(), 
-        StringUtil.normalizeBookId(id));
+    return bookCache.get(StringUtil.normalizeBookId(id));
   }
 
   /**
    * One Box 蔵書検索
    */
   public List<BookRecord> searchBooks(final String query, int offset, int max) {
-    final DBUtil.BookPhraseQueryParser parser = new DBUtil.BookPhraseQueryParser(query);
+    final List<Object> args = new ArrayList<Object>();
+    final String where = makeSearchCondition(query, args);
+    if (where == null)
+      return new ArrayList<BookRecord>();
     String sql = DBUtil.BookRecordMapper.getSelectStatement()
-      +" WHERE " + parser.getSQL()
+      +" WHERE " + where
       + " ORDER BY category,sortkey";
     if (offset > 0) sql += " OFFSET "+offset+" ROWS";
     if (max > 0) sql += " FETCH FIRST "+max+" ROWS ONLY";
-    System.out.println("Booksearch SQL: " + sql + " args: " + Arrays.toString(parser.getArguments()));
-    return jdbcTemplate.query(sql, new DBUtil.BookRecordMapper(), parser.getArguments());
+    System.out.println("Booksearch SQL: " + sql + " args: " + args);
+    return jdbcTemplate.query(sql, new DBUtil.BookRecordMapper(), args.toArray());
+  }
+
+  /**
+   * One Box 蔵書検索 (continuationToken の次から max 件)。
+   * (category, sortkey, id) の順に並べ、前のページの最後の図書より後ろだけを
+   * 読むので、何ページ目でも同じコストで済む。
+   */
+  public ResultPage<BookRecord> searchBooksAfter(final String query, String continuationToken, int max) {
+    if (max <= 0)
+      throw new IllegalArgumentException("max must be positive: " + max);
+    final List<Object> args = new ArrayList<Object>();
+    final String where = makeSearchCondition(query, args);
+    if (where == null)
+      return new ResultPage<BookRecord>(new ArrayList<BookRecord>(), null);
+    String sql = DBUtil.BookRecordMapper.getSelectStatement() +" WHERE " + where;
+    if (continuationToken != null) {
+      final String[] key = PageToken.decode(continuationToken, "book", 3);
+      sql += " AND category >= ? AND (category > ? OR sortkey > ? OR (sortkey = ? AND id > ?))";
+      final int sortkey = Integer.parseInt(key[1]);
+      args.addAll(Arrays.asList(key[0], key[0], sortkey, sortkey, key[2]));
+    }
+    sql += " ORDER BY category,sortkey,id FETCH FIRST "+(max+1)+" ROWS ONLY";
+    final ArrayList<BookRecord> books = new ArrayList<BookRecord>(
+      jdbcTemplate.query(sql, new DBUtil.BookRecordMapper(), args.toArray()));
+    if (books.size() <= max)
+      return new ResultPage<BookRecord>(books, null);
+    books.remove(max);
+    final String lastId = books.get(max - 1).getId();
+    return new ResultPage<BookRecord>(books,
+        PageToken.encode("book", DBUtil.getCategory(lastId), DBUtil.getSortKey(lastId), lastId));
+  }
+
+  /**
+   * 蔵書検索の WHERE 句を作る。引数は args に追加する。
+   * 該当する図書が無いことが分かっている場合は null を返す。
+   */
+  private String makeSearchCondition(final String query, final List<Object> args) {
+    final DBUtil.BookPhraseQueryParser parser = new DBUtil.BookPhraseQueryParser(query);
+    // N-gram index で候補を絞り込んでから LIKE で確認する。
+    final Set<String> candidates = BookSearchIndex.findCandidates(jdbcTemplate, parser.getTerms());
+    if (candidates != null && candidates.isEmpty())
+      return null;
+    final StringBuilder where = new StringBuilder();
+    if (candidates != null && candidates.size() <= MAX_SEARCH_CANDIDATES) {
+      where.append(InList.sql("id", candidates.size())).append(" AND ");
+      InList.addArguments(args, candidates);
+    }
+    where.append(parser.getSQL());
+    args.addAll(Arrays.asList(parser.getArguments()));
+    return where.toString();
   }
 
   /**
@@ -142,6 +226,13 @@ public class DBLookupServiceImpl extends RemoteServiceServlet implements DBLooku
     return DBUtil.getUnreturnedBookInfo(jdbcTemplate, constraints, offset, max);
   }
 
+  /**
+   * 貸出中のリスト (continuationToken の次から max 件)。
+   */
+  public ResultPage<BookRentalHistoryRecord> getUnreturnedBookInfoAfter(BookRentalHistoryRecord.Constraints constraints, String continuationToken, int max) {
+    return DBUtil.getUnreturnedBookInfoPage(jdbcTemplate, constraints, continuationToken, max);
+  }
+
 // 上記を範囲を設定にする。
 //   /**
 //    * 本日貸し出された書籍のリスト
@@ -155,31 +246,43 @@ public class DBLookupServiceImpl extends RemoteServiceServlet implements DBLooku
    * 特定ユーザの貸出し履歴/状況の取得。
    */
   public java.util.List<BookRentalHistoryRecord> getRentalHistoryForUsers(final int[] userIds, final boolean unreturnedOnly) {
-    final StringBuilder sbuf = new StringBuilder("(person_id = ?");
-    for (int i = 1; i < userIds.length; i++)
-      sbuf.append(" OR person_id = ?");
-    sbuf.append(")");
-    if (unreturnedOnly)
-      sbuf.append(" AND status = 1");
-    Object[] args = new Object[userIds.length];
-    for (int i = 0; i < userIds.length; i++)
-      args[i] = new Integer(userIds[i]);
-    return DBUtil.getBookRentalHistoryRecords(jdbcTemplate, sbuf.toString(), args);
+    final Set<Integer> ids = new LinkedHashSet<Integer>();
+    for (int userId : userIds)
+      ids.add(userId);
+    return getRentalHistory("person_id", ids, unreturnedOnly);
   }
 
   /**
    * 特定書籍の貸出履歴/状況の取得。
    */
   public java.util.List<BookRentalHistoryRecord> getRentalHistoryForBooks(final Set<String> bookIds, final boolean unreturnedOnly) {
-    final StringBuilder sbuf = new StringBuilder("(book_id = ?");
-    for (int i = 1; i < bookIds.size(); i++)  // note: start from 1.
-      sbuf.append(" OR book_id = ?");
-    sbuf.append(")");
-    if (unreturnedOnly)
-      sbuf.append(" AND status = 1");
-    return DBUtil.getBookRentalHistoryRecords(jdbcTemplate, sbuf.toString(), bookIds.toArray());
+    return getRentalHistory("book_id", bookIds, unreturnedOnly);
   }
 
+  private java.util.List<BookRentalHistoryRecord> getRentalHistory(String column, Set<?> ids, boolean unreturnedOnly) {
+    final ArrayList<BookRentalHistoryRecord> result = new ArrayList<BookRentalHistoryRecord>();
+    final List<? extends List<?>> chunks = InList.partition(ids);
+    for (List<?> chunk : chunks) {
+      final String condition;
+      if (unreturnedOnly && column.equals("book_id"))
+        condition = OpenLoans.condition(chunk.size());  // 貸出中かどうかは OpenLoan の主キーで調べる
+      else
+        condition = InList.sql(column, chunk.size()) + (unreturnedOnly ? " AND status = 1" : "");
+      result.addAll(DBUtil.getBookRentalHistoryRecords(jdbcTemplate, condition, InList.arguments(chunk)));
+    }
+    if (chunks.size() > 1)
+      Collections.sort(result, checkoutOrder);
+    return result;
+  }
+
+  // ORDER BY checkout_date, person_id
+  static private final Comparator<BookRentalHistoryRecord> checkoutOrder = new Comparator<BookRentalHistoryRecord>() {
+    public int compare(BookRentalHistoryRecord a, BookRentalHistoryRecord b) {
+      final int c = a.getCheckoutDate().compareTo(b.getCheckoutDate());
+      return (c != 0) ? c : a.getPersonID() - b.getPersonID();
+    }
+  };
+
 
   /**
    * 貸出処理
@@ -189,135 +292,176 @@ public class DBLookupServiceImpl extends RemoteServiceServlet implements DBLooku
    * @return a <code>boolean</code> value
    */
   public boolean recordRentalEvent(String bookId, final int userId) {
-    bookId = StringUtil.normalizeBookId(bookId);
-    // 既に貸し出していたらエラー
-    final List<BookRentalHistoryRecord> list = DBUtil.getBookRentalHistoryRecords(jdbcTemplate, "status = 1 AND book_id = ?", bookId);
-    if (!list.isEmpty())
-      return false;
-    final String sql = "INSERT INTO CheckoutHistory (book_id, person_id) VALUES (?, ?)";
-    return jdbcTemplate.update(sql, bookId, userId) == 1;
+    return recordRentalEvents(Collections.singletonList(bookId), userId).get(0);
+  }
+
+  /**
+   * 複数図書の貸出処理を、図書ID毎のロックをとり一つのトランザクションで行なう。
+   * 各図書について貸出できたかどうかを同じ順序で返す。
+   * 既に貸し出されていた図書(同じ図書が重複して指定された場合を含む)はfalse。
+   */
+  public List<Boolean> recordRentalEvents(final List<String> bookIds, final int userId) {
+    final List<String> ids = new ArrayList<String>(bookIds.size());
+    for (String bookId : bookIds)
+      ids.add(StringUtil.normalizeBookId(bookId));
+    final ArrayList<Boolean> results = new ArrayList<Boolean>(ids.size());
+    if (ids.isEmpty())
+      return results;
+    final PersonRecord person = personCache.get(userId);
+    final java.sql.Date dueDate = loanPolicy.getDueDate(
+      (person != null) ? person.getType() : PersonRecord.Type.OTHERS, new java.util.Date());
+    // NB: コミットするまでロックを保持する。
+    final StripedLock.Held lock = circulationLocks.lock(ids);
+    try {
+      transactionTemplate.execute(new TransactionCallback() {
+          public Object doInTransaction(TransactionStatus status) {
+            // 貸出中の図書は OpenLoan への INSERT が失敗する。
+            for (String id : ids)
+              results.add(OpenLoans.checkOut(jdbcTemplate, id, userId, dueDate));
+            return null;
+          }
+        });
+    } finally {
+      lock.unlock();
+    }
+    for (int i = 0; i < ids.size(); i++)
+      if (results.get(i))
+        journal.append("checkout", "book", ids.get(i), "person", userId);
+    return results;
   }
 
   /**
    * 返却処理。返却された図書の情報詳細を返す。貸し出されていない場合にはnullを返す。
    */
   public BookRentalHistoryRecord recordReturnEvent(String bookId) {
-    bookId = StringUtil.normalizeBookId(bookId);
-    final List<BookRentalHistoryRecord> list = DBUtil.getBookRentalHistoryRecords(jdbcTemplate, "status = 1 AND book_id = ?", bookId);
-    if (list.isEmpty())  // 貸出記録に無かった。
-      return null;
-    // 記録にあれば返却する。
-    final String sql = "UPDATE CheckoutHistory SET status = 0, returned_date = ? WHERE status = 1 AND book_id = ?";
-    final java.sql.Timestamp now = new java.sql.Timestamp(new java.util.Date().getTime());
-    int count = jdbcTemplate.update(sql, now, bookId);
-    if (count > 1) throw new IllegalStateException("重複して返却されました。図書ID "+bookId);
-    if (count != list.size()) throw new IllegalStateException("Inconsistent DB?");
-    return list.get(0);
+    return recordReturnEvents(Collections.singletonList(bookId)).get(0);
+  }
+
+  /**
+   * 複数図書の返却処理。図書ID毎のロックをとり、一つのトランザクションで、一度の UPDATE で返却する。
+   * 各図書について返却された貸出記録を同じ順序で返す。
+   * 貸し出されていない図書(同じ図書が重複して指定された場合を含む)はnull。
+   */
+  public List<BookRentalHistoryRecord> recordReturnEvents(final List<String> bookIds) {
+    final List<String> ids = new ArrayList<String>(bookIds.size());
+    for (String bookId : bookIds)
+      ids.add(StringUtil.normalizeBookId(bookId));
+    final ArrayList<BookRentalHistoryRecord> results = new ArrayList<BookRentalHistoryRecord>(ids.size());
+    if (ids.isEmpty())
+      return results;
+    final StripedLock.Held lock = circulationLocks.lock(ids);
+    try {
+      transactionTemplate.execute(new TransactionCallback() {
+          public Object doInTransaction(TransactionStatus status) {
+            final Map<String,BookRentalHistoryRecord> openLoans = new HashMap<String,BookRentalHistoryRecord>();
+            final java.sql.Timestamp now = new java.sql.Timestamp(new java.util.Date().getTime());
+            for (List<String> chunk : InList.partition(new LinkedHashSet<String>(ids))) {
+              final String condition = OpenLoans.condition(chunk.size());
+              final List<BookRentalHistoryRecord> list = DBUtil.getBookRentalHistoryRecords(
+                jdbcTemplate, condition, InList.arguments(chunk));
+              if (list.isEmpty())
+                continue;
+              // OpenLoan が指す貸出記録だけを返却する (古い未返却の記録が残っていても返却できるように)。
+              // NB: 同じ本を他のサーバが同時に返却した場合は件数が合わず、ロールバックされる。
+              final List<Object> args = new ArrayList<Object>();
+              args.add(now);
+              InList.addArguments(args, chunk);
+              final int count = jdbcTemplate.update(
+                "UPDATE CheckoutHistory SET status = 0, returned_date = ? WHERE status = 1 AND " + condition,
+                args.toArray());
+              final int deleted = jdbcTemplate.update(
+                "DELETE FROM OpenLoan WHERE " + InList.sql("book_id", chunk.size()), InList.arguments(chunk));
+              if (count != list.size() || deleted != list.size())
+                throw new IllegalStateException("Inconsistent DB? " + list.size() + " loans, "
+                                                + count + " returned, " + deleted + " deleted from OpenLoan");
+              for (BookRentalHistoryRecord record : list)
+                if (openLoans.put(record.getBookID().trim(), record) != null)
+                  throw new IllegalStateException("重複して返却されました。図書ID "+record.getBookID());
+            }
+            for (String id : ids)
+              results.add(openLoans.remove(id));  // null if not checked out (or given twice)
+            return null;
+          }
+        });
+    } finally {
+      lock.unlock();
+    }
+    for (BookRentalHistoryRecord record : results)
+      if (record != null)
+        journal.append("return", "book", record.getBookID().trim(), "person", record.getPersonID());
+    return results;
   }
 
   public String getNextBookId(String category) {
-    final int lastId = DBUtil.getLastIdFor(jdbcTemplate, category);
-    final int nextId = (lastId < 0) ? 1 : lastId + 1;
-    return category + new java.text.DecimalFormat("000").format(nextId);
+    // NB: 表示するだけなので番号は消費しない (登録した時点で使用済みになる)。
+    return bookIdAllocator.peekId(category);
   }
 
   public boolean registerNewBook(BookRecord bookRecord) {
     try {
       DBUtil.registerNewBook(jdbcTemplate, bookRecord);
     } catch (org.springframework.dao.DataIntegrityViolationException e) {
+      // 他の端末 (DB を共有する他の node を含む) で登録された番号なので、次からは飛ばす。
+      bookIdAllocator.resync(DBUtil.getCategory(bookRecord.getId()));
       return false;
     }
+    journal.append("book.register", "book", MutationJournal.bookFields(bookRecord));
     return true;
   }
 
-  /**
-   * Pair of StringBuilder and ArrayList.
-   *
-   * Creates command + " a = ?, b = ?, ... WHERE p = ?, ..."
-   * with array of args.
-   *
-   * e.g. UPDATE Book SET isbn = '9784415030623' WHERE id = 'A005-16';
-   */
-  static private final class MyUpdateQueryBuilder {
-    private final StringBuilder sbuf = new StringBuilder();
-    private final ArrayList<Object> args = new ArrayList<Object>();
-    private boolean hasRestriction = false;
-    public MyUpdateQueryBuilder(final String command) {
-      sbuf.append(command);
-    }
-    public void addParam(String name, Object value) {
-      if (hasRestriction) throw new IllegalStateException("Cannot add param after restriction.");
-      if (!args.isEmpty()) sbuf.append(", ");
-      sbuf.append(name).append(" = ?");
-      args.add(value);
-    }
-    public void addRestriction(String name, Object value) {
-      if (hasRestriction) {
-        sbuf.append(", ");
-      } else {
-        hasRestriction = true;
-        sbuf.append(" WHERE ");
-      }
-      sbuf.append(name).append(" = ?");
-      args.add(value);
-    }
-    public boolean isEmpty() {
-      return args.isEmpty();
-    }
-    public String getSQL() {
-      return sbuf.toString();
-    }
-    public Object[] getArgs() {
-      return args.toArray();
-    }
-  }
-
   /**
    * Update the book record information.  The database should
-   * already contain the record for the book ID.  Return true
-   * if update happened.  If the information is identical, for example,
-   * false is returned.
+   * already contain the record for the book ID.  The change is
+   * applied with a single UPDATE guarded by the version of the record.
    */
-  public boolean updateRecord(final BookRecord record) {
-    final BookRecord orig = lookupBookByID(record.getId());
-    if (orig == null)
-      throw new IllegalArgumentException("書籍番号が"+record.getId()+"の書籍情報は登録されていません。");
-    // e.g. UPDATE Book SET isbn = '9784415030623' WHERE id = 'A005-16';
-    final MyUpdateQueryBuilder accum = new MyUpdateQueryBuilder("UPDATE Book SET ");
-    if (isChanged(orig.getTitle(), record.getTitle()))
-      accum.addParam("title", record.getTitle());
-    if (isChanged(orig.getKatakanaTitle(), record.getKatakanaTitle()))
-      accum.addParam("kana_title", record.getKatakanaTitle());
-    if (isChanged(orig.getAuthors(), record.getAuthors()))
-      accum.addParam("authors", record.getAuthors());
-    if (isChanged(orig.getPublisher(), record.getPublisher()))
-      accum.addParam("publisher", record.getPublisher());
-    if (isChanged(orig.getISBN(), record.getISBN())) {
-      if (!StringUtil.isValidISBN13(record.getISBN()))
+  public boolean updateRecord(final BookRecord record) throws ConcurrentUpdateException {
+    // NB: 13桁でない ISBN (古い記録) はそのままなら更新できる。変更されていれば
+    // UPDATE が一致しないので、下で判別する。
+    final boolean validISBN = StringUtil.isWhitespace(record.getISBN()) || StringUtil.isValidISBN13(record.getISBN());
+    final Integer updated = (Integer) transactionTemplate.execute(new TransactionCallback() {
+        public Object doInTransaction(TransactionStatus status) {
+          final List<Object> args = new ArrayList<Object>(Arrays.asList(
+            record.getTitle(),
+            record.getKatakanaTitle(),
+            record.getAuthors(),
+            record.getPublisher(),
+            record.getISBN(),
+            record.getImageURL(),
+            record.getRegisterDate(),
+            record.getDiscardDate(),
+            StringUtil.join(record.getComments()),
+            record.getFlagsAsString(),
+            record.getId(),
+            record.getVersion()));
+          if (!validISBN)
+            args.add(record.getISBN());
+          final int n = jdbcTemplate.update(
+            "UPDATE Book SET title = ?, kana_title = ?, authors = ?, publisher = ?, isbn = ?, image_url = ?,"
+            + " register_date = ?, discard_date = ?, comments = ?, flags = ?, version = version + 1"
+            + " WHERE id = ? AND version = ?" + (validISBN ? "" : " AND isbn = ?"),
+            args.toArray());
+          // 一冊分の n-gram なので、題名などが変わったかどうかに関わらず作り直す。
+          if (n == 1)
+            BookSearchIndex.updateBook(jdbcTemplate, record.getId(),
+                record.getTitle(), record.getKatakanaTitle(), record.getAuthors());
+          return n;
+        }
+      });
+    bookCache.invalidate(record.getId());
+    if (updated != 1) {
+      if (jdbcTemplate.queryForInt("SELECT COUNT(*) FROM Book WHERE id = ?", record.getId()) == 0)
+        throw new IllegalArgumentException("書籍番号が"+record.getId()+"の書籍情報は登録されていません。");
+      if (!validISBN && jdbcTemplate.queryForInt("SELECT COUNT(*) FROM Book WHERE id = ? AND version = ?",
+                                                 record.getId(), record.getVersion()) == 1)
         throw new IllegalArgumentException(record.getISBN() + "は13桁ISBNではありません。");
-      accum.addParam("isbn", record.getISBN());
+      throw new ConcurrentUpdateException("書籍番号"+record.getId()+"の書籍情報は他の端末で更新されています。読み込み直してください。");
     }
-    if (isChanged(orig.getImageURL(), record.getImageURL()))
-      accum.addParam("image_url", record.getImageURL());
-    if (isChanged(orig.getRegisterDate(), record.getRegisterDate()))
-      accum.addParam("register_date", record.getRegisterDate());
-    if (isChanged(orig.getDiscardDate(), record.getDiscardDate())) {
-      // 廃棄したものが返却されていることを保証する。
-      if (record.getDiscardDate() != null) {
-        recordReturnEvent(record.getId());
-      }
-      accum.addParam("discard_date", record.getDiscardDate());
-    }
-    if (isChanged(orig.getComments(), record.getComments()))
-      accum.addParam("comments", StringUtil.join(record.getComments()));
-    if (isChanged(orig.getFlagsAsString(), record.getFlagsAsString()))
-      accum.addParam("flags", record.getFlagsAsString());
-    if (accum.isEmpty())  // nothing to update
-      return false;
-    accum.addRestriction("id", record.getId());
-    final String sql = accum.getSQL();
-    System.out.println(sql);
-    return jdbcTemplate.update(sql, accum.getArgs()) == 1;
+    record.setVersion(record.getVersion() + 1);
+    journal.append("book.update", "book", MutationJournal.bookFields(record), "version", record.getVersion());
+    // 廃棄したものが返却されていることを保証する (貸出中でなければ何もしない)。
+    if (record.getDiscardDate() != null)
+      recordReturnEvent(record.getId());
+    return true;
   }
 
   /**
@@ -327,13 +471,14 @@ public class DBLookupServiceImpl extends RemoteServiceServlet implements DBLooku
    * created and assigned.  The return value is a PersonRecord
    * with all ID fields are filled.
    */
-  public PersonRecord updateRecord(final PersonRecord record) {
+  public PersonRecord updateRecord(final PersonRecord record) throws ConcurrentUpdateException {
     if (record.getFamilyId() == -1) {
       System.out.println("Getting new family ID");
       // 家族の代表者の名前を当該レコードとする。
       final int familyId = DBUtil.createFamilyRecord(jdbcTemplate.getJdbcOperations(), record.getName());
       System.out.println("Family ID = "+familyId);
       record.setFamilyId(familyId);
+      journal.append("family.insert", "family", familyId, "name", record.getName());
     }
     if (record.getId() == -1) {  // insert new record assigning new person ID (auto-generated).
       final KeyHolder keyHolder = new GeneratedKeyHolder();
@@ -351,52 +496,38 @@ public class DBLookupServiceImpl extends RemoteServiceServlet implements DBLooku
           }
         }, keyHolder);
       record.setId(keyHolder.getKey().intValue());
+      record.setVersion(0);
+      personCache.added(record.getId());
+      journal.append("person.insert", "person", MutationJournal.personFields(record));
     } else {  // update existing record.
-      final PersonRecord orig = lookupUserByID(record.getId());
-      if (orig == null)
-        throw new IllegalArgumentException("利用者番号が"+record.getId()+"の利用者情報は登録されていません。");
-      // e.g. UPDATE Person SET romaji = 'Foo Bar' WHERE id = 1842;
-      final MyUpdateQueryBuilder accum = new MyUpdateQueryBuilder("UPDATE Person SET ");
       // Note: you cannot change "family_id".
-      if (isChanged(orig.getType(), record.getType()))
-        accum.addParam("type", record.getType().getDisplayName());
-      if (isChanged(orig.getName(), record.getName()))
-        accum.addParam("name", record.getName());
-      if (isChanged(orig.getKatakanaName(), record.getKatakanaName()))
-        accum.addParam("katakana", record.getKatakanaName());
-      if (isChanged(orig.getRomanName(), record.getRomanName()))
-        accum.addParam("romaji", record.getRomanName());
-      if (accum.isEmpty())  // nothing to update
-        return record;
-      accum.addRestriction("id", record.getId());
-      final String sql = accum.getSQL();
-      System.out.println(sql);
-      int modified = jdbcTemplate.update(sql, accum.getArgs());
-      if (modified != 1)
-        throw new IllegalStateException("Failed to update.");
+      final int modified = jdbcTemplate.update(
+        "UPDATE Person SET type = ?, name = ?, katakana = ?, romaji = ?, version = version + 1 WHERE id = ? AND version = ?",
+        record.getType().getDisplayName(),
+        record.getName(),
+        record.getKatakanaName(),
+        record.getRomanName(),
+        record.getId(),
+        record.getVersion());
+      personCache.invalidate(record.getId());
+      if (modified != 1) {
+        if (jdbcTemplate.queryForInt("SELECT COUNT(*) FROM Person WHERE id = ?", record.getId()) == 0)
+          throw new IllegalArgumentException("利用者番号が"+record.getId()+"の利用者情報は登録されていません。");
+        throw new ConcurrentUpdateException("利用者番号"+record.getId()+"の利用者情報は他の端末で更新されています。読み込み直してください。");
+      }
+      record.setVersion(record.getVersion() + 1);
+      journal.append("person.update", "person", MutationJournal.personFields(record), "version", record.getVersion());
     }
     return record;
   }
 
-  // consider null as well.
-  static private final boolean isChanged(Object orig, Object newValue) {
-    if (orig == null)
-      return newValue != null;
-    return !orig.equals(newValue);
-  }
-
-  // utility function.
-  private final <T> T queryForObjectOrNull(String sql, ParameterizedRowMapper<T> mapper, Object... args) {
-    try {
-      return jdbcTemplate.queryForObject(sql, mapper, args);
-    } catch  (org.springframework.dao.EmptyResultDataAccessException e) {
-      return null;
-    }
-  }
-
   public Boolean deleteUser(int userId) {
-    final String sql = "UPDATE Person SET deletion_date = ? WHERE id = ?";
+    final String sql = "UPDATE Person SET deletion_date = ?, version = version + 1 WHERE id = ?";
     final java.sql.Timestamp now = new java.sql.Timestamp(new java.util.Date().getTime());
-    return jdbcTemplate.update(sql, now, userId) == 1;
+    final boolean updated = jdbcTemplate.update(sql, now, userId) == 1;
+    personCache.invalidate(userId);
+    if (updated)
+      journal.append("person.delete", "person", userId, "deletion_date", now);
+    return updated;
   }
 }
@@ -3,21 +3,26 @@ package org.tomokiyo.pjs.server;
 import org.tomokiyo.pjs.client.BookRecord;
 import org.tomokiyo.pjs.client.PersonRecord;
 import org.tomokiyo.pjs.client.BookRentalHistoryRecord;
+import org.tomokiyo.pjs.client.ResultPage;
 import org.tomokiyo.pjs.server.JapaneseUtil;
 import org.tomokiyo.pjs.server.PrintUtil;
 
 import com.google.gson.Gson;
 
 import au.com.bytecode.opencsv.CSVReader;
-import org.apache.derby.jdbc.EmbeddedDataSource;
 
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.JdbcOperations;
 import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.simple.ParameterizedRowMapper;
 import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
@@ -31,6 +36,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.HashSet;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
@@ -65,20 +71,121 @@ public class DBUtil {
   static public final String DB_NAME = "pjsLibraryDB";
 
   /**
-   * Create a EmbeddedDataSource (which is a javax.sql.DataSource).
+   * The storage backend configured by "pjs.db.backend".
+   * See {@link StorageBackend}.
+   */
+  static public final StorageBackend getStorageBackend() {
+    return LazyStorageBackendHolder.backend;
+  }
+
+  static private final class LazyStorageBackendHolder {
+    static private final StorageBackend backend = StorageBackend.fromSystemProperties();
+  }
+
+  /**
+   * Create a non-pooled DataSource of the configured storage backend.
    *
    * @param create if true, create the database.
-   * @return an <code>EmbeddedDataSource</code> value
-   */
-  static public final EmbeddedDataSource makeDataSource(boolean create) {
-    EmbeddedDataSource ds = new EmbeddedDataSource();
-    ds.setDatabaseName(DB_NAME);
-    if (create) {
-      ds.setCreateDatabase("create");
-      // Set attribute so that it uses Japanese Collator for sorting. (didn't work)
-      // ds.setConnectionAttributes("territory=ja_JP;collation=TERRITORY_BASED");
+   */
+  static public final DataSource makeDataSource(boolean create) {
+    return getStorageBackend().makeDataSource(create);
+  }
+
+  /**
+   * Return the process-wide connection pool over the application
+   * database.  All the servlets and the static entry points of this class
+   * share it, so that the number of open connections is bounded and
+   * connections are not set up for every request.
+   * See {@link ConnectionPool} for the configuration.
+   */
+  static public final DataSource getDataSource() {
+    return LazyDataSourceHolder.dataSource;
+  }
+
+  /**
+   * A SimpleJdbcTemplate over {@link #getDataSource()}.  (thread-safe)
+   */
+  static public final SimpleJdbcTemplate getJdbcTemplate() {
+    return LazyDataSourceHolder.jdbcTemplate;
+  }
+
+  /**
+   * Return the separate small pool for the reports and exports (PDF,
+   * CSV).  Their long scans run read-only at READ_UNCOMMITTED, so they
+   * neither wait for nor hold row locks, and at most a few of them run
+   * at once, so that they never stall the checkout desk.
+   *
+   * Configured by the "pjs.db.reporting.pool.*" system properties like
+   * {@link ConnectionPool} (defaults: minSize=0, maxSize=2,
+   * maxWaitMillis=60000, isolation=READ_UNCOMMITTED).
+   */
+  static public final DataSource getReportingDataSource() {
+    return LazyReportingDataSourceHolder.dataSource;
+  }
+
+  /**
+   * A SimpleJdbcTemplate over {@link #getReportingDataSource()}.
+   */
+  static public final SimpleJdbcTemplate getReportingJdbcTemplate() {
+    return LazyReportingDataSourceHolder.jdbcTemplate;
+  }
+
+  /**
+   * A TransactionTemplate to run several statements in one transaction.
+   */
+  static public final TransactionTemplate makeTransactionTemplate(DataSource dataSource) {
+    return new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+  }
+
+  // Initialize static variable lazily and safely without DCL idiom.
+  static private final class LazyDataSourceHolder {
+    static private final ConnectionPool dataSource = ConnectionPool.create(makeDataSource(getStorageBackend().isTransient()));
+    static private final SimpleJdbcTemplate jdbcTemplate = new SimpleJdbcTemplate(dataSource);
+    static private CacheInvalidation cacheInvalidation = null;
+    static {
+      try {
+        if (getStorageBackend().isTransient() && !hasTables(dataSource))
+          createTables(dataSource);  // a fresh in-memory DB
+        else
+          upgradeSchema(dataSource);
+      } catch (SQLException e) {
+        throw new IllegalStateException(e);  // fatal
+      }
+      if (getStorageBackend().isShared()) {
+        // 他の Web サーバと DB を共有するので、キャッシュの無効化を伝え合う。
+        cacheInvalidation = new CacheInvalidation(dataSource, CacheInvalidation.getDefaultNodeId());
+        cacheInvalidation.start(Long.getLong("pjs.cache.invalidation.pollMillis", 1000L));
+      }
     }
-    return ds;
+  }
+
+  /**
+   * Return the cache invalidation across the nodes sharing the database,
+   * or null if the database is not shared (see {@link StorageBackend#isShared()}).
+   */
+  static public final CacheInvalidation getCacheInvalidation() {
+    return LazyDataSourceHolder.cacheInvalidation;
+  }
+
+  static private final class LazyReportingDataSourceHolder {
+    static private final ConnectionPool dataSource = makeReportingPool();
+    static private final SimpleJdbcTemplate jdbcTemplate = new SimpleJdbcTemplate(dataSource);
+  }
+
+  static private final ConnectionPool makeReportingPool() {
+    getDataSource();  // make sure the schema is up to date.
+    final String prefix = "pjs.db.reporting.pool.";
+    final ConnectionPool pool = new ConnectionPool(makeDataSource(getStorageBackend().isTransient()),
+        Integer.getInteger(prefix + "minSize", 0),
+        Integer.getInteger(prefix + "maxSize", 2),
+        Long.getLong(prefix + "maxWaitMillis", 60000L),
+        System.getProperty(prefix + "validationQuery", "VALUES 1"),
+        Long.getLong(prefix + "validationIntervalMillis", 30000L),
+        Integer.getInteger(prefix + "statementCacheSize", 8));
+    pool.setDefaultTransactionIsolation(
+      ConnectionPool.parseIsolation(System.getProperty(prefix + "isolation", "READ_UNCOMMITTED")));
+    pool.setDefaultReadOnly(true);
+    return pool;
   }
 
 // Not used. Resource binding in web.xml is also removed.
@@ -132,6 +239,12 @@ public class DBUtil {
     // NB: make sure you do consistency check periodically
     // http://wiki.apache.org/db-derby/DatabaseConsistencyCheck
     try {
+      dropTableIfExists(conn, "SchemaVersion");
+      dropTableIfExists(conn, "ReplicationHeartbeat");
+      dropTableIfExists(conn, "CacheInvalidation");
+      dropTableIfExists(conn, "BookNGram");
+      dropTableIfExists(conn, "PromotionLog");
+      dropTableIfExists(conn, "OpenLoan");
       dropTableIfExists(conn, "CheckoutHistory");
       dropTableIfExists(conn, "Person");
       dropTableIfExists(conn, "Family");
@@ -153,7 +266,8 @@ public class DBUtil {
           "name VARCHAR(64) NOT NULL," +
           "katakana VARCHAR(64) NOT NULL," +
           "romaji VARCHAR(64) NOT NULL," +
-          "deletion_date DATE)");
+          "deletion_date DATE," +
+          "version INT NOT NULL DEFAULT 0)");  // 更新毎に増やす (楽観的排他制御)
 
       s.execute("CREATE TABLE Book(" +
           "id VARCHAR(20) NOT NULL CONSTRAINT book_pk PRIMARY KEY," +
@@ -166,7 +280,10 @@ public class DBUtil {
           "register_date DATE," +
           "discard_date DATE," +
           "comments VARCHAR(256) NOT NULL," +
-          "flags VARCHAR(256) NOT NULL" +
+          "flags VARCHAR(256) NOT NULL," +
+          "category VARCHAR(1) NOT NULL," +  // 図書番号の分類 (e.g. A028-27 => 'A')
+          "sortkey INT NOT NULL," +  // 分類内の順序 (e.g. A028-27 => 28027)
+          "version INT NOT NULL DEFAULT 0" +  // 更新毎に増やす (楽観的排他制御)
           // "checkout_id INT NOT NULL CONSTRAINT book_history_ref REFERENCES CheckoutHistory(id) ON DELETE CASCADE"
           ")");
 
@@ -175,6 +292,7 @@ public class DBUtil {
           "status SMALLINT DEFAULT 1 CONSTRAINT history_status_value CHECK(status = 0 OR status = 1)," + // Open(1) or Closed(0)
           "checkout_date TIMESTAMP NOT NULL DEFAULT CURRENT TIMESTAMP," +
           "returned_date TIMESTAMP," +
+          "due_date DATE," +  // 返却期限 (貸出時に LoanPolicy で計算)
           "person_id INT NOT NULL CONSTRAINT history_person_ref REFERENCES Person(id) ON DELETE NO ACTION," +
           "book_id VARCHAR(20) NOT NULL CONSTRAINT history_book_ref REFERENCES Book(id) ON DELETE NO ACTION)");
 
@@ -183,12 +301,51 @@ public class DBUtil {
           "name VARCHAR(20) NOT NULL CONSTRAINT last_id_pk PRIMARY KEY," +
           "last_id INT NOT NULL)");
 
-      // Create index over checkout status.
-      s.execute("CREATE INDEX history_status_idx ON CheckoutHistory(status)");
+      // 未返却の貸出を貸出日・返却期限の範囲で検索するための index.
+      for (String sql : CHECKOUT_INDEX_SQL)
+        s.execute(sql);
+      // 蔵書の並び順 (ORDER BY category, sortkey) のための index.
+      s.execute("CREATE INDEX book_sort_idx ON Book(category, sortkey)");
+      // 蔵書検索のための N-gram index.
+      s.execute(BookSearchIndex.CREATE_TABLE_SQL);
+      // 進級処理の記録
+      s.execute(GradePromotion.CREATE_TABLE_SQL);
+      // 貸出中の図書
+      s.execute(OpenLoans.CREATE_TABLE_SQL);
+      // 複数の Web サーバ間のキャッシュの無効化
+      s.execute(CacheInvalidation.CREATE_TABLE_SQL);
+      s.execute(CacheInvalidation.CREATE_INDEX_SQL);
+      // standby へのレプリケーションの heartbeat
+      s.execute(ReplicationManager.CREATE_TABLE_SQL);
       conn.commit();
     } finally {
       conn.setAutoCommit(true);
     }
+    // 上は最新のスキーマなので、移行は記録と追加の index のみ。
+    new SchemaMigrator(dataSource).migrate();
+  }
+
+  /**
+   * Bring the schema of an existing database created by an older version
+   * up to date by applying the pending {@link SchemaMigrator} steps.  It
+   * is safe to call this on every startup.
+   */
+  static public void upgradeSchema(DataSource dataSource) throws SQLException {
+    new SchemaMigrator(dataSource).migrate();
+  }
+
+  static private final String[] CHECKOUT_INDEX_SQL = {
+    "CREATE INDEX history_checkout_idx ON CheckoutHistory(status, checkout_date)",
+    "CREATE INDEX history_due_idx ON CheckoutHistory(status, due_date)",
+  };
+
+  static private final boolean hasTables(DataSource dataSource) throws SQLException {
+    final Connection conn = dataSource.getConnection();
+    try {
+      return SchemaMigrator.tableExists(conn, "Book");
+    } finally {
+      conn.close();
+    }
   }
 
   /**
@@ -270,44 +427,108 @@ public class DBUtil {
     }
   }
 
-  static private final boolean setLastIdIfLarger(final SimpleJdbcTemplate jdbcTemplate, String category, int value) {
-    final int prev = getLastIdFor(jdbcTemplate, category);
-    if (prev == -1)
+  static final boolean setLastIdIfLarger(final SimpleJdbcTemplate jdbcTemplate, String category, int value) {
+    // NB: a single conditional UPDATE so that concurrent registrations never lower the value.
+    if (jdbcTemplate.update("UPDATE LastID SET last_id = ? WHERE name = ? AND last_id < ?", value, category, value) == 1)
+      return true;
+    if (getLastIdFor(jdbcTemplate, category) >= 0)
+      return false;
+    try {
       return jdbcTemplate.update("INSERT INTO LastID (last_id, name) VALUES (?, ?)", value, category) == 1;
-    if (value > prev)
-      return jdbcTemplate.update("UPDATE LastID SET last_id = ? WHERE name = ?", value, category) == 1;
-    return false;
+    } catch (org.springframework.dao.DataIntegrityViolationException e) {
+      return setLastIdIfLarger(jdbcTemplate, category, value);  // inserted by someone else
+    }
+  }
+
+  /**
+   * SQL expression to compute Book.sortkey from Book.id.
+   * Only used to fill the column of an existing database.
+   */
+  static final String SORTKEY_EXPRESSION =
+      "CASE WHEN LOCATE('-',id) = 0"+
+      "  THEN CAST(SUBSTR(id,2) AS INT) * 1000"+
+      "  ELSE CAST(SUBSTR(id,2,LOCATE('-',id)-2) AS INT) * 1000"+
+      "       + CAST(SUBSTR(id,LOCATE('-',id)+1) AS INT)"+
+      " END";
+
+  /**
+   * Return the category of the book ID stored in Book.category. (e.g. A028-27 => "A")
+   */
+  static public final String getCategory(String bookId) {
+    return bookId.substring(0, 1);
+  }
+
+  /**
+   * Return the order within the category stored in Book.sortkey. (e.g. A028-27 => 28027)
+   */
+  static public final int getSortKey(String bookId) {
+    bookId = bookId.trim();
+    final int idx = bookId.indexOf('-');
+    if (idx < 0)
+      return Integer.parseInt(bookId.substring(1)) * 1000;
+    return Integer.parseInt(bookId.substring(1, idx)) * 1000
+      + Integer.parseInt(bookId.substring(idx + 1));
   }
 
   static String truncate(String s, int len) {
     return s.substring(0, Math.min(len, s.length()));
   }
 
+  static final String INSERT_BOOK_SQL = "INSERT INTO Book (id, title, kana_title, authors, publisher, isbn, image_url, register_date, discard_date, comments, flags, category, sortkey) VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?)";
+
+  /**
+   * The arguments of INSERT_BOOK_SQL.
+   */
+  static final Object[] getInsertBookArguments(final BookRecord bookRecord) {
+    return new Object[] {
+      bookRecord.getId(),
+      bookRecord.getTitle(),
+      bookRecord.getKatakanaTitle(),
+      truncate(bookRecord.getAuthors(), 128),
+      truncate(bookRecord.getPublisher(), 64),
+      bookRecord.getISBN(),
+      truncate(bookRecord.getImageURL(), 128),
+      bookRecord.getRegisterDate(),
+      bookRecord.getDiscardDate(),
+      StringUtil.join(bookRecord.getComments()),
+      bookRecord.getFlagsAsString(),
+      getCategory(bookRecord.getId()),
+      getSortKey(bookRecord.getId())
+    };
+  }
+
+  /**
+   * Return the number part of the book ID used for LastID. (e.g. A028-27 => 28)
+   */
+  static final int getBookNumber(String bookId) {
+    final Matcher matcher = regex_bookID.matcher(bookId);
+    if (!matcher.find())
+      throw new IllegalStateException("Invalid book ID: " + bookId);
+    return Integer.parseInt(matcher.group(2));
+  }
+
+  /**
+   * Registers a new book and its search index in one transaction.
+   * Throws DataIntegrityViolationException if the ID is already used.
+   */
   static public void registerNewBook(final SimpleJdbcTemplate jdbcTemplate, final BookRecord bookRecord) {
-    final String sql = "INSERT INTO Book (id, title, kana_title, authors, publisher, isbn, image_url, register_date, discard_date, comments, flags) VALUES (?,?,?,?,?,?,?,?,?,?,?)";
-    try {
-      jdbcTemplate.update(sql,
-        bookRecord.getId(),
-        bookRecord.getTitle(),
-        bookRecord.getKatakanaTitle(),
-        truncate(bookRecord.getAuthors(), 128),
-        truncate(bookRecord.getPublisher(), 64),
-        bookRecord.getISBN(),
-        truncate(bookRecord.getImageURL(), 128),
-        bookRecord.getRegisterDate(),
-        bookRecord.getDiscardDate(),
-        StringUtil.join(bookRecord.getComments()),
-        bookRecord.getFlagsAsString()
-      );
-      final Matcher matcher = regex_bookID.matcher(bookRecord.getId());
-      if (!matcher.find())
-        throw new IllegalStateException("Invalid book ID: " + bookRecord.getId());
-      final String category = matcher.group(1);
-      final int id = Integer.parseInt(matcher.group(2));
-      setLastIdIfLarger(jdbcTemplate, category, id);
-    } catch (Exception e) {
-      System.err.println(e.getMessage());
-    }
+    final String category = getCategory(bookRecord.getId());
+    final int number = getBookNumber(bookRecord.getId());
+    final DataSource dataSource = ((JdbcTemplate) jdbcTemplate.getJdbcOperations()).getDataSource();
+    // NB: 索引の更新に失敗したら登録も取り消す (検索で見つからない図書を残さない)。
+    makeTransactionTemplate(dataSource).execute(new TransactionCallback() {
+        public Object doInTransaction(TransactionStatus status) {
+          jdbcTemplate.update(INSERT_BOOK_SQL, getInsertBookArguments(bookRecord));
+          BookSearchIndex.addBook(jdbcTemplate, bookRecord.getId(),
+            bookRecord.getTitle(),
+            bookRecord.getKatakanaTitle(),
+            truncate(bookRecord.getAuthors(), 128));
+          setLastIdIfLarger(jdbcTemplate, category, number);
+          return null;
+        }
+      });
+    RecordCache.forBooks(jdbcTemplate).added(bookRecord.getId());
+    BookIdAllocator.forDataSource(dataSource).registered(category, number);
   }
 
   /**
@@ -317,6 +538,7 @@ public class DBUtil {
   static final class BookPhraseQueryParser {
     private final StringBuilder sbuf = new StringBuilder();
     private final List<String> args = new ArrayList<String>();
+    private final List<String[]> terms = new ArrayList<String[]>();
     public BookPhraseQueryParser(String query) {
       // クエリの正規化
       query = JapaneseUtil.normalize(query);
@@ -353,6 +575,7 @@ public class DBUtil {
         if (sbuf.length() > 0) sbuf.append(" AND ");
         sbuf.append(dbField + " LIKE ?");
         args.add("%"+phrase+"%");
+        terms.add(new String[] { dbField, phrase });
       }
     }
     public String getSQL() {
@@ -361,52 +584,121 @@ public class DBUtil {
     public String[] getArguments() {
       return args.toArray(new String[args.size()]);
     }
+    /**
+     * Returns {field, phrase} pairs of the phrase query (empty for ISBN or book ID search).
+     */
+    public List<String[]> getTerms() {
+      return terms;
+    }
   }
 
   /**
-   * 未返却の本の情報のリストを得る。
+   * WHERE 句の条件とその引数。
    */
-  static public List<BookRentalHistoryRecord> getUnreturnedBookInfo(
-      final SimpleJdbcTemplate jdbcTemplate,
-      BookRentalHistoryRecord.Constraints constraints,
-      int offset,
-      int max) {
+  static private final class Condition {
+    final String sql;
+    final Object[] args;
+    Condition(String sql, Object... args) {
+      this.sql = sql;
+      this.args = args;
+    }
+  }
+
+  // NB: DATE(checkout_date) のように列を関数で包むと index が使えないので、
+  // 日単位の条件は 00:00 の TIMESTAMP との比較で表わす。
+  static private final Condition getUnreturnedCondition(BookRentalHistoryRecord.Constraints constraints) {
+    final java.util.Date today = DateUtil.startOfDay(new java.util.Date());
     switch (constraints) {
     case FIVE_WEEKS_AGO:
-      return getBookRentalHistoryRecordsInRange(
-        jdbcTemplate,
-        "status = 1 AND DATE(checkout_date) <= ?",
-        offset, max,
-        DateUtil.nDaysAgo(new java.util.Date(), 35));
+      return checkedOutBefore(DateUtil.nDaysAgo(today, 34));  // 35日以上前
     case THREE_WEEKS_AGO:
-      return getBookRentalHistoryRecordsInRange(
-        jdbcTemplate,
-        "status = 1 AND DATE(checkout_date) <= ?",
-        offset, max,
-        DateUtil.nDaysAgo(new java.util.Date(), 21));
+      return checkedOutBefore(DateUtil.nDaysAgo(today, 20));
     case TWO_WEEKS_AGO:
-      return getBookRentalHistoryRecordsInRange(
-        jdbcTemplate,
-        "status = 1 AND DATE(checkout_date) <= ?",
-        offset, max,
-        DateUtil.nDaysAgo(new java.util.Date(), 14));
+      return checkedOutBefore(DateUtil.nDaysAgo(today, 13));
+    case OVERDUE:
+      return new Condition("status = 1 AND due_date < CURRENT_DATE");
     case EXCEPT_TODAY:
-      return getBookRentalHistoryRecordsInRange(
-        jdbcTemplate,
-        "status = 1 AND DATE(checkout_date) <= ?",
-        offset, max,
-        DateUtil.nDaysAgo(new java.util.Date(), 1));
+      return checkedOutBefore(today);
     case ONLY_TODAY:
-      return getBookRentalHistoryRecordsInRange(
-        jdbcTemplate,
-        "status = 1 AND DATE(checkout_date) = CURRENT_DATE"
-        +" ORDER BY checkout_date DESC, person_id ASC",
-        offset, max);
+      return new Condition("status = 1 AND checkout_date >= ?", new java.sql.Timestamp(today.getTime()));
     case EVERYTHING:
-      return getBookRentalHistoryRecordsInRange(jdbcTemplate, "status = 1", offset, max);
+      return new Condition("status = 1");
     default: throw new IllegalStateException();
     }
   }
+
+  static private final Condition checkedOutBefore(java.util.Date date) {
+    return new Condition("status = 1 AND checkout_date < ?", new java.sql.Timestamp(date.getTime()));
+  }
+
+  /**
+   * 未返却の本の情報のリストを得る。
+   */
+  static public List<BookRentalHistoryRecord> getUnreturnedBookInfo(
+      final SimpleJdbcTemplate jdbcTemplate,
+      BookRentalHistoryRecord.Constraints constraints,
+      int offset,
+      int max) {
+    final Condition condition = getUnreturnedCondition(constraints);
+    String sql = condition.sql;
+    if (constraints == BookRentalHistoryRecord.Constraints.ONLY_TODAY)
+      sql += " ORDER BY checkout_date DESC, person_id ASC";
+    return getBookRentalHistoryRecordsInRange(jdbcTemplate, sql, offset, max, condition.args);
+  }
+
+  /**
+   * 未返却の本の情報のリストを continuationToken の次から max 件得る。
+   * (checkout_date, person_id) の順 (本日貸出分は新しい順) に並べ、前の
+   * ページの最後の行より後ろだけを読むので、何ページ目でも同じコストで済む。
+   *
+   * @param continuationToken 前のページの {@link ResultPage#getContinuationToken()}
+   * (最初のページは null)
+   */
+  static public ResultPage<BookRentalHistoryRecord> getUnreturnedBookInfoPage(
+      final SimpleJdbcTemplate jdbcTemplate,
+      BookRentalHistoryRecord.Constraints constraints,
+      String continuationToken,
+      int max) {
+    if (max <= 0)
+      throw new IllegalArgumentException("max must be positive: " + max);
+    final Condition condition = getUnreturnedCondition(constraints);
+    final boolean newestFirst = (constraints == BookRentalHistoryRecord.Constraints.ONLY_TODAY);
+    final StringBuilder sbuf = new StringBuilder(RENTAL_HISTORY_SELECT);
+    sbuf.append(" WHERE ").append(condition.sql);
+    final List<Object> args = new ArrayList<Object>(java.util.Arrays.asList(condition.args));
+    if (continuationToken != null) {
+      // NB: ties on (checkout_date, person_id) are broken by CheckoutHistory.id.
+      final String[] key = PageToken.decode(continuationToken, "loan", 3);
+      final java.sql.Timestamp checkoutDate = java.sql.Timestamp.valueOf(key[0]);
+      final int personId = Integer.parseInt(key[1]);
+      final int historyId = Integer.parseInt(key[2]);
+      final String op = newestFirst ? "<" : ">";
+      sbuf.append(" AND checkout_date "+op+"= ? AND (checkout_date "+op+" ?"
+                  + " OR person_id > ? OR (person_id = ? AND CheckoutHistory.id > ?))");
+      args.add(checkoutDate);
+      args.add(checkoutDate);
+      args.add(personId);
+      args.add(personId);
+      args.add(historyId);
+    }
+    sbuf.append(" ORDER BY checkout_date "+(newestFirst ? "DESC" : "ASC")+", person_id ASC, CheckoutHistory.id ASC");
+    sbuf.append(" FETCH FIRST "+(max+1)+" ROWS ONLY");
+    // 各行のキーも覚えておく。
+    final List<String> tokens = new ArrayList<String>();
+    final BookRentalHistoryRecordMapper recordMapper = new BookRentalHistoryRecordMapper();
+    final ParameterizedRowMapper<BookRentalHistoryRecord> mapper = new ParameterizedRowMapper<BookRentalHistoryRecord>() {
+      public BookRentalHistoryRecord mapRow(ResultSet rs, int rowNum) throws SQLException {
+        tokens.add(PageToken.encode("loan", rs.getTimestamp("checkout_date"), rs.getInt("person_id"), rs.getInt("history_id")));
+        return recordMapper.mapRow(rs, rowNum);
+      }
+    };
+    final ArrayList<BookRentalHistoryRecord> records =
+      new ArrayList<BookRentalHistoryRecord>(jdbcTemplate.query(sbuf.toString(), mapper, args.toArray()));
+    if (records.size() <= max)
+      return new ResultPage<BookRentalHistoryRecord>(records, null);
+    records.remove(max);
+    return new ResultPage<BookRentalHistoryRecord>(records, tokens.get(max - 1));
+  }
     
   /**
    * 貸出し情報の検索。(offsetとmaxは指定せず、すべて取得する)。
@@ -417,6 +709,12 @@ public class DBUtil {
     return getBookRentalHistoryRecordsInRange(jdbcTemplate, constraints, -1, -1, args);
   }
 
+  static private final String RENTAL_HISTORY_SELECT =
+    "SELECT CheckoutHistory.id AS history_id, checkout_date, returned_date, due_date, person_id, book_id, Person.type AS person_type, Person.name AS person_name, Person.katakana AS person_katakana, Person.family_id AS family_id, Book.title AS book_title" +
+    " FROM CheckoutHistory" +
+    " INNER JOIN Book ON book_id = Book.id" +
+    " INNER JOIN Person ON person_id = Person.id";
+
   /**
    * 貸出し情報の検索。
    */
@@ -426,118 +724,68 @@ public class DBUtil {
        int offset,
        int max,
        Object... args) {
-    String sql = "SELECT checkout_date, returned_date, person_id, book_id, Person.type AS person_type, Person.name AS person_name, Person.katakana AS person_katakana, Person.family_id AS family_id, Book.title AS book_title" +
-        " FROM CheckoutHistory" +
-        " INNER JOIN Book ON book_id = Book.id" +
-        " INNER JOIN Person ON person_id = Person.id" +
-        " WHERE " + constraints;
+    String sql = RENTAL_HISTORY_SELECT + " WHERE " + constraints;
     if (!sql.contains("ORDER"))
       sql += " ORDER BY checkout_date ASC, person_id ASC";  // 古い順
     if (offset > 0) sql += " OFFSET "+offset+" ROWS";
     if (max > 0) sql += " FETCH FIRST "+max+" ROWS ONLY";
-    final ParameterizedRowMapper<BookRentalHistoryRecord> mapper = new ParameterizedRowMapper<BookRentalHistoryRecord>() {
-      public BookRentalHistoryRecord mapRow(ResultSet rs, int rowNum) throws SQLException {
-        final BookRentalHistoryRecord record = new BookRentalHistoryRecord(
-          rs.getString("book_id"),
-          rs.getString("book_title"),
-          rs.getInt("person_id"),
-          rs.getInt("family_id"),
-          PersonRecord.Type.lookupByDisplayName(rs.getString("person_type")),
-          rs.getString("person_name"),
-          rs.getString("person_katakana"),
-          rs.getDate("checkout_date"),
-          rs.getDate("returned_date"));
-        if (record.getReturnedDate() != null)
-          throw new IllegalStateException("Unreturned book info should have null returned date.");
-        return record;
-      }
-    };
-    return jdbcTemplate.query(sql, mapper, args);
+    return jdbcTemplate.query(sql, new BookRentalHistoryRecordMapper(), args);
   }
 
   /**
-   * 進級処理。
-   *
-   * http://localhost:8080/librarymanager/AprilAprilApril
+   * A RowMapper for BookRentalHistoryRecord.
    */
-  static protected void processPromotions() {
-    final DataSource dataSource = DBUtil.makeDataSource(false);
-    final SimpleJdbcTemplate jdbcTemplate = new SimpleJdbcTemplate(dataSource);
-    // NB: 高学年から処理しなくてはいけない。
-    // 高3は卒業
-    jdbcTemplate.update(
-      "UPDATE Person SET deletion_date = ? WHERE type = ?",
-      new java.sql.Timestamp(new java.util.Date().getTime()),
-      PersonRecord.Type.HIGH3.getDisplayName());
-    // 以下は進級
-    promoteOneGrade(jdbcTemplate, PersonRecord.Type.HIGH2, PersonRecord.Type.HIGH3);
-    promoteOneGrade(jdbcTemplate, PersonRecord.Type.HIGH1, PersonRecord.Type.HIGH2);
-    promoteOneGrade(jdbcTemplate, PersonRecord.Type.MID3, PersonRecord.Type.HIGH1);
-    promoteOneGrade(jdbcTemplate, PersonRecord.Type.MID2, PersonRecord.Type.MID3);
-    promoteOneGrade(jdbcTemplate, PersonRecord.Type.MID1, PersonRecord.Type.MID2);
-    promoteOneGrade(jdbcTemplate, PersonRecord.Type.ELEM6, PersonRecord.Type.MID1);
-    promoteOneGrade(jdbcTemplate, PersonRecord.Type.ELEM5, PersonRecord.Type.ELEM6);
-    promoteOneGrade(jdbcTemplate, PersonRecord.Type.ELEM4, PersonRecord.Type.ELEM5);
-    promoteOneGrade(jdbcTemplate, PersonRecord.Type.ELEM3, PersonRecord.Type.ELEM4);
-    promoteOneGrade(jdbcTemplate, PersonRecord.Type.ELEM2, PersonRecord.Type.ELEM3);
-    promoteOneGrade(jdbcTemplate, PersonRecord.Type.ELEM1, PersonRecord.Type.ELEM2);
-    promoteOneGrade(jdbcTemplate, PersonRecord.Type.PRE_H, PersonRecord.Type.ELEM1);
-    promoteOneGrade(jdbcTemplate, PersonRecord.Type.PRE_M, PersonRecord.Type.PRE_H);
-  }
-
-  /**
-   * 1つの学年の進級処理。変更されたレコードの数を返す。
+  static private final class BookRentalHistoryRecordMapper implements ParameterizedRowMapper<BookRentalHistoryRecord> {
+    public BookRentalHistoryRecord mapRow(ResultSet rs, int rowNum) throws SQLException {
+      final BookRentalHistoryRecord record = new BookRentalHistoryRecord(
+        rs.getString("book_id"),
+        rs.getString("book_title"),
+        rs.getInt("person_id"),
+        rs.getInt("family_id"),
+        PersonRecord.Type.lookupByDisplayName(rs.getString("person_type")),
+        rs.getString("person_name"),
+        rs.getString("person_katakana"),
+        rs.getDate("checkout_date"),
+        rs.getDate("returned_date"));
+      record.setDueDate(rs.getDate("due_date"));
+      if (record.getReturnedDate() != null)
+        throw new IllegalStateException("Unreturned book info should have null returned date.");
+      return record;
+    }
+  }
+
+  /**
+   * 進級処理。dryRun なら何も変更せず、各学年の人数を返す。
+   * 同じ年度に二度目を実行すると IllegalStateException。
    *
-   * "UPDATE Person SET type = '年長' WHERE type = '年中';"みたいにするだけ。
+   * http://localhost:8080/librarymanager/AprilAprilApril
    */
-  static private int promoteOneGrade(final SimpleJdbcTemplate jdbcTemplate, PersonRecord.Type origGrade, PersonRecord.Type newGrade) {
-    return jdbcTemplate.update(
-      "UPDATE Person SET type = ? WHERE type = ?",
-      newGrade.getDisplayName(),
-      origGrade.getDisplayName());
+  static protected Map<PersonRecord.Type,Integer> processPromotions(boolean dryRun) {
+    final GradePromotion promotion = new GradePromotion(getDataSource());
+    if (dryRun)
+      return promotion.countByGrade();
+    final int schoolYear = java.util.Calendar.getInstance().get(java.util.Calendar.YEAR);
+    final Map<PersonRecord.Type,Integer> counts = promotion.promote(schoolYear);
+    final Map<String,Integer> summary = new java.util.LinkedHashMap<String,Integer>();
+    for (Map.Entry<PersonRecord.Type,Integer> e : counts.entrySet())
+      summary.put(e.getKey().getDisplayName(), e.getValue());
+    MutationJournal.getDefault().append("promotion", "year", schoolYear, "counts", summary);
+    return counts;
   }
 
   /**
-   * Describe <code>loadBookRecordsFromCSV</code> method here.
-   *
-   * @param conn a <code>Connection</code> value
-   * @param csvFilename a <code>String</code> value
-   * @exception java.io.IOException if an error occurs
-   * @exception com.lowagie.text.DocumentException if an error occurs
-   * @exception SQLException if an error occurs
+   * Loads book records from the CSV files.  Nothing is registered if
+   * any of the files has an error.
    */
-  static private void loadBookRecordsFromCSV(DataSource dataSource, String csvFilename) throws java.io.IOException, com.lowagie.text.DocumentException, SQLException, java.text.ParseException {
-    final SimpleJdbcTemplate jdbcTemplate = new SimpleJdbcTemplate(dataSource);
-    final CSVReader reader = new CSVReader(new BufferedReader(new InputStreamReader(
-              new UTF8BOMSkippingInputStream(new FileInputStream(csvFilename)), CSV_ENCODING)));
-    final HashMap<String,Integer> categoryToLastIDMap = new HashMap<String,Integer>();
-    String[] columns;    // an array of values from the line
-    while ((columns = reader.readNext()) != null) {
-      if (columns[0].equals("題名"))  // skip header
-        continue;
-      if (StringUtil.isWhitespace(columns[0]))
-        continue;
-      final BookRecord bookRecord = createBookRecordFromCSV(columns);
-      assert(!StringUtil.isWhitespace(bookRecord.getTitle()));
-      System.out.println(bookRecord.toString());
-      try {
-        registerNewBook(jdbcTemplate, bookRecord);
-      } catch (org.springframework.dao.DataIntegrityViolationException e) {
-        throw new IllegalStateException("Error: id=" +bookRecord.getId()+": "+ e.getMessage());
-      }
-      final Matcher matcher = regex_bookID.matcher(bookRecord.getId());
-      if (!matcher.find())
-        throw new IllegalStateException("Invalid book ID: " + bookRecord.getId());
-      final String category = matcher.group(1);
-      final int id = Integer.parseInt(matcher.group(2));
-      final Integer v = categoryToLastIDMap.get(category);
-      if (v == null || id > v)
-        categoryToLastIDMap.put(category, id);
-    }
-    for (String category: categoryToLastIDMap.keySet()) {
-      int v = categoryToLastIDMap.get(category);
-      setLastIdIfLarger(jdbcTemplate, category, v);
-    }
+  static private void loadBookRecordsFromCSV(DataSource dataSource, String... csvFilenames) throws java.io.IOException {
+    final PrintWriter msgout = new PrintWriter(new OutputStreamWriter(System.out), true);
+    final BulkImporter importer = new BulkImporter(dataSource, msgout, CSV_ENCODING);
+    for (String csvFilename : csvFilenames)
+      importer.readBookRecords(new FileInputStream(csvFilename));
+    if (importer.hasErrors())
+      throw new IllegalStateException("Invalid book records.");
+    importer.commit();
+    MutationJournal.getDefault().append("import.books", "files", java.util.Arrays.asList(csvFilenames));
   }
 
   // Creates a new family record and returns the auto-generated ID.
@@ -554,86 +802,36 @@ public class DBUtil {
     return keyHolder.getKey().intValue();
   }
   
-  static protected void loadPersonRecordsFromCSV(InputStream inputStream,
-                                               PrintWriter msgout) throws java.io.IOException, com.lowagie.text.DocumentException, SQLException, java.text.ParseException  {
-    loadPersonRecordsFromCSV(DBUtil.makeDataSource(false),
-                             inputStream,
-                             msgout);
+  /**
+   * Registers the uploaded person records, committing them in chunks
+   * and writing the progress to msgout as it goes.
+   */
+  static protected void importPersonRecordsFromCSV(InputStream inputStream, String name,
+                                                   PrintWriter msgout) throws java.io.IOException {
+    final BulkImporter importer = new BulkImporter(getDataSource(), msgout, CSV_ENCODING);
+    final ImportProgress progress = ImportProgress.start(name);
+    importer.importPersonRecords(inputStream, progress);
+    MutationJournal.getDefault().append("import.persons", "name", name,
+                                        "inserted", progress.getInserted(), "errors", progress.getErrors());
   }
 
   // 1002,保護者,山田 太郎,ヤマダ タロウ,Yamada Taro
+  // エラーがあればすべて報告し、何も登録しない。
   static protected void loadPersonRecordsFromCSV(DataSource dataSource, 
                                                  InputStream inputStream,
-                                                 PrintWriter msgout) throws java.io.IOException, com.lowagie.text.DocumentException, SQLException, java.text.ParseException {
+                                                 PrintWriter msgout) throws java.io.IOException {
     if (inputStream.available() == 0) {
       msgout.println("The CSV file is empty.");
       return;
     }
-    final SimpleJdbcTemplate jdbcTemplate = new SimpleJdbcTemplate(dataSource);
-    final CSVReader reader = new CSVReader(
-      new BufferedReader(
-        new InputStreamReader(
-          new UTF8BOMSkippingInputStream(inputStream), CSV_ENCODING)));
-    final String sql = "INSERT INTO Person (family_id, type, name, katakana, romaji, deletion_date) VALUES (?,?,?,?,?,?)";
-    final ArrayList<String[]> validLines = new ArrayList<String[]>();
-    {
-      String[] columns;    // an array of values from the line
-      int lineno = 0;
-      while ((columns = reader.readNext()) != null) {
-        ++lineno;
-        if (columns.length == 0 || columns[0].startsWith("#")
-            || (columns.length == 1 && StringUtil.isWhitespace(columns[0]))) {
-          msgout.println("Skipping: " +
-                         quote(StringUtil.join(columns)) +
-                         " at line " + lineno);
-
-          continue;
-        }
-        if (columns.length != 5 && columns.length != 6) {
-          msgout.println("Wrong number of columns: " +
-                         quote(StringUtil.join(columns)) +
-                         " at line " + lineno);
-          return;
-        }
-        // Normalize Japanese characters.
-        for (int j = 0; j < columns.length; j++)
-          columns[j] = JapaneseUtil.normalize(columns[j]);
-        if (!StringUtil.isAllDigit(columns[0])) {
-          msgout.println("First column should be a number: " +
-                         quote(StringUtil.join(columns)) +
-                         " at line " + lineno);
-          return;
-        }
-        if (PersonRecord.Type.lookupByDisplayName(columns[1]) == null) {
-          msgout.println("Second column should be a valid type: " +
-                         quote(StringUtil.join(columns)) +
-                         " at line " + lineno);
-          return;
-        }
-        if (!JapaneseUtil.isAllKatakana(StringUtil.removeSpace(columns[3]))) {
-          msgout.println("Fourth column should be in Katakana: " +
-                         quote(StringUtil.join(columns)) +
-                         " at line " + lineno);
-          return;
-        }
-        // OK, then add it.
-        validLines.add(columns);
-      }
-    }
-    String lastFamilyId = null;
-    int familyKey = -1;
-    for (String[] columns: validLines) {
-      if (!columns[0].equals(lastFamilyId)) {
-        lastFamilyId = columns[0];
-        familyKey = createFamilyRecord(jdbcTemplate.getJdbcOperations(), columns[2]);
-        msgout.println("Creating family record: " + familyKey);
-      }
-      if (familyKey < 0) throw new IllegalStateException();
-      java.util.Date deletionDate = 
-        (columns.length <= 5 || StringUtil.isWhitespace(columns[5])) ? null : DateUtil.parseShortDate(columns[5]);
-      jdbcTemplate.update(sql, familyKey, columns[1], columns[2], columns[3], columns[4], deletionDate);
-      msgout.println("Adding person record: "+columns[2]);
+    final BulkImporter importer = new BulkImporter(dataSource, msgout, CSV_ENCODING);
+    importer.readPersonRecords(inputStream);
+    if (importer.hasErrors()) {
+      msgout.println("Nothing is registered.");
+      return;
     }
+    importer.commit();
+    MutationJournal.getDefault().append("import.persons", "name", "create-db");
   }
 
   static public void printBookBarcodeRegisteredToday(OutputStream out) throws java.io.IOException, com.lowagie.text.DocumentException {
@@ -653,9 +851,8 @@ public class DBUtil {
   }
 
   static public void printBookBarcodeWithConstraints(final String constraints, OutputStream out) throws java.io.IOException, com.lowagie.text.DocumentException {
-    final DataSource dataSource = DBUtil.makeDataSource(false);
-    final SimpleJdbcTemplate jdbcTemplate = new SimpleJdbcTemplate(dataSource);
-    final String sql = "SELECT id,"+BookRecordMapper.getSQLForSortKeys()+" FROM Book " + constraints + " ORDER BY category,sortkey";
+    final SimpleJdbcTemplate jdbcTemplate = getReportingJdbcTemplate();
+    final String sql = "SELECT id FROM Book " + constraints + " ORDER BY category,sortkey";
     final ParameterizedRowMapper<String> mapper = new ParameterizedRowMapper<String>() {
       public String mapRow(ResultSet rs, int rowNum) throws SQLException {
         return rs.getString("id").trim();
@@ -673,16 +870,13 @@ public class DBUtil {
     if (c == BookRentalHistoryRecord.Constraints.ONLY_TODAY) {  // 本日のみの場合は図書貸出用紙の印刷
       printRentalRecords(out);
     } else {
-      final DataSource dataSource = DBUtil.makeDataSource(false);
-      final SimpleJdbcTemplate jdbcTemplate = new SimpleJdbcTemplate(dataSource);
-      PrintUtil.printOverdueReminder(DBUtil.getUnreturnedBookInfo(jdbcTemplate, c, -1, -1), out);
+      PrintUtil.printOverdueReminder(DBUtil.getUnreturnedBookInfo(getReportingJdbcTemplate(), c, -1, -1), out);
     }
   }
 
   // 図書貸出用紙の印刷
   static public void printRentalRecords(OutputStream out) throws java.io.IOException, com.lowagie.text.DocumentException {
-    final DataSource dataSource = DBUtil.makeDataSource(false);
-    final SimpleJdbcTemplate jdbcTemplate = new SimpleJdbcTemplate(dataSource);
+    final SimpleJdbcTemplate jdbcTemplate = getReportingJdbcTemplate();
     PrintUtil.printRentalRecords(
       DBUtil.getUnreturnedBookInfo(
         jdbcTemplate,
@@ -698,8 +892,7 @@ public class DBUtil {
    * @exception com.lowagie.text.DocumentException if an error occurs
    */
   static public void printPersonBarcode(OutputStream out) throws java.io.IOException, com.lowagie.text.DocumentException {
-    final DataSource dataSource = DBUtil.makeDataSource(false);
-    final SimpleJdbcTemplate jdbcTemplate = new SimpleJdbcTemplate(dataSource);
+    final SimpleJdbcTemplate jdbcTemplate = getReportingJdbcTemplate();
     final String sql = PersonRecordMapper.getSelectStatement() + " WHERE type = ? AND deletion_date IS NULL ORDER BY katakana";
     // Open the printer.
     final PrintUtil.UserBarcodePrinter printer = new PrintUtil.UserBarcodePrinter(out);
@@ -812,35 +1005,37 @@ public class DBUtil {
     // Write BOM bytes first for Windows users.
     if ("UTF8".equalsIgnoreCase(encoding) || "UTF-8".equalsIgnoreCase(encoding))
       out.write(UTF8BOMSkippingInputStream.BOM_BYTES);
-    final DataSource dataSource = DBUtil.makeDataSource(false);
-    final SimpleJdbcTemplate jdbcTemplate = new SimpleJdbcTemplate(dataSource);
-    PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, encoding));
+    final PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, encoding));
     final String sql = BookRecordMapper.getSelectStatement() + " ORDER BY category,sortkey";
-    List<BookRecord> bookRecords = jdbcTemplate.query(sql, new BookRecordMapper());
+    final BookRecordMapper mapper = new BookRecordMapper();
     final java.text.SimpleDateFormat dateFormat = new java.text.SimpleDateFormat("MM/dd/yyyy");
     writer.println("題名,ダイメイ,作者,出版社名,登録番号,新規入力,更新日,廃棄日,備考");
-    for (BookRecord record: bookRecords) {
-      writer.print(quote(record.getTitle()));
-      writer.print(",");
-      writer.print(quote(record.getKatakanaTitle()));
-      writer.print(",");
-      writer.print(quote(record.getAuthors()));
-      writer.print(",");
-      writer.print(quote(record.getPublisher()));
-      writer.print(",");
-      writer.print(quote(record.getId()));
-      writer.print(",");
-      writer.print(quote((record.getRegisterDate() == null)
-              ? "" : dateFormat.format(record.getRegisterDate())));
-      writer.print(",");
-      writer.print(quote(""));
-      writer.print(",");
-      writer.print(quote((record.getDiscardDate() == null)
-              ? "" : dateFormat.format(record.getDiscardDate())));
-      writer.print(",");
-      writer.print(quote(StringUtil.join(record.getComments())));
-      writer.println();
-    }
+    writer.flush();
+    makeStreamingJdbcTemplate().query(sql, new CSVRowCallbackHandler(writer) {
+        protected void writeRow(ResultSet rs, int rowNum) throws SQLException {
+          final BookRecord record = mapper.mapRow(rs, rowNum);
+          writer.print(quote(record.getTitle()));
+          writer.print(",");
+          writer.print(quote(record.getKatakanaTitle()));
+          writer.print(",");
+          writer.print(quote(record.getAuthors()));
+          writer.print(",");
+          writer.print(quote(record.getPublisher()));
+          writer.print(",");
+          writer.print(quote(record.getId()));
+          writer.print(",");
+          writer.print(quote((record.getRegisterDate() == null)
+                  ? "" : dateFormat.format(record.getRegisterDate())));
+          writer.print(",");
+          writer.print(quote(""));
+          writer.print(",");
+          writer.print(quote((record.getDiscardDate() == null)
+                  ? "" : dateFormat.format(record.getDiscardDate())));
+          writer.print(",");
+          writer.print(quote(StringUtil.join(record.getComments())));
+          writer.println();
+        }
+      });
     writer.flush();
   }
 
@@ -852,28 +1047,68 @@ public class DBUtil {
     // Write BOM bytes first for Windows users.
     if ("UTF8".equalsIgnoreCase(encoding) || "UTF-8".equalsIgnoreCase(encoding))
       out.write(UTF8BOMSkippingInputStream.BOM_BYTES);
-    final DataSource dataSource = DBUtil.makeDataSource(false);
-    final SimpleJdbcTemplate jdbcTemplate = new SimpleJdbcTemplate(dataSource);
-    PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, encoding));
+    final PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, encoding));
     final String sql = PersonRecordMapper.getSelectStatement() + " ORDER BY family_id ASC, id ASC";
-    final List<PersonRecord> personRecords = jdbcTemplate.query(sql, new PersonRecordMapper());
+    final PersonRecordMapper mapper = new PersonRecordMapper();
     final java.text.SimpleDateFormat dateFormat = new java.text.SimpleDateFormat("MM/dd/yyyy");
-    for (PersonRecord record: personRecords) {
-      writer.print(record.getFamilyId());
-      writer.print(",");
-      writer.print(record.getType().getDisplayName());
-      writer.print(",");
-      writer.print(record.getName());
-      writer.print(",");
-      writer.print(record.getKatakanaName());
-      writer.print(",");
-      writer.print(record.getRomanName());
-      writer.print(",");
-      if (record.getDeletionDate() != null)
-        writer.print(dateFormat.format(record.getDeletionDate()));
-      writer.println();
-    }
     writer.flush();
+    makeStreamingJdbcTemplate().query(sql, new CSVRowCallbackHandler(writer) {
+        protected void writeRow(ResultSet rs, int rowNum) throws SQLException {
+          final PersonRecord record = mapper.mapRow(rs, rowNum);
+          writer.print(record.getFamilyId());
+          writer.print(",");
+          writer.print(record.getType().getDisplayName());
+          writer.print(",");
+          writer.print(record.getName());
+          writer.print(",");
+          writer.print(record.getKatakanaName());
+          writer.print(",");
+          writer.print(record.getRomanName());
+          writer.print(",");
+          if (record.getDeletionDate() != null)
+            writer.print(dateFormat.format(record.getDeletionDate()));
+          writer.println();
+        }
+      });
+    writer.flush();
+  }
+
+  // CSV 出力時に DB から一度に読む行数と、出力を flush する間隔(行数)。
+  static private final int CSV_FETCH_SIZE = 500;
+  static private final int CSV_FLUSH_INTERVAL = 200;
+
+  /**
+   * A JdbcTemplate which reads rows in chunks of CSV_FETCH_SIZE.
+   */
+  static private final JdbcTemplate makeStreamingJdbcTemplate() {
+    final JdbcTemplate jdbcTemplate = new JdbcTemplate(getReportingDataSource());
+    jdbcTemplate.setFetchSize(CSV_FETCH_SIZE);
+    return jdbcTemplate;
+  }
+
+  /**
+   * Writes each row to the output as it is read from the ResultSet, so
+   * that the whole table is never held in memory.  The output is flushed
+   * periodically so that the download starts immediately.
+   */
+  static private abstract class CSVRowCallbackHandler implements RowCallbackHandler {
+    private final PrintWriter writer;
+    private int rowNum = 0;
+
+    CSVRowCallbackHandler(PrintWriter writer) {
+      this.writer = writer;
+    }
+
+    public final void processRow(ResultSet rs) throws SQLException {
+      writeRow(rs, rowNum++);
+      if (rowNum % CSV_FLUSH_INTERVAL == 0) {
+        writer.flush();
+        if (writer.checkError())  // e.g. the browser has gone away.
+          throw new IllegalStateException("Failed to write CSV at row " + rowNum);
+      }
+    }
+
+    abstract protected void writeRow(ResultSet rs, int rowNum) throws SQLException;
   }
 
   /**
@@ -912,19 +1147,12 @@ public class DBUtil {
       }
       if (!StringUtil.isWhitespace(rs.getString("flags")))
         record.setFlagsFromString(rs.getString("flags"));
+      record.setVersion(rs.getInt("version"));
       return record;
     }
-    static public final String getSQLForSortKeys() {
-      return " SUBSTR(id,1,1) AS category," +
-          " CASE WHEN LOCATE('-',id) = 0"+ 
-          "  THEN CAST(SUBSTR(id,2) AS INT) * 1000"+
-          "  ELSE CAST(SUBSTR(id,2,LOCATE('-',id)-2) AS INT) * 1000"+
-          "       + CAST(SUBSTR(id,LOCATE('-',id)+1) AS INT)"+
-          " END"+
-          " AS sortkey ";
-    }
     static public final String getSelectStatement() {
-      return "SELECT id, title, kana_title, authors, publisher, isbn, image_url, register_date, discard_date, comments, flags,"+getSQLForSortKeys()+" FROM book ";
+      // NB: "ORDER BY category, sortkey" is served by book_sort_idx.
+      return "SELECT id, title, kana_title, authors, publisher, isbn, image_url, register_date, discard_date, comments, flags, category, sortkey, version FROM book ";
     }
   }
 
@@ -940,10 +1168,11 @@ public class DBUtil {
       record.setType(PersonRecord.Type.lookupByDisplayName(rs.getString("type")));
       record.setFamilyId(rs.getInt("family_id"));
       record.setDeletionDate(rs.getDate("deletion_date"));
+      record.setVersion(rs.getInt("version"));
       return record;
     }
     static public final String getSelectStatement() {
-      return "SELECT id, type, name, katakana, romaji, family_id, deletion_date FROM person ";
+      return "SELECT id, type, name, katakana, romaji, family_id, deletion_date, version FROM person ";
     }
   }
 
@@ -974,13 +1203,59 @@ public class DBUtil {
       createTables(dataSource);
       loadPersonRecordsFromCSV(dataSource, 
                                new FileInputStream(args[1]),
-                               new PrintWriter(new OutputStreamWriter(System.out)));
-      for (int i = 2; i < args.length; i++)
-        loadBookRecordsFromCSV(dataSource, args[i]);
-      shutdownDerby();
+                               new PrintWriter(new OutputStreamWriter(System.out), true));
+      loadBookRecordsFromCSV(dataSource, java.util.Arrays.copyOfRange(args, 2, args.length));
+      MutationJournal.getDefault().close();
+      getStorageBackend().shutdown();
+    } else if ("upgrade-db".equals(command)) {
+      final DataSource dataSource = makeDataSource(false);
+      upgradeSchema(dataSource);
+      System.out.println("Schema version: " + new SchemaMigrator(dataSource).getCurrentVersion());
+      getStorageBackend().shutdown();
+    } else if ("rebuild-open-loans".equals(command)) {
+      final DataSource dataSource = makeDataSource(false);
+      makeTransactionTemplate(dataSource).execute(new TransactionCallback() {
+          public Object doInTransaction(TransactionStatus status) {
+            return OpenLoans.rebuild(new SimpleJdbcTemplate(dataSource));
+          }
+        });
+      getStorageBackend().shutdown();
+    } else if ("rebuild-search-index".equals(command)) {
+      BookSearchIndex.rebuild(new SimpleJdbcTemplate(makeDataSource(false)));
+      getStorageBackend().shutdown();
+    } else if ("backup".equals(command)) {
+      final BackupManager.Status status = BackupManager.getDefault().backup();
+      System.out.println(status);
+      getStorageBackend().shutdown();
+    } else if ("replication-master".equals(command)) {
+      // e.g. replication-master /path/to/standby/home: replicates without the web server until killed.
+      final ReplicationManager manager = ReplicationManager.fromSystemProperties();
+      final DataSource pool = getDataSource();  // make sure the schema is up to date.
+      manager.startMaster(makeDataSource(false), (args.length > 1) ? new File(args[1]) : null,
+                          Long.getLong("pjs.replication.timeoutSeconds", 600L) * 1000);
+      manager.startHeartbeat(pool, Long.getLong("pjs.replication.heartbeatMillis", 5000L));
+      System.out.println("Replication: " + manager.getStatistics());
+      Thread.sleep(Long.MAX_VALUE);
+    } else if ("replication-standby".equals(command)) {
+      // in derby.system.home of the standby
+      ReplicationManager.fromSystemProperties().runStandby(System.out);
+      getStorageBackend().shutdown();
+    } else if ("replication-failover".equals(command)) {
+      // e.g. replication-failover /path/to/standby/home (default: derby.system.home)
+      ReplicationManager.fromSystemProperties().requestFailover(
+        (args.length > 1) ? new File(args[1]) : ReplicationManager.getSystemHome());
+    } else if ("replication-lag".equals(command)) {
+      final File home = (args.length > 1) ? new File(args[1]) : ReplicationManager.getSystemHome();
+      System.out.println(ReplicationManager.getLagMillis(
+        new File(home, ReplicationManager.fromSystemProperties().getDatabaseName())) + "ms");
     } else if ("promote".equals(command)) {
       // or go to http://localhost:8080/librarymanager/AprilAprilApril
-      processPromotions();
+      final boolean dryRun = args.length > 1 && "--dry-run".equals(args[1]);
+      System.out.print(GradePromotion.format(processPromotions(dryRun)));
+      MutationJournal.getDefault().close();
+    } else if ("journal-dump".equals(command)) {
+      // e.g. journal-dump 1000 => seq >= 1000
+      MutationJournal.dump(MutationJournal.getDefaultDir(), (args.length > 1) ? Long.parseLong(args[1]) : 0, System.out);
     } else {
       System.err.println("Unknown command: " + command);
     }
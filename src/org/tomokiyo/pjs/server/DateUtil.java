@@ -24,6 +24,21 @@ public class DateUtil {
     return cal.getTime();
   }
 
+  /**
+   * Returns 00:00 of the day of <code>date</code>, so that a day can
+   * be given as a range of a TIMESTAMP column (which can use an index
+   * unlike <code>DATE(column)</code>).
+   */
+  static public final Date startOfDay(Date date) {
+    final Calendar cal = Calendar.getInstance();
+    cal.setTime(date);
+    cal.set(Calendar.HOUR_OF_DAY, 0);
+    cal.set(Calendar.MINUTE, 0);
+    cal.set(Calendar.SECOND, 0);
+    cal.set(Calendar.MILLISECOND, 0);
+    return cal.getTime();
+  }
+
   static public final String formatInWareki(Date date) {
     // NB: JDK6のja_JP_JPロカールによる和暦サポートを使う。
     return DateFormat.getDateInstance(DateFormat.FULL, new Locale("ja", "JP", "JP")).format(date);
@@ -33,9 +48,14 @@ public class DateUtil {
     return formatInWareki(new Date());
   }
 
-  static private final DateFormat DF_SHORT = DateFormat.getDateInstance(DateFormat.SHORT, Locale.US);
+  // NB: DateFormat is not thread-safe; CSV rows are parsed in parallel.
+  static private final ThreadLocal<DateFormat> DF_SHORT = new ThreadLocal<DateFormat>() {
+    protected DateFormat initialValue() {
+      return DateFormat.getDateInstance(DateFormat.SHORT, Locale.US);
+    }
+  };
 
   static public final Date parseShortDate(String dateString) throws java.text.ParseException {
-    return DF_SHORT.parse(dateString);
+    return DF_SHORT.get().parse(dateString);
   }
 }
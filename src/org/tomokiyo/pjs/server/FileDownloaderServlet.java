@@ -67,6 +67,37 @@ public class FileDownloaderServlet extends HttpServlet {
         response.setContentType("text/plain; charset=UTF-8");
         response.setHeader("Content-Disposition", "attachment;filename=pjslib-records.json");
         DBUtil.getJSON(response.getOutputStream());
+      } else if ("cache-stats".equals(type)) {
+        response.setContentType("text/plain; charset=UTF-8");
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(response.getOutputStream(), "UTF-8"));
+        writer.print(RecordCache.getAllStatistics());
+        if (DBUtil.getDataSource() instanceof ConnectionPool)
+          writer.println("pool: " + ((ConnectionPool) DBUtil.getDataSource()).getStatistics());
+        writer.println("reporting pool: " + ((ConnectionPool) DBUtil.getReportingDataSource()).getStatistics());
+        writer.println("circulation locks: " + DBLookupServiceImpl.circulationLocks.getStatistics());
+        writer.println("journal: " + MutationJournal.getDefault().getStatistics());
+        if (DBUtil.getCacheInvalidation() != null)
+          writer.println("cache invalidation: " + DBUtil.getCacheInvalidation().getStatistics());
+        writer.flush();
+      } else if ("import-status".equals(type)) {
+        response.setHeader("Cache-Control", "no-cache");
+        response.setContentType("text/plain; charset=UTF-8");
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(response.getOutputStream(), "UTF-8"));
+        writer.print(ImportProgress.getRecentStatus());
+        writer.flush();
+      } else if ("backup-status".equals(type)) {
+        response.setContentType("text/plain; charset=UTF-8");
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(response.getOutputStream(), "UTF-8"));
+        final BackupManager.Status status = BackupManager.getDefault().getLastStatus();
+        writer.println((status != null) ? status : "No backup has run since the server started.");
+        for (java.io.File snapshot : BackupManager.getDefault().listSnapshots())
+          writer.println(snapshot);
+        writer.flush();
+      } else if ("replication-status".equals(type)) {
+        response.setContentType("text/plain; charset=UTF-8");
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(response.getOutputStream(), "UTF-8"));
+        writer.println("replication: " + ReplicationManager.getDefault().getStatistics());
+        writer.flush();
       } else {
         response.setContentType("text/html; charset=UTF-8");
         PrintWriter writer = new PrintWriter(new OutputStreamWriter(response.getOutputStream(), "UTF-8"));
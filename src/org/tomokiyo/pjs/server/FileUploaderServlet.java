@@ -44,7 +44,8 @@ public class FileUploaderServlet extends HttpServlet {
           if ("user-list".equals(item.getFieldName())) {
             writer.println("Processing an uploaded file: " +
                            item.getName() + "...");
-            DBUtil.loadPersonRecordsFromCSV(item.openStream(), writer);
+            writer.flush();
+            DBUtil.importPersonRecordsFromCSV(item.openStream(), item.getName(), writer);
           } else {
             String msg = "Unknown upload file type: " + item.getFieldName();
             log.warning(msg);
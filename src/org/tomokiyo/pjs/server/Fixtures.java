@@ -0,0 +1,119 @@
+package org.tomokiyo.pjs.server;
+
+import org.tomokiyo.pjs.client.BookRecord;
+import org.tomokiyo.pjs.client.PersonRecord;
+
+import org.springframework.jdbc.core.simple.ParameterizedRowMapper;
+import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import javax.sql.DataSource;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * テストや負荷試験用のデータベース。
+ *
+ * メモリ上の Derby に空のテーブルを作り、架空の家族・利用者・蔵書・
+ * 貸出記録を {@link BulkImporter} と同じ batch insert で入れる。
+ * ディスク上の PJS-DB を使わないので、テスト毎に作り直しても速い。
+ *
+ * <pre>
+ *   final DataSource ds = Fixtures.newDatabase("TestFoo");  // 空の DB
+ *   Fixtures.populate(ds, 100, 1000, 50);
+ * </pre>
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public final class Fixtures {
+  static private final String[][] SURNAMES = {
+    { "山田", "ヤマダ", "Yamada" },
+    { "鈴木", "スズキ", "Suzuki" },
+    { "佐藤", "サトウ", "Sato" },
+    { "田中", "タナカ", "Tanaka" },
+    { "高橋", "タカハシ", "Takahashi" },
+  };
+  static private final String CATEGORIES = "ABCDE";
+
+  private Fixtures() {}
+
+  /**
+   * Returns an in-memory database of the name with all the tables
+   * (re)created empty.
+   */
+  static public DataSource newDatabase(String name) throws SQLException {
+    final DataSource dataSource = StorageBackend.memory(name).makeDataSource(true);
+    DBUtil.createTables(dataSource);
+    RecordCache.forPersons(dataSource).invalidateAll();
+    RecordCache.forBooks(dataSource).invalidateAll();
+    BookIdAllocator.forDataSource(dataSource).reset();
+    return dataSource;
+  }
+
+  /**
+   * Same as above, populated by {@link #populate}.
+   */
+  static public DataSource newDatabase(String name, int numFamilies, int numBooks, int numCheckouts) throws SQLException {
+    final DataSource dataSource = newDatabase(name);
+    populate(dataSource, numFamilies, numBooks, numCheckouts);
+    return dataSource;
+  }
+
+  /**
+   * Adds the fictitious records.  Each family has a parent and a child
+   * (of a grade in turn), the books are numbered from 1 in each of the
+   * categories A to E in turn, and the first numCheckouts books are
+   * checked out (not returned) by the persons in turn.
+   */
+  static public void populate(DataSource dataSource, int numFamilies, int numBooks, int numCheckouts) {
+    final StringWriter messages = new StringWriter();
+    final BulkImporter importer = new BulkImporter(dataSource, new PrintWriter(messages), "UTF-8");
+    final PersonRecord.Type[] types = PersonRecord.Type.values();
+    for (int i = 0; i < numFamilies; i++) {
+      final String[] surname = SURNAMES[i % SURNAMES.length];
+      final String familyId = String.valueOf(i + 1);
+      importer.addPersonRecord(familyId, PersonRecord.Type.PARENTS.getDisplayName(),
+                               surname[0] + " 親" + i, surname[1] + " オヤ", surname[2] + " Oya");
+      importer.addPersonRecord(familyId, types[i % PersonRecord.Type.HIGH3.ordinal()].getDisplayName(),
+                               surname[0] + " 子" + i, surname[1] + " コ", surname[2] + " Ko");
+    }
+    final List<String> bookIds = new ArrayList<String>(numBooks);
+    final java.util.Date today = new java.util.Date();
+    for (int i = 0; i < numBooks; i++) {
+      final BookRecord record = new BookRecord(String.format("%c%03d", CATEGORIES.charAt(i % CATEGORIES.length()),
+                                                             i / CATEGORIES.length() + 1));
+      record.setTitle("本" + i);
+      record.setKatakanaTitle("ホン" + i);
+      record.setAuthors(SURNAMES[i % SURNAMES.length][0] + " 著");
+      record.setRegisterDate(today);
+      importer.addBookRecord(record);
+      bookIds.add(record.getId());
+    }
+    if (importer.hasErrors())
+      throw new IllegalStateException(messages.toString());
+    importer.commit();
+
+    if (numCheckouts <= 0)
+      return;
+    final SimpleJdbcTemplate jdbcTemplate = new SimpleJdbcTemplate(dataSource);
+    final List<Integer> personIds = jdbcTemplate.query("SELECT id FROM Person ORDER BY id", idMapper);
+    if (personIds.isEmpty())
+      throw new IllegalStateException("No person to check out the books");
+    final java.sql.Date dueDate = LoanPolicy.getDefault().getDueDate(PersonRecord.Type.OTHERS, today);
+    final List<Object[]> checkouts = new ArrayList<Object[]>();
+    for (int i = 0; i < Math.min(numCheckouts, bookIds.size()); i++)
+      checkouts.add(new Object[] { personIds.get(i % personIds.size()), bookIds.get(i), dueDate });
+    jdbcTemplate.batchUpdate("INSERT INTO CheckoutHistory (person_id, book_id, due_date) VALUES (?,?,?)", checkouts);
+    OpenLoans.rebuild(jdbcTemplate);
+  }
+
+  static private final ParameterizedRowMapper<Integer> idMapper = new ParameterizedRowMapper<Integer>() {
+    public Integer mapRow(ResultSet rs, int rowNum) throws SQLException {
+      return rs.getInt(1);
+    }
+  };
+} // Fixtures
@@ -0,0 +1,153 @@
+package org.tomokiyo.pjs.server;
+
+import org.tomokiyo.pjs.client.PersonRecord;
+
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import javax.sql.DataSource;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 年度末の進級処理。
+ *
+ * PersonRecord.Type の順 (年少 -> 年中 -> ... -> 高3) で一学年ずつ
+ * 進級させ、高3は卒業 (削除日を設定) とする。CASE 式による一つの
+ * UPDATE を一つのトランザクションで実行するので、途中で止まって
+ * 半分だけ進級した状態になることはない。
+ *
+ * 実行した年度は PromotionLog に記録し、同じ年度に二度実行しても
+ * 二重に進級しない。
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public final class GradePromotion {
+  static public final String CREATE_TABLE_SQL = "CREATE TABLE PromotionLog(" +
+    "school_year INT NOT NULL CONSTRAINT promotion_pk PRIMARY KEY," +
+    "promoted_at TIMESTAMP NOT NULL DEFAULT CURRENT TIMESTAMP," +
+    "summary VARCHAR(256) NOT NULL)";
+
+  // 進級の対象となる学年 (年少から高3まで)。
+  static private final List<PersonRecord.Type> GRADES = new ArrayList<PersonRecord.Type>();
+  static {
+    for (PersonRecord.Type t : PersonRecord.Type.values()) {
+      if (t.ordinal() >= PersonRecord.Type.PRE_L.ordinal()
+          && t.ordinal() <= PersonRecord.Type.HIGH3.ordinal())
+        GRADES.add(t);
+    }
+  }
+  static private final PersonRecord.Type GRADUATING = PersonRecord.Type.HIGH3;
+
+  // UPDATE Person SET type = CASE WHEN type = '年少' THEN '年中' ... ELSE type END, ...
+  static private final String PROMOTION_SQL;
+  static private final String GRADES_IN_LIST;
+  static {
+    final StringBuilder in = new StringBuilder("(");
+    // NB: Derby 10.5 has only the searched CASE (CASE WHEN type = ...).
+    final StringBuilder sbuf = new StringBuilder("UPDATE Person SET type = CASE");
+    for (int i = 0; i < GRADES.size(); i++) {
+      if (i > 0) in.append(',');
+      in.append(quote(GRADES.get(i).getDisplayName()));
+      if (GRADES.get(i) != GRADUATING) {
+        sbuf.append(" WHEN type = ").append(quote(GRADES.get(i).getDisplayName()));
+        sbuf.append(" THEN CAST(").append(quote(GRADES.get(i + 1).getDisplayName())).append(" AS VARCHAR(8))");
+      }
+    }
+    in.append(')');
+    GRADES_IN_LIST = in.toString();
+    sbuf.append(" ELSE type END,");
+    sbuf.append(" deletion_date = CASE WHEN type = ").append(quote(GRADUATING.getDisplayName()));
+    sbuf.append(" THEN CURRENT_DATE ELSE deletion_date END,");
+    sbuf.append(" version = version + 1");
+    sbuf.append(" WHERE deletion_date IS NULL AND type IN ").append(GRADES_IN_LIST);
+    PROMOTION_SQL = sbuf.toString();
+  }
+
+  static private final String quote(String s) {
+    return "'" + s + "'";
+  }
+
+  private final DataSource dataSource;
+  private final SimpleJdbcTemplate jdbcTemplate;
+
+  public GradePromotion(DataSource dataSource) {
+    this.dataSource = dataSource;
+    this.jdbcTemplate = new SimpleJdbcTemplate(dataSource);
+  }
+
+  /**
+   * Returns the number of current (not deleted) persons of each grade,
+   * i.e. the number of persons to be promoted (or to graduate).
+   * This is the dry run.
+   */
+  public Map<PersonRecord.Type,Integer> countByGrade() {
+    final Map<PersonRecord.Type,Integer> counts = new EnumMap<PersonRecord.Type,Integer>(PersonRecord.Type.class);
+    for (PersonRecord.Type t : GRADES)
+      counts.put(t, 0);
+    jdbcTemplate.getJdbcOperations().query(
+      "SELECT type, COUNT(*) FROM Person WHERE deletion_date IS NULL AND type IN " + GRADES_IN_LIST + " GROUP BY type",
+      new RowCallbackHandler() {
+        public void processRow(ResultSet rs) throws SQLException {
+          counts.put(PersonRecord.Type.lookupByDisplayName(rs.getString(1)), rs.getInt(2));
+        }
+      });
+    return counts;
+  }
+
+  /**
+   * Returns true if the promotion of the school year is already done.
+   */
+  public boolean isDone(int schoolYear) {
+    return jdbcTemplate.queryForInt("SELECT COUNT(*) FROM PromotionLog WHERE school_year = ?", schoolYear) > 0;
+  }
+
+  /**
+   * Promotes everyone by one grade in a single transaction and returns
+   * the number of persons promoted from each grade.
+   *
+   * @throws IllegalStateException if already done for the school year.
+   */
+  public Map<PersonRecord.Type,Integer> promote(final int schoolYear) {
+    @SuppressWarnings("unchecked")
+    final Map<PersonRecord.Type,Integer> counts = (Map<PersonRecord.Type,Integer>)
+      DBUtil.makeTransactionTemplate(dataSource).execute(new TransactionCallback() {
+          public Object doInTransaction(TransactionStatus status) {
+            final Map<PersonRecord.Type,Integer> counts = countByGrade();
+            try {
+              // NB: 主キーにより、同時に実行された場合も一方だけが成功する。
+              jdbcTemplate.update("INSERT INTO PromotionLog (school_year, summary) VALUES (?, ?)",
+                                  schoolYear, DBUtil.truncate(counts.toString(), 256));
+            } catch (DataIntegrityViolationException e) {
+              throw new IllegalStateException(schoolYear + "年度の進級処理は既に行なわれています。");
+            }
+            jdbcTemplate.update(PROMOTION_SQL);
+            return counts;
+          }
+        });
+    RecordCache.forPersons(dataSource).invalidateAll();
+    return counts;
+  }
+
+  /**
+   * Formats the counts for display.  e.g. "年少 -> 年中: 12"
+   */
+  static public String format(Map<PersonRecord.Type,Integer> counts) {
+    final StringBuilder sbuf = new StringBuilder();
+    for (Map.Entry<PersonRecord.Type,Integer> e : counts.entrySet()) {
+      final PersonRecord.Type t = e.getKey();
+      sbuf.append(t.getDisplayName()).append(" -> ");
+      sbuf.append((t == GRADUATING) ? "卒業" : GRADES.get(GRADES.indexOf(t) + 1).getDisplayName());
+      sbuf.append(": ").append(e.getValue()).append('\n');
+    }
+    return sbuf.toString();
+  }
+} // GradePromotion
@@ -0,0 +1,80 @@
+package org.tomokiyo.pjs.server;
+
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * CSV の取り込みの進捗。
+ *
+ * アップロードの応答に随時書き出すほか、最近の取り込みは
+ * FileDownloaderServlet の type=import-status で参照できる。
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public final class ImportProgress {
+  // type=import-status で表示する数。
+  static private final int MAX_RECENT = 10;
+  static private final LinkedList<ImportProgress> recent = new LinkedList<ImportProgress>();
+
+  private final String name;
+  private final long startTime = System.currentTimeMillis();
+  private volatile long endTime = 0;
+  private final AtomicInteger parsed = new AtomicInteger();
+  private final AtomicInteger inserted = new AtomicInteger();
+  private final AtomicInteger errors = new AtomicInteger();
+
+  private ImportProgress(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Starts a new import, which is listed in {@link #getRecentStatus}.
+   */
+  static public ImportProgress start(String name) {
+    final ImportProgress progress = new ImportProgress(name);
+    synchronized (recent) {
+      recent.addFirst(progress);
+      if (recent.size() > MAX_RECENT)
+        recent.removeLast();
+    }
+    return progress;
+  }
+
+  public void parsed() { parsed.incrementAndGet(); }
+  public void inserted(int n) { inserted.addAndGet(n); }
+  public void error() { errors.incrementAndGet(); }
+  public void finished() { endTime = System.currentTimeMillis(); }
+
+  public int getParsed() { return parsed.get(); }
+  public int getInserted() { return inserted.get(); }
+  public int getErrors() { return errors.get(); }
+  public boolean isFinished() { return endTime != 0; }
+
+  /**
+   * Inserted rows per second.
+   */
+  public double getThroughput() {
+    final long elapsed = (isFinished() ? endTime : System.currentTimeMillis()) - startTime;
+    return (elapsed == 0) ? 0.0 : inserted.get() * 1000.0 / elapsed;
+  }
+
+  public String toString() {
+    final long elapsed = (isFinished() ? endTime : System.currentTimeMillis()) - startTime;
+    return String.format("%s: %s parsed=%d inserted=%d errors=%d elapsed=%.1fs throughput=%.1f rows/s",
+                         name, isFinished() ? "finished" : "running",
+                         getParsed(), getInserted(), getErrors(),
+                         elapsed / 1000.0, getThroughput());
+  }
+
+  /**
+   * Status of the recent imports, newest first.
+   */
+  static public String getRecentStatus() {
+    final StringBuilder sbuf = new StringBuilder();
+    synchronized (recent) {
+      for (ImportProgress progress : recent)
+        sbuf.append(progress).append('\n');
+    }
+    return sbuf.toString();
+  }
+} // ImportProgress
@@ -0,0 +1,86 @@
+package org.tomokiyo.pjs.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * パラメータ付きの IN リスト。
+ *
+ * Derby は SQL 文の形が違えば毎回コンパイルし直すので、? の数を
+ * BUCKETS のいずれかに切り上げ (余りは最後の値を繰り返して埋める)、
+ * 文の形の数を抑えて statement cache に載るようにする。MAX_SIZE を
+ * 超える場合は partition() で分割して複数回問い合わせる。
+ *
+ * <pre>
+ *   for (List&lt;Integer&gt; chunk : InList.partition(ids)) {
+ *     final List&lt;Object&gt; args = new ArrayList&lt;Object&gt;();
+ *     InList.addArguments(args, chunk);
+ *     jdbcTemplate.query("... WHERE " + InList.sql("id", chunk.size()), mapper, args.toArray());
+ *   }
+ * </pre>
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+final class InList {
+  static final int[] BUCKETS = { 1, 4, 16, 64, 256 };
+  static final int MAX_SIZE = BUCKETS[BUCKETS.length - 1];
+
+  private InList() {}
+
+  /**
+   * Returns the number of markers for n values.
+   */
+  static int bucketSize(int n) {
+    for (int size : BUCKETS)
+      if (n <= size)
+        return size;
+    throw new IllegalArgumentException("Too many values for an IN list: " + n);
+  }
+
+  /**
+   * Returns "column IN (?,...,?)" for n values.
+   */
+  static String sql(String column, int n) {
+    final int size = bucketSize(n);
+    final StringBuilder sbuf = new StringBuilder(column.length() + 6 + size * 2);
+    sbuf.append(column).append(" IN (?");
+    for (int i = 1; i < size; i++)
+      sbuf.append(",?");
+    return sbuf.append(')').toString();
+  }
+
+  /**
+   * Adds the values to args, padded to the bucket size.
+   */
+  static void addArguments(List<Object> args, Collection<?> values) {
+    if (values.isEmpty())
+      throw new IllegalArgumentException("Empty IN list");
+    Object last = null;
+    for (Object value : values)
+      args.add(last = value);
+    for (int i = values.size(); i < bucketSize(values.size()); i++)
+      args.add(last);
+  }
+
+  /**
+   * Returns the values padded to the bucket size, for a query which
+   * has no other arguments.
+   */
+  static Object[] arguments(Collection<?> values) {
+    final List<Object> args = new ArrayList<Object>(bucketSize(values.size()));
+    addArguments(args, values);
+    return args.toArray();
+  }
+
+  /**
+   * Splits the values into chunks of at most MAX_SIZE, keeping the order.
+   */
+  static <T> List<List<T>> partition(Collection<T> values) {
+    final List<T> list = new ArrayList<T>(values);
+    final List<List<T>> chunks = new ArrayList<List<T>>();
+    for (int i = 0; i < list.size(); i += MAX_SIZE)
+      chunks.add(list.subList(i, Math.min(i + MAX_SIZE, list.size())));
+    return chunks;
+  }
+} // InList
@@ -0,0 +1,72 @@
+package org.tomokiyo.pjs.server;
+
+import org.tomokiyo.pjs.client.PersonRecord;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * 貸出期間。
+ *
+ * 貸出時に利用者の分類 (PersonRecord.Type) ごとの貸出期間から返却期限を
+ * 計算し、CheckoutHistory.due_date に保存する。返却期限切れの検索は
+ * due_date の範囲検索になるので (status, due_date) の索引が使える。
+ *
+ * Configured by the system properties below (defaults in parentheses):
+ * <ul>
+ *  <li>pjs.loan.days (14): the loan period in days.
+ *  <li>pjs.loan.days.&lt;Type&gt;: the period of the type, e.g. pjs.loan.days.TEACHER=28.
+ * </ul>
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public final class LoanPolicy {
+  private final Map<PersonRecord.Type,Integer> loanDays = new EnumMap<PersonRecord.Type,Integer>(PersonRecord.Type.class);
+
+  /**
+   * @param defaultDays the loan period of the types not in loanDays.
+   */
+  public LoanPolicy(int defaultDays, Map<PersonRecord.Type,Integer> loanDays) {
+    for (PersonRecord.Type t : PersonRecord.Type.values()) {
+      final Integer days = loanDays.get(t);
+      this.loanDays.put(t, (days != null) ? days : defaultDays);
+    }
+  }
+
+  /**
+   * The policy configured by the "pjs.loan.*" system properties.
+   */
+  static public LoanPolicy getDefault() {
+    return LazyHolder.instance;
+  }
+
+  static private final class LazyHolder {
+    static private final LoanPolicy instance;
+    static {
+      final Map<PersonRecord.Type,Integer> loanDays = new EnumMap<PersonRecord.Type,Integer>(PersonRecord.Type.class);
+      for (PersonRecord.Type t : PersonRecord.Type.values()) {
+        final Integer days = Integer.getInteger("pjs.loan.days." + t.name());
+        if (days != null)
+          loanDays.put(t, days);
+      }
+      instance = new LoanPolicy(Integer.getInteger("pjs.loan.days", 14), loanDays);
+    }
+  }
+
+  public int getLoanDays(PersonRecord.Type type) {
+    return loanDays.get(type);
+  }
+
+  /**
+   * Returns the due date (at 00:00) of a loan.  The book is due by the
+   * end of the day.
+   */
+  public java.sql.Date getDueDate(PersonRecord.Type type, Date checkoutDate) {
+    final Calendar cal = Calendar.getInstance();
+    cal.setTime(checkoutDate);
+    cal.add(Calendar.DAY_OF_MONTH, getLoanDays(type));
+    return new java.sql.Date(DateUtil.startOfDay(cal.getTime()).getTime());
+  }
+} // LoanPolicy
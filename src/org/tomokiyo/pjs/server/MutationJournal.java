@@ -0,0 +1,501 @@
+package org.tomokiyo.pjs.server;
+
+import org.tomokiyo.pjs.client.BookRecord;
+import org.tomokiyo.pjs.client.PersonRecord;
+
+import com.google.gson.Gson;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * 更新の記録 (追記のみ)。
+ *
+ * 貸出、返却、図書や利用者の登録・更新・削除、進級処理、一括登録を
+ * 一行一件の JSON (JSON Lines) で記録する:
+ * <pre>
+ *   {"seq":12,"time":1239012345678,"type":"checkout","data":{"book":"A028-27","person":1234}}
+ * </pre>
+ * append() は queue に入れるだけで、書き込みは専用のスレッドが行なう
+ * (貸出・返却の応答時間は変わらない)。書き込みスレッドは溜まった分を
+ * まとめてメモリマップしたセグメントファイルに書き、一度だけ force
+ * (fsync) する。セグメントが一杯になると次のファイルに移る。
+ * したがって、クラッシュの直前に append() された分は失われることがある。
+ * セグメントに入らない大きさの記録はその一件だけ捨てる。書き込みに
+ * 失敗すると記録をやめ、以後の append() は数えて捨てる
+ * ({@link #getStatistics()} と flush() で分かる)。
+ *
+ * 記録は {@link #replay} で順に読み出せる (e.g. "DBUtil journal-dump")。
+ * 一つのディレクトリには一つのプロセスしか書けない (ロックが取れなければ
+ * 開くのに失敗する)。DB を共有する場合、既定のディレクトリはサーバ毎に
+ * 分かれる。
+ *
+ * Configured by the system properties below (defaults in parentheses):
+ * <ul>
+ *  <li>pjs.journal.enabled (true unless the DB is in memory)
+ *  <li>pjs.journal.dir (${derby.system.home}/journal, or
+ *      ${derby.system.home}/journal/${pjs.node.id} if the DB is shared)
+ *  <li>pjs.journal.segmentSize (16777216): bytes per segment file.
+ * </ul>
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public class MutationJournal {
+  /**
+   * A journal which records nothing.
+   */
+  static public final MutationJournal NONE = new MutationJournal();
+
+  static private final String SEGMENT_PREFIX = "journal-";
+  static private final String SEGMENT_SUFFIX = ".log";
+  static private final String LOCK_FILE = "journal.lock";
+
+  /**
+   * One recorded mutation.
+   */
+  static public final class Event {
+    private long seq;
+    private long time;
+    private String type;
+    private Map<String,Object> data;
+
+    public long getSeq() { return seq; }
+    public long getTime() { return time; }
+    public String getType() { return type; }
+    /** NB: numbers read back by replay() are Doubles. */
+    public Map<String,Object> getData() { return data; }
+
+    public String toString() {
+      return new Gson().toJson(this);
+    }
+  }
+
+  static private final Event CLOSE = new Event();
+
+  // NB: null for NONE.
+  private final File dir;
+  private final int segmentSize;
+  private final BlockingQueue<Event> queue;
+  private final Thread writer;
+  private RandomAccessFile lockFile;
+
+  // State of the writer thread.
+  private int segmentNo;
+  private RandomAccessFile file;
+  private MappedByteBuffer buffer;
+  private long nextSeq;
+
+  // For flush() and the statistics: number of events appended, written,
+  // rejected (too large) and dropped (after a write error).
+  private long numAppended = 0;
+  private long numWritten = 0;
+  private long numRejected = 0;
+  private long numDropped = 0;
+  private IOException writeError = null;
+
+  private MutationJournal() {
+    this.dir = null;
+    this.segmentSize = 0;
+    this.queue = null;
+    this.writer = null;
+  }
+
+  /**
+   * Opens the journal in the directory, appending to the last segment.
+   */
+  public MutationJournal(File dir, int segmentSize) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs())
+      throw new IOException("Cannot create " + dir);
+    lock(dir);
+    this.dir = dir;
+    this.segmentSize = segmentSize;
+    this.queue = new LinkedBlockingQueue<Event>();
+    final List<File> segments = listSegments(dir);
+    // 最後のセグメントの続きから書く。
+    final long[] lastSeq = { 0 };
+    try {
+      if (!segments.isEmpty()) {
+        final File last = segments.get(segments.size() - 1);
+        segmentNo = getSegmentNo(last);
+        final int end = readSegment(last, 0, new Listener() {
+            public void event(Event e) {
+              lastSeq[0] = e.seq;
+            }
+          });
+        openSegment(end);
+      } else {
+        segmentNo = 1;
+        openSegment(0);
+      }
+    } catch (IOException e) {
+      lockFile.close();
+      throw e;
+    }
+    nextSeq = lastSeq[0] + 1;
+    this.writer = new Thread(new Runnable() {
+        public void run() {
+          writeLoop();
+        }
+      }, "pjs-journal");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Takes the lock of the directory, failing if another journal holds it.
+   */
+  private void lock(File dir) throws IOException {
+    lockFile = new RandomAccessFile(new File(dir, LOCK_FILE), "rw");
+    FileLock lock;
+    try {
+      lock = lockFile.getChannel().tryLock();
+    } catch (OverlappingFileLockException e) {
+      lock = null;  // held in this JVM
+    }
+    if (lock == null) {
+      lockFile.close();
+      throw new IOException("The journal " + dir + " is in use by another process");
+    }
+  }
+
+  /**
+   * The journal configured by the "pjs.journal.*" system properties.
+   */
+  static public MutationJournal getDefault() {
+    return LazyHolder.instance;
+  }
+
+  static private final class LazyHolder {
+    static private final MutationJournal instance;
+    static {
+      final boolean enabled = Boolean.valueOf(System.getProperty("pjs.journal.enabled",
+          String.valueOf(!DBUtil.getStorageBackend().isTransient())));
+      try {
+        instance = !enabled ? NONE : new MutationJournal(getDefaultDir(),
+            Integer.getInteger("pjs.journal.segmentSize", 16 << 20));
+      } catch (IOException e) {
+        throw new IllegalStateException(e);  // fatal
+      }
+      // 終了時に queue に残っている分を書く。
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+          public void run() {
+            try {
+              instance.close();
+            } catch (IOException e) {
+              e.printStackTrace();
+            }
+          }
+        });
+    }
+  }
+
+  /**
+   * The directory given by "pjs.journal.dir".
+   */
+  static public File getDefaultDir() {
+    final String dir = System.getProperty("pjs.journal.dir");
+    if (dir != null)
+      return new File(dir);
+    final File base = new File(System.getProperty("derby.system.home", "."), "journal");
+    // NB: 同じマシンで複数のサーバを動かすこともある。
+    return DBUtil.getStorageBackend().isShared()
+      ? new File(base, CacheInvalidation.getDefaultNodeId().replaceAll("[^A-Za-z0-9._@-]", "_")) : base;
+  }
+
+  // ---------------------------------------------------------------------
+  // Recording
+
+  /**
+   * Records a mutation, e.g. append("checkout", "book", bookId, "person", userId).
+   * Returns without waiting for the disk.
+   */
+  public void append(String type, Object... keyValues) {
+    if (queue == null)
+      return;
+    final Event event = new Event();
+    event.time = System.currentTimeMillis();
+    event.type = type;
+    event.data = new LinkedHashMap<String,Object>();
+    for (int i = 0; i + 1 < keyValues.length; i += 2)
+      event.data.put((String) keyValues[i], toJsonValue(keyValues[i + 1]));
+    synchronized (this) {
+      if (writeError != null) {
+        numDropped++;  // NB: 書き込みは止まっているので queue に溜めない。
+        return;
+      }
+      numAppended++;
+    }
+    queue.add(event);
+  }
+
+  static private final Object toJsonValue(Object value) {
+    if (value instanceof Date)
+      return ((Date) value).getTime();
+    if (value instanceof Enum)
+      return value.toString();
+    return value;
+  }
+
+  /**
+   * The fields of a book record to record.
+   */
+  static Map<String,Object> bookFields(BookRecord record) {
+    final Map<String,Object> m = new LinkedHashMap<String,Object>();
+    m.put("id", record.getId());
+    m.put("title", record.getTitle());
+    m.put("kana_title", record.getKatakanaTitle());
+    m.put("authors", record.getAuthors());
+    m.put("publisher", record.getPublisher());
+    m.put("isbn", record.getISBN());
+    m.put("register_date", toJsonValue(record.getRegisterDate()));
+    m.put("discard_date", toJsonValue(record.getDiscardDate()));
+    m.put("comments", StringUtil.join(record.getComments()));
+    m.put("flags", record.getFlagsAsString());
+    return m;
+  }
+
+  /**
+   * The fields of a person record to record.
+   */
+  static Map<String,Object> personFields(PersonRecord record) {
+    final Map<String,Object> m = new LinkedHashMap<String,Object>();
+    m.put("id", record.getId());
+    m.put("family_id", record.getFamilyId());
+    m.put("type", toJsonValue(record.getType()));
+    m.put("name", record.getName());
+    m.put("katakana", record.getKatakanaName());
+    m.put("romaji", record.getRomanName());
+    return m;
+  }
+
+  /**
+   * Waits until all the events appended so far are on the disk.
+   */
+  public void flush() throws IOException {
+    if (queue == null)
+      return;
+    synchronized (this) {
+      final long target = numAppended;
+      while (numWritten + numRejected < target && writeError == null) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted");
+        }
+      }
+      if (writeError != null)
+        throw writeError;
+    }
+  }
+
+  /**
+   * Writes the pending events and stops the writer thread.
+   */
+  public void close() throws IOException {
+    if (queue == null)
+      return;
+    if (writer.isAlive()) {
+      queue.add(CLOSE);
+      try {
+        writer.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    synchronized (this) {
+      if (lockFile != null) {
+        lockFile.close();  // releases the lock
+        lockFile = null;
+      }
+      if (writeError != null)
+        throw writeError;
+    }
+  }
+
+  private void writeLoop() {
+    final Gson gson = new Gson();
+    final List<Event> batch = new ArrayList<Event>();
+    boolean closing = false;
+    while (!closing) {
+      try {
+        batch.add(queue.take());
+      } catch (InterruptedException e) {
+        break;
+      }
+      queue.drainTo(batch);
+      try {
+        int n = 0;
+        int rejected = 0;
+        for (Event event : batch) {
+          if (event == CLOSE) {
+            closing = true;
+            continue;
+          }
+          event.seq = nextSeq;
+          final byte[] line = (gson.toJson(event) + "\n").getBytes("UTF-8");
+          if (line.length >= segmentSize) {
+            // この一件だけ捨てて続ける (seq は次の記録に使う)。
+            System.err.println("Journal: rejected a too large event (" + line.length + " bytes): " + event.type);
+            rejected++;
+            continue;
+          }
+          nextSeq++;
+          write(line);
+          n++;
+        }
+        buffer.force();  // group commit
+        synchronized (this) {
+          numWritten += n;
+          numRejected += rejected;
+          notifyAll();
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+        synchronized (this) {
+          writeError = e;
+          numDropped += numAppended - numWritten - numRejected;  // this batch and the queue
+          queue.clear();
+          notifyAll();
+        }
+        return;
+      } finally {
+        batch.clear();
+      }
+    }
+    try {
+      file.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void write(byte[] line) throws IOException {
+    if (buffer.remaining() < line.length) {
+      buffer.force();
+      file.close();
+      segmentNo++;
+      openSegment(0);
+    }
+    buffer.put(line);
+  }
+
+  private void openSegment(int position) throws IOException {
+    file = new RandomAccessFile(getSegmentFile(dir, segmentNo), "rw");
+    buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    buffer.position(position);
+  }
+
+  // ---------------------------------------------------------------------
+  // Replay
+
+  /**
+   * Receives the events replayed.
+   */
+  public interface Listener {
+    void event(Event e);
+  }
+
+  /**
+   * Feeds the events with seq >= fromSeq in the directory to the
+   * listener in order.  Safe to call while the journal is written, but
+   * the events not yet flushed are not seen.
+   */
+  static public void replay(File dir, long fromSeq, Listener listener) throws IOException {
+    for (File segment : listSegments(dir))
+      readSegment(segment, fromSeq, listener);
+  }
+
+  /**
+   * Reads a segment up to the end of the data (the unwritten part of a
+   * segment is filled with zeros) and returns the end position.
+   */
+  static private int readSegment(File segment, long fromSeq, Listener listener) throws IOException {
+    final RandomAccessFile f = new RandomAccessFile(segment, "r");
+    try {
+      final byte[] bytes = new byte[(int) f.length()];
+      f.readFully(bytes);
+      final Gson gson = new Gson();
+      int start = 0;
+      for (int i = 0; i < bytes.length && bytes[i] != 0; i++) {
+        if (bytes[i] == '\n') {
+          final Event event = gson.fromJson(new String(bytes, start, i - start, "UTF-8"), Event.class);
+          if (event.seq >= fromSeq)
+            listener.event(event);
+          start = i + 1;
+        }
+      }
+      return start;  // NB: drops a partly written line at the end.
+    } finally {
+      f.close();
+    }
+  }
+
+  static private final List<File> listSegments(File dir) {
+    final List<File> segments = new ArrayList<File>();
+    final File[] files = dir.listFiles();
+    if (files == null)
+      return segments;
+    Arrays.sort(files);  // zero-padded numbers
+    for (File f : files)
+      if (f.getName().startsWith(SEGMENT_PREFIX) && f.getName().endsWith(SEGMENT_SUFFIX))
+        segments.add(f);
+    return segments;
+  }
+
+  static private final File getSegmentFile(File dir, int segmentNo) {
+    return new File(dir, String.format("%s%08d%s", SEGMENT_PREFIX, segmentNo, SEGMENT_SUFFIX));
+  }
+
+  static private final int getSegmentNo(File segment) {
+    final String name = segment.getName();
+    return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  /**
+   * Prints the events with seq >= fromSeq as JSON lines.
+   */
+  static public void dump(File dir, long fromSeq, final PrintStream out) throws IOException {
+    replay(dir, fromSeq, new Listener() {
+        public void event(Event e) {
+          out.println(e);
+        }
+      });
+  }
+
+  /**
+   * Summary of the statistics in one line.
+   */
+  public synchronized String getStatistics() {
+    if (queue == null)
+      return "disabled";
+    return "dir=" + dir
+      + ", appended=" + numAppended
+      + ", written=" + numWritten
+      + ", rejected=" + numRejected
+      + ", dropped=" + numDropped
+      + ((writeError != null) ? ", error=" + writeError : "");
+  }
+
+  /**
+   * The directory of the journal, or null for NONE.
+   */
+  public File getDir() {
+    return dir;
+  }
+} // MutationJournal
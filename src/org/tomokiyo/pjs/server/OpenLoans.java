@@ -0,0 +1,77 @@
+package org.tomokiyo.pjs.server;
+
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+
+import java.sql.SQLException;
+
+/**
+ * 貸出中の図書 (OpenLoan テーブル)。
+ *
+ * 図書ID を主キーとして、未返却の貸出 (CheckoutHistory の status = 1 の行)
+ * を一冊につき一行だけ持つ。貸出は OpenLoan への INSERT が主キーの
+ * 重複で失敗することで二重貸出を防ぎ、貸出中かどうかの確認は主キーの
+ * 検索で済む。CheckoutHistory と同じトランザクションで更新すること。
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public final class OpenLoans {
+  static public final String CREATE_TABLE_SQL = "CREATE TABLE OpenLoan(" +
+    "book_id VARCHAR(20) NOT NULL CONSTRAINT open_loan_pk PRIMARY KEY" +
+    " CONSTRAINT open_loan_book_ref REFERENCES Book(id) ON DELETE NO ACTION," +
+    "history_id INT)";  // CheckoutHistory.id (checkOut で INSERT の直後に設定する)
+
+  private OpenLoans() {}
+
+  /**
+   * Records a checkout of the book in CheckoutHistory and OpenLoan.
+   * Returns false (and records nothing) if the book is already checked
+   * out.  Must be called in a transaction.
+   */
+  static public boolean checkOut(final SimpleJdbcTemplate jdbcTemplate, String bookId, int personId, java.sql.Date dueDate) {
+    try {
+      jdbcTemplate.update("INSERT INTO OpenLoan (book_id) VALUES (?)", bookId);
+    } catch (DataIntegrityViolationException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof SQLException && "23505".equals(((SQLException) cause).getSQLState()))
+        return false;  // 貸出中 (Derby rolls back only the failed statement)
+      throw e;  // e.g. no such book
+    }
+    jdbcTemplate.update("INSERT INTO CheckoutHistory (book_id, person_id, due_date) VALUES (?, ?, ?)",
+                        bookId, personId, dueDate);
+    jdbcTemplate.update("UPDATE OpenLoan SET history_id = IDENTITY_VAL_LOCAL() WHERE book_id = ?", bookId);
+    return true;
+  }
+
+  /**
+   * The condition on CheckoutHistory for the open loans of n books
+   * (the arguments are given by {@link InList#arguments}).
+   */
+  static String condition(int n) {
+    return "CheckoutHistory.id IN (SELECT history_id FROM OpenLoan WHERE " + InList.sql("book_id", n) + ")";
+  }
+
+  /**
+   * Rebuilds the table from CheckoutHistory and returns the number of
+   * the open loans.  If a book has more than one unreturned loan in
+   * the history, the latest one is taken and the older ones are closed
+   * as returned when the book was checked out again.  Must be called
+   * in a transaction.
+   */
+  static public int rebuild(final SimpleJdbcTemplate jdbcTemplate) {
+    jdbcTemplate.update("DELETE FROM OpenLoan");
+    final int n = jdbcTemplate.update("INSERT INTO OpenLoan (book_id, history_id)"
+                                      + " SELECT book_id, MAX(id) FROM CheckoutHistory WHERE status = 1 GROUP BY book_id");
+    // NB: 残しておくと延滞の一覧に出続け、返却もできない。
+    final int stale = jdbcTemplate.update(
+      "UPDATE CheckoutHistory SET status = 0, returned_date ="
+      + " (SELECT h.checkout_date FROM OpenLoan o INNER JOIN CheckoutHistory h ON o.history_id = h.id"
+      + "  WHERE o.book_id = CheckoutHistory.book_id)"
+      + " WHERE status = 1 AND NOT EXISTS (SELECT 1 FROM OpenLoan o WHERE o.history_id = CheckoutHistory.id)");
+    if (stale > 0)
+      System.err.println("Warning: closed " + stale + " older unreturned loans of the checked out books"
+                         + " (returned_date is set to the next checkout).");
+    System.out.println("Rebuilt OpenLoan with " + n + " loans.");
+    return n;
+  }
+} // OpenLoans
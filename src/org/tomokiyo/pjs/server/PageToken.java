@@ -0,0 +1,47 @@
+package org.tomokiyo.pjs.server;
+
+import org.apache.commons.codec.binary.Base64;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Continuation token of keyset pagination.  The token holds the sort
+ * key of the last row of the page, but clients should treat it as an
+ * opaque string.
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+final class PageToken {
+  private PageToken() {}
+
+  static public String encode(String kind, Object... key) {
+    final StringBuilder sbuf = new StringBuilder(kind);
+    for (Object o : key)
+      sbuf.append('\t').append(o);
+    try {
+      return Base64.encodeBase64URLSafeString(sbuf.toString().getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);  // never happens
+    }
+  }
+
+  /**
+   * Returns the sort key in the token.
+   *
+   * @exception IllegalArgumentException if the token was not made by
+   * {@link #encode} for the same kind of list.
+   */
+  static public String[] decode(String token, String kind, int keyLength) {
+    final String[] split;
+    try {
+      split = new String(Base64.decodeBase64(token), "UTF-8").split("\t", -1);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);  // never happens
+    }
+    if (split.length != keyLength + 1 || !split[0].equals(kind))
+      throw new IllegalArgumentException("Invalid continuation token: " + token);
+    final String[] key = new String[keyLength];
+    System.arraycopy(split, 1, key, 0, keyLength);
+    return key;
+  }
+} // PageToken
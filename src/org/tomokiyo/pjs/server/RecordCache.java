@@ -0,0 +1,381 @@
+package org.tomokiyo.pjs.server;
+
+import org.tomokiyo.pjs.client.BookRecord;
+import org.tomokiyo.pjs.client.PersonRecord;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.simple.ParameterizedRowMapper;
+import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import javax.sql.DataSource;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 図書番号/利用者番号によるレコード参照のためのキャッシュ。
+ *
+ * バーコードの読み取り毎に行なわれる lookupBookByID/lookupUserByID
+ * のためのもので、サイズを超えると最も古く参照されたものから捨てる。
+ * 存在しない番号は negative filter (Bloom filter) で DB を参照せずに
+ * 判定する。レコードを変更する処理は invalidate() を呼ぶこと。
+ *
+ * キャッシュは DataSource 毎に一つ。複数のサーバで DB を共有する場合は、
+ * 変更を {@link CacheInvalidation} で他のサーバのキャッシュに伝える。
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public final class RecordCache<K,V> {
+  /**
+   * How to read records from the database.
+   */
+  static public interface Loader<K,V> {
+    /** Returns the record, or null if there is no such record. */
+    V load(K key);
+    /** Returns all the existing keys, for the negative filter. */
+    Collection<K> loadAllKeys();
+    /** Returns a copy so that callers may modify the record. */
+    V copy(V value);
+  }
+
+  /**
+   * Told of every invalidation made by this process.
+   */
+  static public interface InvalidationListener {
+    /** @param key the invalidated key, or null for all. */
+    void invalidated(String cacheName, Object key);
+  }
+
+  private final String name;
+  private final int maxSize;
+  private final Loader<K,V> loader;
+  private final LinkedHashMap<K,V> map;
+  private BloomFilter negativeFilter;  // null until the first lookup
+  private long generation;  // incremented by every invalidation
+  private volatile InvalidationListener listener;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong negativeHits = new AtomicLong();
+
+  public RecordCache(String name, int maxSize, Loader<K,V> loader) {
+    this.name = name;
+    this.maxSize = maxSize;
+    this.loader = loader;
+    this.map = new LinkedHashMap<K,V>(16, 0.75f, true) {  // access order
+        protected boolean removeEldestEntry(Map.Entry<K,V> eldest) {
+          if (size() <= RecordCache.this.maxSize)
+            return false;
+          evictions.incrementAndGet();
+          return true;
+        }
+      };
+  }
+
+  /**
+   * Returns a copy of the record, or null if there is no such record.
+   */
+  public V get(K key) {
+    final long gen;
+    synchronized (this) {
+      final V value = map.get(key);
+      if (value != null) {
+        hits.incrementAndGet();
+        return loader.copy(value);
+      }
+      if (!getNegativeFilter().mightContain(key)) {
+        negativeHits.incrementAndGet();
+        return null;
+      }
+      gen = generation;
+    }
+    misses.incrementAndGet();
+    // NB: DB access is done outside of the lock.
+    final V value = loader.load(key);
+    if (value == null)
+      return null;
+    synchronized (this) {
+      // Do not cache a value which may have been invalidated while loading.
+      if (gen == generation)
+        map.put(key, loader.copy(value));
+    }
+    return value;
+  }
+
+  /**
+   * Returns a copy of the record if it is in the cache, or null
+   * without accessing the database.
+   */
+  public synchronized V peek(K key) {
+    final V value = map.get(key);
+    return (value == null) ? null : loader.copy(value);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void setInvalidationListener(InvalidationListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Call this after the record is modified.
+   */
+  public void invalidate(K key) {
+    synchronized (this) {
+      generation++;
+      map.remove(key);
+    }
+    publish(key);
+  }
+
+  /**
+   * Call this after a new record is inserted.
+   */
+  public void added(K key) {
+    addedLocally(key);
+    publish(key);
+  }
+
+  /**
+   * Same as added() without telling the listener.  (A modification made
+   * by another process is applied as an addition, since the record may
+   * be new to the negative filter.)
+   */
+  synchronized void addedLocally(K key) {
+    generation++;
+    map.remove(key);
+    if (negativeFilter != null)
+      negativeFilter.add(key);
+  }
+
+  /**
+   * Call this after bulk modification.  The negative filter is rebuilt
+   * on the next lookup.
+   */
+  public void invalidateAll() {
+    invalidateAllLocally();
+    publish(null);
+  }
+
+  synchronized void invalidateAllLocally() {
+    generation++;
+    map.clear();
+    negativeFilter = null;
+  }
+
+  // NB: called outside of the lock as the listener may access the DB.
+  private void publish(K key) {
+    final InvalidationListener l = listener;
+    if (l != null)
+      l.invalidated(name, key);
+  }
+
+  private BloomFilter getNegativeFilter() {
+    if (negativeFilter == null) {
+      final Collection<K> keys = loader.loadAllKeys();
+      negativeFilter = new BloomFilter(keys.size());
+      for (K key : keys)
+        negativeFilter.add(key);
+    }
+    return negativeFilter;
+  }
+
+  public String getStatistics() {
+    final int size;
+    synchronized (this) {
+      size = map.size();
+    }
+    return name + ": size=" + size + ", max=" + maxSize
+      + ", hits=" + hits.get() + ", misses=" + misses.get()
+      + ", negativeHits=" + negativeHits.get() + ", evictions=" + evictions.get();
+  }
+
+  /**
+   * A simple Bloom filter with 3 hash functions and 16 bits per key.
+   * After many additions the false positive rate goes up, which only
+   * costs extra DB lookups until the next invalidateAll().
+   */
+  static private final class BloomFilter {
+    private final BitSet bits;
+    private final int numBits;
+
+    BloomFilter(int expectedSize) {
+      this.numBits = Math.max(1024, expectedSize * 16);
+      this.bits = new BitSet(numBits);
+    }
+
+    void add(Object key) {
+      final int h = key.hashCode();
+      for (int i = 0; i < 3; i++)
+        bits.set(index(h, i));
+    }
+
+    boolean mightContain(Object key) {
+      final int h = key.hashCode();
+      for (int i = 0; i < 3; i++)
+        if (!bits.get(index(h, i)))
+          return false;
+      return true;
+    }
+
+    private int index(int h, int i) {
+      // double hashing: h1 + i * h2
+      int h2 = h * 0x9E3779B9;
+      h2 ^= (h2 >>> 16);
+      return ((h + i * h2) & 0x7fffffff) % numBits;
+    }
+  }
+
+  // ---------------------------------------------------------------------
+  // Caches for each DataSource.
+
+  static private final int BOOK_CACHE_SIZE = Integer.getInteger("pjs.cache.books.size", 4096);
+  static private final int PERSON_CACHE_SIZE = Integer.getInteger("pjs.cache.persons.size", 2048);
+
+  static private final Map<DataSource,RecordCache<String,BookRecord>> bookCaches =
+    new HashMap<DataSource,RecordCache<String,BookRecord>>();
+  static private final Map<DataSource,RecordCache<Integer,PersonRecord>> personCaches =
+    new HashMap<DataSource,RecordCache<Integer,PersonRecord>>();
+
+  static private final DataSource getDataSource(SimpleJdbcTemplate jdbcTemplate) {
+    return ((JdbcTemplate) jdbcTemplate.getJdbcOperations()).getDataSource();
+  }
+
+  /**
+   * BookRecord by (normalized) book ID.
+   */
+  static public RecordCache<String,BookRecord> forBooks(SimpleJdbcTemplate jdbcTemplate) {
+    return forBooks(getDataSource(jdbcTemplate));
+  }
+
+  static public RecordCache<String,BookRecord> forBooks(DataSource dataSource) {
+    synchronized (bookCaches) {
+      RecordCache<String,BookRecord> cache = bookCaches.get(dataSource);
+      if (cache == null) {
+        cache = new RecordCache<String,BookRecord>("books", BOOK_CACHE_SIZE, new BookLoader(new SimpleJdbcTemplate(dataSource)));
+        bookCaches.put(dataSource, cache);
+      }
+      return cache;
+    }
+  }
+
+  /**
+   * PersonRecord by person ID.
+   */
+  static public RecordCache<Integer,PersonRecord> forPersons(SimpleJdbcTemplate jdbcTemplate) {
+    return forPersons(getDataSource(jdbcTemplate));
+  }
+
+  static public RecordCache<Integer,PersonRecord> forPersons(DataSource dataSource) {
+    synchronized (personCaches) {
+      RecordCache<Integer,PersonRecord> cache = personCaches.get(dataSource);
+      if (cache == null) {
+        cache = new RecordCache<Integer,PersonRecord>("persons", PERSON_CACHE_SIZE, new PersonLoader(new SimpleJdbcTemplate(dataSource)));
+        personCaches.put(dataSource, cache);
+      }
+      return cache;
+    }
+  }
+
+  static private final ParameterizedRowMapper<String> stringMapper = new ParameterizedRowMapper<String>() {
+    public String mapRow(ResultSet rs, int rowNum) throws SQLException {
+      return rs.getString(1).trim();
+    }
+  };
+
+  static private final ParameterizedRowMapper<Integer> intMapper = new ParameterizedRowMapper<Integer>() {
+    public Integer mapRow(ResultSet rs, int rowNum) throws SQLException {
+      return rs.getInt(1);
+    }
+  };
+
+  static private final Date copyOf(Date date) {
+    return (date == null) ? null : new java.sql.Date(date.getTime());
+  }
+
+  static private final class BookLoader implements Loader<String,BookRecord> {
+    private final SimpleJdbcTemplate jdbcTemplate;
+    BookLoader(SimpleJdbcTemplate jdbcTemplate) {
+      this.jdbcTemplate = jdbcTemplate;
+    }
+    public BookRecord load(String id) {
+      final java.util.List<BookRecord> list = jdbcTemplate.query(
+        DBUtil.BookRecordMapper.getSelectStatement() + " WHERE id = ?",
+        new DBUtil.BookRecordMapper(), id);
+      return list.isEmpty() ? null : list.get(0);
+    }
+    public Collection<String> loadAllKeys() {
+      return jdbcTemplate.query("SELECT id FROM Book", stringMapper);
+    }
+    public BookRecord copy(BookRecord r) {
+      final BookRecord copy = new BookRecord(r.getId());
+      copy.setTitle(r.getTitle());
+      copy.setKatakanaTitle(r.getKatakanaTitle());
+      copy.setAuthors(r.getAuthors());
+      copy.setPublisher(r.getPublisher());
+      copy.setISBN(r.getISBN());
+      copy.setImageURL(r.getImageURL());
+      copy.setRegisterDate(copyOf(r.getRegisterDate()));
+      copy.setDiscardDate(copyOf(r.getDiscardDate()));
+      for (String comment : r.getComments())
+        copy.addComment(comment);
+      copy.setFlagsFromString(r.getFlagsAsString());
+      copy.setVersion(r.getVersion());
+      return copy;
+    }
+  }
+
+  static private final class PersonLoader implements Loader<Integer,PersonRecord> {
+    private final SimpleJdbcTemplate jdbcTemplate;
+    PersonLoader(SimpleJdbcTemplate jdbcTemplate) {
+      this.jdbcTemplate = jdbcTemplate;
+    }
+    public PersonRecord load(Integer id) {
+      // NOTE: "AND deletion_date IS NULL" はここでは不要。
+      final java.util.List<PersonRecord> list = jdbcTemplate.query(
+        DBUtil.PersonRecordMapper.getSelectStatement() + " WHERE id = ?",
+        new DBUtil.PersonRecordMapper(), id);
+      return list.isEmpty() ? null : list.get(0);
+    }
+    public Collection<Integer> loadAllKeys() {
+      return jdbcTemplate.query("SELECT id FROM Person", intMapper);
+    }
+    public PersonRecord copy(PersonRecord r) {
+      final PersonRecord copy = new PersonRecord(r.getId());
+      copy.setName(r.getName());
+      copy.setKatakanaName(r.getKatakanaName());
+      copy.setRomanName(r.getRomanName());
+      copy.setType(r.getType());
+      copy.setFamilyId(r.getFamilyId());
+      copy.setDeletionDate(copyOf(r.getDeletionDate()));
+      copy.setVersion(r.getVersion());
+      return copy;
+    }
+  }
+
+  /**
+   * Statistics of all the caches, for sizing.
+   */
+  static public String getAllStatistics() {
+    final StringBuilder sbuf = new StringBuilder();
+    synchronized (bookCaches) {
+      for (RecordCache<String,BookRecord> cache : bookCaches.values())
+        sbuf.append(cache.getStatistics()).append('\n');
+    }
+    synchronized (personCaches) {
+      for (RecordCache<Integer,PersonRecord> cache : personCaches.values())
+        sbuf.append(cache.getStatistics()).append('\n');
+    }
+    return sbuf.toString();
+  }
+} // RecordCache
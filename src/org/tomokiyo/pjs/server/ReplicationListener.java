@@ -0,0 +1,52 @@
+package org.tomokiyo.pjs.server;
+
+import java.io.File;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Starts the replication to the standby with the web application if
+ * "pjs.replication.host" is set, and stops the heartbeat on shutdown.
+ * See {@link ReplicationManager}.
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public class ReplicationListener implements ServletContextListener {
+  static private boolean isEnabled() {
+    // NB: DB を共有する場合は DB サーバ側で行なう。
+    return System.getProperty("pjs.replication.host") != null
+      && !DBUtil.getStorageBackend().isTransient() && !DBUtil.getStorageBackend().isShared();
+  }
+
+  public void contextInitialized(ServletContextEvent event) {
+    if (!isEnabled())
+      return;
+    final ServletContext context = event.getServletContext();
+    final String standbyHome = System.getProperty("pjs.replication.standbyHome");
+    // standby を待つ間もサーバの起動は続ける (複製して接続する間だけ DB が凍結され、更新は待たされる)。
+    final Thread t = new Thread("pjs-replication-start") {
+        public void run() {
+          final ReplicationManager manager = ReplicationManager.getDefault();
+          try {
+            final javax.sql.DataSource pool = DBUtil.getDataSource();  // make sure the schema is up to date.
+            manager.startMaster(DBUtil.makeDataSource(false),
+                                (standbyHome != null) ? new File(standbyHome) : null,
+                                Long.getLong("pjs.replication.timeoutSeconds", 600L) * 1000);
+            manager.startHeartbeat(pool, Long.getLong("pjs.replication.heartbeatMillis", 5000L));
+            context.log("Replication: " + manager.getStatistics());
+          } catch (Exception e) {
+            context.log("Failed to start the replication", e);
+          }
+        }
+      };
+    t.setDaemon(true);
+    t.start();
+  }
+
+  public void contextDestroyed(ServletContextEvent event) {
+    if (!isEnabled())
+      return;
+    ReplicationManager.getDefault().stopHeartbeat();
+  }
+} // ReplicationListener
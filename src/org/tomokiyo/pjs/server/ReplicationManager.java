@@ -0,0 +1,431 @@
+package org.tomokiyo.pjs.server;
+
+import org.apache.derby.jdbc.EmbeddedDataSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import javax.sql.DataSource;
+
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * データベースの warm standby (Derby のレプリケーション)。
+ *
+ * 稼働中の DB (master) のトランザクションログを、別の JVM の Derby
+ * (standby) に送り続ける。standby はログを適用するだけで接続は受け付け
+ * ないが、failover すると通常の DB として起動し、master でコミット
+ * された貸出・返却をすべて持っている。
+ *
+ * 手順:
+ * <ol>
+ *  <li>standby を起動する: "DBUtil replication-standby" (derby.system.home は
+ *      standby 用のディレクトリ)。"DB名.waiting" を作って DB の複製が届くのを
+ *      待ち、届いたら pjs.replication.host:port で master からの接続を待つ。
+ *  <li>Web サーバ (master) を pjs.replication.host 付きで起動する
+ *      ({@link ReplicationListener})。standby が複製を待つようになってから
+ *      DB を凍結し、standby の derby.system.home (pjs.replication.standbyHome)
+ *      に複製してログの送信を始める。凍結はその間だけ。
+ *  <li>master が止まったら "DBUtil replication-failover" を実行する。
+ *      standby は通常の DB になるので ("DB名.failedover" ができる)、その
+ *      derby.system.home で Web サーバを起動する。
+ * </ol>
+ * 複製は standby が待っている場合にしか行なわないので、failover した DB や
+ * 使用中の DB を上書きすることはない。
+ * 複製はファイルのコピーなので、standbyHome は同じマシンかマウントされた
+ * ディレクトリでなければならない。そうでなければ DB を凍結している間に
+ * 手で複製し、standby の derby.system.home に "DB名.ready" を作る
+ * (この場合は standby が接続するまで凍結したまま)。
+ *
+ * 遅れ (lag) は Derby からは取れないので、standby のログファイルの
+ * 更新時刻からの経過時間で測る。master は heartbeatMillis 毎に
+ * ReplicationHeartbeat テーブルを更新するので、遅れがそれより大きければ
+ * ログが届いていない。failover 後は、このテーブルで最後に届いた時刻がわかる。
+ * master が止まった場合に失われるのは、最後にログを送ってからの更新
+ * (derby.replication.maxLogShippingInterval、ここでは default 1 秒) のみ。
+ *
+ * Configured by the system properties below (defaults in parentheses):
+ * <ul>
+ *  <li>pjs.replication.host (localhost): the address the standby listens on.
+ *      The server replicates only if this is set.
+ *  <li>pjs.replication.port (4851)
+ *  <li>pjs.replication.standbyHome (none): derby.system.home of the standby
+ *      to copy the database to.  If not set, the copy is made by hand.
+ *  <li>pjs.replication.heartbeatMillis (5000)
+ *  <li>pjs.replication.timeoutSeconds (600): how long the master waits for the standby.
+ *      The database is not frozen while it waits, unless the copy is made by hand.
+ * </ul>
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public final class ReplicationManager {
+  static public final String CREATE_TABLE_SQL = "CREATE TABLE ReplicationHeartbeat(" +
+    "node VARCHAR(64) NOT NULL CONSTRAINT replication_heartbeat_pk PRIMARY KEY," +
+    "beat TIMESTAMP NOT NULL)";
+
+  // standby の derby.system.home に置くファイル (DB名 + suffix)
+  static private final String WAITING_SUFFIX = ".waiting";          // standby が複製を待っている
+  static private final String READY_SUFFIX = ".ready";              // 複製が完了した
+  static private final String FAILOVER_SUFFIX = ".failover";        // failover の要求
+  static private final String FAILED_OVER_SUFFIX = ".failedover";   // failover した (もう standby ではない)
+
+  // Derby が standby にログを送る最大の間隔 (default 5000ms)。master が
+  // 止まると、最後に送ってからコミットされたものは失われる。
+  static private final String MAX_SHIPPING_INTERVAL = "derby.replication.maxLogShippingInterval";
+
+  static private final long POLL_MILLIS = 1000;
+  static private final long LAG_REPORT_MILLIS = 10 * 1000L;
+  // 複製が届いてから standby が接続を待つようになるまで。
+  static private final long START_STANDBY_MILLIS = 60 * 1000L;
+
+  private final String dbName;
+  private final String host;
+  private final int port;
+
+  private ScheduledExecutorService scheduler = null;
+  private volatile String state = "stopped";
+
+  // Statistics.
+  private final AtomicLong numHeartbeats = new AtomicLong();
+  private final AtomicLong numErrors = new AtomicLong();
+
+  public ReplicationManager(String dbName, String host, int port) {
+    this.dbName = dbName;
+    this.host = host;
+    this.port = port;
+  }
+
+  /**
+   * Create a manager configured by the "pjs.replication.*" system properties.
+   */
+  static public ReplicationManager fromSystemProperties() {
+    return new ReplicationManager(System.getProperty("pjs.db.name", DBUtil.DB_NAME),
+                                  System.getProperty("pjs.replication.host", "localhost"),
+                                  Integer.getInteger("pjs.replication.port", 4851));
+  }
+
+  /**
+   * The manager of the application database.
+   */
+  static public ReplicationManager getDefault() {
+    return LazyHolder.instance;
+  }
+
+  static private final class LazyHolder {
+    static private final ReplicationManager instance = fromSystemProperties();
+  }
+
+  /**
+   * derby.system.home of this process.
+   */
+  static public File getSystemHome() {
+    return new File(System.getProperty("derby.system.home", "."));
+  }
+
+  private Connection connect(String attributes) throws SQLException {
+    final EmbeddedDataSource ds = new EmbeddedDataSource();
+    ds.setDatabaseName(dbName);
+    ds.setConnectionAttributes(attributes);
+    return ds.getConnection();
+  }
+
+  private String peer() {
+    return "slaveHost=" + host + ";slavePort=" + port;
+  }
+
+  // ---------------------------------------------------------------------
+  // Master
+
+  /**
+   * Copies the database to standbyHome (unless null) and starts sending
+   * the log to the standby.  Waits at most timeoutMillis for the standby
+   * to wait for the copy, then freezes the database (updates wait) only
+   * while copying it and connecting to the standby.  If standbyHome is
+   * null, the database is frozen until the standby accepts the connection.
+   *
+   * @param dataSource a non-pooled DataSource of the database.
+   */
+  public void startMaster(DataSource dataSource, File standbyHome, long timeoutMillis)
+    throws SQLException, IOException, InterruptedException {
+    state = "starting";
+    if (System.getProperty(MAX_SHIPPING_INTERVAL) == null)
+      System.setProperty(MAX_SHIPPING_INTERVAL, "1000");
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    try {
+      if (standbyHome != null) {
+        // NB: 凍結するのは standby が待つようになってから。
+        final File waiting = new File(standbyHome, dbName + WAITING_SUFFIX);
+        state = "waiting for the standby in " + standbyHome;
+        while (!waiting.exists()) {
+          if (System.currentTimeMillis() > deadline)
+            throw new IOException("The standby in " + standbyHome + " is not waiting for a copy");
+          Thread.sleep(POLL_MILLIS);
+        }
+        deadline = System.currentTimeMillis() + START_STANDBY_MILLIS;
+      }
+      final Connection conn = dataSource.getConnection();
+      try {
+        final Statement s = conn.createStatement();
+        s.execute("CALL SYSCS_UTIL.SYSCS_FREEZE_DATABASE()");
+        try {
+          if (standbyHome != null)
+            copyTo(standbyHome);
+          while (true) {
+            try {
+              connect("startMaster=true;" + peer()).close();
+              break;
+            } catch (SQLException e) {
+              // XRE04: standby はまだ接続を待っていない。
+              if (!"XRE04".equals(e.getSQLState()) || System.currentTimeMillis() > deadline)
+                throw e;
+              Thread.sleep(POLL_MILLIS);
+            }
+          }
+        } finally {
+          s.execute("CALL SYSCS_UTIL.SYSCS_UNFREEZE_DATABASE()");
+          s.close();
+        }
+      } finally {
+        conn.close();
+      }
+    } catch (SQLException e) {
+      state = "failed: " + e.getMessage();
+      throw e;
+    } catch (IOException e) {
+      state = "failed: " + e.getMessage();
+      throw e;
+    }
+    state = "master since " + new Date() + ", standby " + host + ":" + port;
+  }
+
+  /**
+   * Replaces the database in standbyHome with a copy of ours, if the
+   * standby there waits for it.  The database must be frozen.
+   */
+  private void copyTo(File standbyHome) throws IOException {
+    final File copy = new File(standbyHome, dbName);
+    // NB: failover した DB や使用中の DB は消さない。
+    if (!new File(standbyHome, dbName + WAITING_SUFFIX).exists())
+      throw new IOException("The standby in " + standbyHome + " is not waiting for a copy");
+    if (new File(standbyHome, dbName + FAILED_OVER_SUFFIX).exists() || isBooted(copy))
+      throw new IOException(copy + " is in use");
+    final File ready = new File(standbyHome, dbName + READY_SUFFIX);
+    ready.delete();
+    BackupManager.deleteRecursively(copy);
+    BackupManager.copyRecursively(new File(getSystemHome(), dbName), copy);
+    if (!ready.createNewFile())
+      throw new IOException("Cannot create " + ready);
+  }
+
+  /**
+   * Returns true if the database in dbDir is booted by Derby (in any
+   * process), which locks dbex.lck while the database is up.
+   */
+  static boolean isBooted(File dbDir) throws IOException {
+    final File lockFile = new File(dbDir, "dbex.lck");
+    if (!lockFile.exists())
+      return false;
+    final RandomAccessFile f = new RandomAccessFile(lockFile, "rw");
+    try {
+      final FileLock lock = f.getChannel().tryLock();
+      if (lock == null)
+        return true;
+      lock.release();
+      return false;
+    } catch (OverlappingFileLockException e) {
+      return true;  // booted in this JVM
+    } finally {
+      f.close();
+    }
+  }
+
+  /**
+   * Stops sending the log.  The standby shuts down its copy, which must
+   * be copied again to restart the replication.
+   */
+  public void stopMaster() throws SQLException {
+    stopHeartbeat();
+    try {
+      connect("stopMaster=true").close();
+    } catch (SQLException e) {
+      if (!"XRE07".equals(e.getSQLState()))  // XRE07: not a master (already stopped)
+        throw e;
+    }
+    state = "stopped";
+  }
+
+  /**
+   * Updates ReplicationHeartbeat every intervalMillis in a background
+   * thread, so that the log keeps flowing to the standby.
+   */
+  public synchronized void startHeartbeat(final DataSource dataSource, long intervalMillis) {
+    if (scheduler != null)
+      return;
+    final String nodeId = CacheInvalidation.getDefaultNodeId();
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          final Thread t = new Thread(r, "pjs-replication-heartbeat");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          try {
+            beat(dataSource, nodeId);
+            numHeartbeats.incrementAndGet();
+          } catch (SQLException e) {
+            numErrors.incrementAndGet();
+            System.err.println("Failed to update the replication heartbeat: " + e);
+          }
+        }
+      }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized void stopHeartbeat() {
+    if (scheduler == null)
+      return;
+    scheduler.shutdownNow();
+    scheduler = null;
+  }
+
+  static void beat(DataSource dataSource, String nodeId) throws SQLException {
+    final Connection conn = dataSource.getConnection();
+    try {
+      PreparedStatement ps = conn.prepareStatement("UPDATE ReplicationHeartbeat SET beat = CURRENT_TIMESTAMP WHERE node = ?");
+      ps.setString(1, nodeId);
+      final int n = ps.executeUpdate();
+      ps.close();
+      if (n == 0) {
+        ps = conn.prepareStatement("INSERT INTO ReplicationHeartbeat (node, beat) VALUES (?, CURRENT_TIMESTAMP)");
+        ps.setString(1, nodeId);
+        ps.executeUpdate();
+        ps.close();
+      }
+    } finally {
+      conn.close();
+    }
+  }
+
+  /**
+   * Summary of the state in one line.
+   */
+  public String getStatistics() {
+    return state
+      + ", heartbeats=" + numHeartbeats.get()
+      + ", errors=" + numErrors.get();
+  }
+
+  // ---------------------------------------------------------------------
+  // Standby
+
+  /**
+   * Runs the standby in derby.system.home until {@link #requestFailover}
+   * is called, then fails over so that the database can be used by the
+   * server.  Waits for the master to copy the database first.
+   *
+   * @param log where the progress and the lag are reported.
+   */
+  public void runStandby(PrintStream log) throws SQLException, IOException, InterruptedException {
+    final File home = getSystemHome();
+    final File dbDir = new File(home, dbName);
+    final File waiting = new File(home, dbName + WAITING_SUFFIX);
+    final File ready = new File(home, dbName + READY_SUFFIX);
+    final File trigger = new File(home, dbName + FAILOVER_SUFFIX);
+    final File failedOver = new File(home, dbName + FAILED_OVER_SUFFIX);
+    // NB: failover した DB は master の複製で上書きされないように、手で消すまで使わない。
+    if (failedOver.exists())
+      throw new IllegalStateException(dbDir + " has failed over.  Remove it and " + failedOver + " to run a standby.");
+    if (isBooted(dbDir))
+      throw new IllegalStateException(dbDir + " is in use");
+    trigger.delete();
+    ready.delete();
+    if (!waiting.exists() && !waiting.createNewFile())
+      throw new IOException("Cannot create " + waiting);
+    log.println("Waiting for the database to be copied to " + home + " ...");
+    try {
+      while (!ready.exists())
+        Thread.sleep(POLL_MILLIS);
+    } finally {
+      waiting.delete();
+    }
+    ready.delete();
+    log.println("Waiting for the master on " + host + ":" + port + " ...");
+    try {
+      // NB: master が接続するまで戻らない。
+      connect("startSlave=true;" + peer()).close();
+      throw new IllegalStateException("Not in the standby mode");
+    } catch (SQLException e) {
+      if (!"XRE08".equals(e.getSQLState()))  // XRE08: 接続は拒否されるが、standby として起動した。
+        throw e;
+    }
+    log.println("Standby started.");
+    long lastReport = 0;
+    while (!trigger.exists()) {
+      Thread.sleep(POLL_MILLIS);
+      if (System.currentTimeMillis() - lastReport >= LAG_REPORT_MILLIS) {
+        log.println(new Date() + " lag=" + getLagMillis(dbDir) + "ms");
+        lastReport = System.currentTimeMillis();
+      }
+    }
+    trigger.delete();
+    failover();
+    if (!failedOver.createNewFile())
+      log.println("Cannot create " + failedOver);
+    log.println("Failover completed.  Start the server with derby.system.home=" + home.getAbsolutePath());
+  }
+
+  /**
+   * Turns the standby into a normal database.  Fails (XRE41) while the
+   * master is running; stop the server first.
+   */
+  public void failover() throws SQLException {
+    try {
+      connect("failover=true").close();
+    } catch (SQLException e) {
+      // XRE20: failover に成功し、DB は停止された (master が応答した場合)。
+      if (!"XRE20".equals(e.getSQLState()))
+        throw e;
+    }
+  }
+
+  /**
+   * Asks the standby running in home to fail over.
+   */
+  public void requestFailover(File home) throws IOException {
+    final File trigger = new File(home, dbName + FAILOVER_SUFFIX);
+    if (!trigger.exists() && !trigger.createNewFile())
+      throw new IOException("Cannot create " + trigger);
+  }
+
+  /**
+   * Milliseconds since the log of the database in dbDir was last written,
+   * or -1 if it has no log.  On the standby, this is how far behind the
+   * master it is at most (plus the heartbeat interval when idle).
+   */
+  static public long getLagMillis(File dbDir) {
+    final File[] logs = new File(dbDir, "log").listFiles();
+    long last = 0;
+    if (logs != null)
+      for (File f : logs)
+        if (f.getName().endsWith(".dat"))
+          last = Math.max(last, f.lastModified());
+    return (last == 0) ? -1 : Math.max(0, System.currentTimeMillis() - last);
+  }
+
+  public String getDatabaseName() {
+    return dbName;
+  }
+} // ReplicationManager
@@ -0,0 +1,267 @@
+package org.tomokiyo.pjs.server;
+
+import org.tomokiyo.pjs.client.PersonRecord;
+
+import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import javax.sql.DataSource;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * スキーマの移行。
+ *
+ * 適用済みの移行を SchemaVersion テーブルに記録し、起動時に未適用の
+ * 移行を番号順に一つずつ適用する。各移行は一つのトランザクションで
+ * 実行し、SchemaVersion への記録も同じトランザクションで行なう。
+ *
+ * SchemaVersion ができる前に (upgradeSchema で) 移行済みの DB もあるので、
+ * 各移行は現在のスキーマを調べてから変更する (二度適用しても良い)。
+ * 新しい移行は MIGRATIONS の最後に追加すること。番号は変えないこと。
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public final class SchemaMigrator {
+  static public final String CREATE_TABLE_SQL = "CREATE TABLE SchemaVersion(" +
+    "version INT NOT NULL CONSTRAINT schema_version_pk PRIMARY KEY," +
+    "description VARCHAR(256) NOT NULL," +
+    "applied_at TIMESTAMP NOT NULL DEFAULT CURRENT TIMESTAMP)";
+
+  /**
+   * One step of the migration.
+   */
+  static abstract class Migration {
+    final int version;
+    final String description;
+
+    Migration(int version, String description) {
+      this.version = version;
+      this.description = description;
+    }
+
+    /**
+     * Brings the schema to this version on the connection (not
+     * committed).  Should do nothing if the change is already there.
+     */
+    abstract void apply(Connection conn) throws SQLException;
+  }
+
+  static private final List<Migration> MIGRATIONS = Arrays.asList(
+    new Migration(1, "Book.category and Book.sortkey") {
+      void apply(Connection conn) throws SQLException {
+        // Persist category/sortkey which used to be computed on every query.
+        if (columnExists(conn, "Book", "sortkey"))
+          return;
+        final Statement s = conn.createStatement();
+        s.execute("ALTER TABLE Book ADD COLUMN category VARCHAR(1)");
+        s.execute("ALTER TABLE Book ADD COLUMN sortkey INT");
+        s.executeUpdate("UPDATE Book SET category = SUBSTR(id,1,1), sortkey = " + DBUtil.SORTKEY_EXPRESSION);
+        // createTables と同じく NOT NULL にする (埋めた後でないとできない)。
+        s.execute("ALTER TABLE Book ALTER COLUMN category NOT NULL");
+        s.execute("ALTER TABLE Book ALTER COLUMN sortkey NOT NULL");
+        s.execute("CREATE INDEX book_sort_idx ON Book(category, sortkey)");
+      }
+    },
+    new Migration(2, "Book.version and Person.version") {
+      void apply(Connection conn) throws SQLException {
+        if (columnExists(conn, "Book", "version"))
+          return;
+        final Statement s = conn.createStatement();
+        s.execute("ALTER TABLE Book ADD COLUMN version INT NOT NULL DEFAULT 0");
+        s.execute("ALTER TABLE Person ADD COLUMN version INT NOT NULL DEFAULT 0");
+      }
+    },
+    new Migration(3, "PromotionLog") {
+      void apply(Connection conn) throws SQLException {
+        if (!tableExists(conn, "PromotionLog"))
+          conn.createStatement().execute(GradePromotion.CREATE_TABLE_SQL);
+      }
+    },
+    new Migration(4, "BookNGram") {
+      void apply(Connection conn) throws SQLException {
+        if (tableExists(conn, "BookNGram"))
+          return;
+        conn.createStatement().execute(BookSearchIndex.CREATE_TABLE_SQL);
+        // NB: 同じ接続で (同じトランザクションで) 索引を作る。
+        BookSearchIndex.rebuild(new SimpleJdbcTemplate(new SingleConnectionDataSource(conn, true)));
+      }
+    },
+    new Migration(5, "CheckoutHistory.due_date") {
+      void apply(Connection conn) throws SQLException {
+        if (columnExists(conn, "CheckoutHistory", "due_date"))
+          return;
+        final Statement s = conn.createStatement();
+        s.execute("ALTER TABLE CheckoutHistory ADD COLUMN due_date DATE");
+        // 既存の貸出には現在の貸出期間を当てはめる。
+        for (PersonRecord.Type type : PersonRecord.Type.values()) {
+          s.executeUpdate("UPDATE CheckoutHistory SET due_date = DATE({fn TIMESTAMPADD(SQL_TSI_DAY, "
+                          + LoanPolicy.getDefault().getLoanDays(type) + ", checkout_date)})"
+                          + " WHERE person_id IN (SELECT id FROM Person WHERE type = '" + type.getDisplayName() + "')");
+        }
+        if (indexExists(conn, "CheckoutHistory", "history_status_idx"))
+          s.execute("DROP INDEX history_status_idx");  // covered by the composite indexes
+        createIndex(conn, "history_checkout_idx", "CheckoutHistory(status, checkout_date)");
+        createIndex(conn, "history_due_idx", "CheckoutHistory(status, due_date)");
+      }
+    },
+    new Migration(6, "Indexes for the circulation desk and the reports") {
+      void apply(Connection conn) throws SQLException {
+        // 貸出・返却時の "status = 1 AND book_id IN (...)"
+        createIndex(conn, "history_book_idx", "CheckoutHistory(book_id, status)");
+        // 利用者毎の貸出履歴
+        createIndex(conn, "history_person_idx", "CheckoutHistory(person_id, status)");
+        // 本日登録分のバーコード印刷 "register_date = CURRENT_DATE"
+        createIndex(conn, "book_register_idx", "Book(register_date)");
+        // 家族の検索 "deletion_date IS NULL AND family_id IN (...) ORDER BY family_id, id"
+        createIndex(conn, "person_family_idx", "Person(family_id, deletion_date, id)");
+        // 学年毎の名簿 "type = ? AND deletion_date IS NULL ORDER BY katakana"、進級処理
+        createIndex(conn, "person_type_idx", "Person(type, deletion_date, katakana)");
+      }
+    },
+    new Migration(7, "OpenLoan") {
+      void apply(Connection conn) throws SQLException {
+        if (tableExists(conn, "OpenLoan"))
+          return;
+        conn.createStatement().execute(OpenLoans.CREATE_TABLE_SQL);
+        OpenLoans.rebuild(new SimpleJdbcTemplate(new SingleConnectionDataSource(conn, true)));
+      }
+    },
+    new Migration(8, "CacheInvalidation") {
+      void apply(Connection conn) throws SQLException {
+        if (tableExists(conn, "CacheInvalidation"))
+          return;
+        conn.createStatement().execute(CacheInvalidation.CREATE_TABLE_SQL);
+        conn.createStatement().execute(CacheInvalidation.CREATE_INDEX_SQL);
+      }
+    },
+    new Migration(9, "ReplicationHeartbeat") {
+      void apply(Connection conn) throws SQLException {
+        if (tableExists(conn, "ReplicationHeartbeat"))
+          return;
+        conn.createStatement().execute(ReplicationManager.CREATE_TABLE_SQL);
+      }
+    });
+
+  private final DataSource dataSource;
+
+  public SchemaMigrator(DataSource dataSource) {
+    this.dataSource = dataSource;
+  }
+
+  /**
+   * The version of the newest migration.
+   */
+  static public int getLatestVersion() {
+    return MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+  }
+
+  /**
+   * The newest version applied to the DB (0 if none).
+   */
+  public int getCurrentVersion() throws SQLException {
+    final Connection conn = dataSource.getConnection();
+    try {
+      return getCurrentVersion(conn);
+    } finally {
+      conn.close();
+    }
+  }
+
+  static private final int getCurrentVersion(Connection conn) throws SQLException {
+    if (!tableExists(conn, "SchemaVersion"))
+      return 0;
+    final ResultSet rs = conn.createStatement().executeQuery("SELECT COALESCE(MAX(version), 0) FROM SchemaVersion");
+    try {
+      rs.next();
+      return rs.getInt(1);
+    } finally {
+      rs.close();
+    }
+  }
+
+  /**
+   * Applies the migrations newer than the current version in order and
+   * returns the number of them applied.
+   */
+  public int migrate() throws SQLException {
+    final Connection conn = dataSource.getConnection();
+    try {
+      if (!tableExists(conn, "SchemaVersion"))
+        conn.createStatement().execute(CREATE_TABLE_SQL);
+      final int current = getCurrentVersion(conn);
+      int numApplied = 0;
+      conn.setAutoCommit(false);
+      for (Migration m : MIGRATIONS) {
+        if (m.version <= current)
+          continue;
+        System.out.println("Migrating to schema version " + m.version + ": " + m.description + "...");
+        try {
+          m.apply(conn);
+          final PreparedStatement ps = conn.prepareStatement("INSERT INTO SchemaVersion (version, description) VALUES (?, ?)");
+          ps.setInt(1, m.version);
+          ps.setString(2, m.description);
+          ps.executeUpdate();
+          ps.close();
+          conn.commit();
+        } catch (SQLException e) {
+          conn.rollback();
+          throw e;
+        }
+        numApplied++;
+      }
+      return numApplied;
+    } finally {
+      conn.setAutoCommit(true);
+      conn.close();
+    }
+  }
+
+  // ---------------------------------------------------------------------
+  // Schema inspection
+
+  static final boolean tableExists(Connection conn, String table) throws SQLException {
+    final ResultSet rs = conn.getMetaData().getTables(null, null, table.toUpperCase(), null);
+    try {
+      return rs.next();
+    } finally {
+      rs.close();
+    }
+  }
+
+  static final boolean columnExists(Connection conn, String table, String column) throws SQLException {
+    final ResultSet rs = conn.getMetaData().getColumns(null, null, table.toUpperCase(), column.toUpperCase());
+    try {
+      return rs.next();
+    } finally {
+      rs.close();
+    }
+  }
+
+  static final boolean indexExists(Connection conn, String table, String index) throws SQLException {
+    final ResultSet rs = conn.getMetaData().getIndexInfo(null, null, table.toUpperCase(), false, false);
+    try {
+      while (rs.next())
+        if (index.equalsIgnoreCase(rs.getString("INDEX_NAME")))
+          return true;
+      return false;
+    } finally {
+      rs.close();
+    }
+  }
+
+  /**
+   * Creates the index unless it exists.  e.g. createIndex(conn, "book_sort_idx", "Book(category, sortkey)")
+   */
+  static private final void createIndex(Connection conn, String index, String columns) throws SQLException {
+    final String table = columns.substring(0, columns.indexOf('('));
+    if (!indexExists(conn, table, index))
+      conn.createStatement().execute("CREATE INDEX " + index + " ON " + columns);
+  }
+} // SchemaMigrator
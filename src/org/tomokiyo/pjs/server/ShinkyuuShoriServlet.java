@@ -10,15 +10,23 @@ import java.io.*;
 /**
  * 進級処理のための暫定専用サーブレット
  *
+ * ?dryrun=true なら何も変更せず、進級する人数を表示する。
+ *
  * @author Takashi Tomokiyo (tomokiyo@gmail.com)
  */
 public class ShinkyuuShoriServlet extends HttpServlet {
   public void doGet(HttpServletRequest request, HttpServletResponse response)
     throws ServletException, IOException {
-    DBUtil.processPromotions();
+    final boolean dryRun = "true".equals(request.getParameter("dryrun"));
     response.setContentType("text/plain; charset=UTF-8");
     PrintWriter writer = new PrintWriter(new OutputStreamWriter(response.getOutputStream(), "UTF-8"));
-    writer.println("進級処理が終わりました。");
+    try {
+      final String counts = GradePromotion.format(DBUtil.processPromotions(dryRun));
+      writer.println(dryRun ? "進級処理の対象 (まだ変更していません):" : "進級処理が終わりました。");
+      writer.print(counts);
+    } catch (IllegalStateException e) {
+      writer.println(e.getMessage());
+    }
     writer.flush();
   }
 }
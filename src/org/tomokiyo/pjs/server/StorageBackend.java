@@ -0,0 +1,174 @@
+package org.tomokiyo.pjs.server;
+
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import javax.sql.DataSource;
+
+/**
+ * データベースの保存先。
+ *
+ * system property "pjs.db.backend" で切り替える:
+ * <ul>
+ *  <li>"derby" (default): ディスク上の Derby (${derby.system.home}/pjsLibraryDB)。
+ *  <li>"memory": Derby のメモリ上の DB (jdbc:derby:memory:...)。最初の接続時に
+ *      空の DB を作る。プロセスが終了すると消えるので、テストや負荷試験用。
+ *  <li>"derby-client": Derby の network server 上の DB (jdbc:derby://host:port/...)。
+ *      ホストとポートは "pjs.db.host" (localhost) と "pjs.db.port" (1527)。
+ *      複数の Web サーバで同じ DB を共有できる (derbyclient.jar が必要)。
+ *  <li>"jdbc:...": その URL の組み込み JDBC エンジン。ドライバは
+ *      "pjs.db.driver"、ユーザ名とパスワードは "pjs.db.user" と "pjs.db.password"。
+ * </ul>
+ * "pjs.db.name" で DB 名 (default: {@link DBUtil#DB_NAME}) を変えられる。
+ *
+ * NB: スキーマと SQL は Derby の方言で書いてあるので、Derby 以外の
+ * エンジンは Derby 互換のモードで動かす必要がある。
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public abstract class StorageBackend {
+  /**
+   * Creates a non-pooled DataSource.
+   *
+   * @param create if true, create the database if it does not exist.
+   */
+  public abstract DataSource makeDataSource(boolean create);
+
+  /**
+   * Returns true if the database disappears when the process exits.
+   */
+  public abstract boolean isTransient();
+
+  /**
+   * Returns true if other processes may update the database at the same
+   * time, so that the caches must be invalidated across them (see
+   * {@link CacheInvalidation}).
+   */
+  public boolean isShared() {
+    return false;
+  }
+
+  /**
+   * Releases the database (e.g. shuts down Derby) at the end of a command.
+   */
+  public void shutdown() {}
+
+  /**
+   * The backend configured by the system properties.
+   */
+  static public StorageBackend fromSystemProperties() {
+    final String backend = System.getProperty("pjs.db.backend", "derby");
+    final String dbName = System.getProperty("pjs.db.name", DBUtil.DB_NAME);
+    if ("derby".equals(backend)) {
+      return derby(dbName);
+    } else if ("memory".equals(backend)) {
+      return memory(dbName);
+    } else if ("derby-client".equals(backend)) {
+      return derbyClient(System.getProperty("pjs.db.host", "localhost"),
+                         Integer.getInteger("pjs.db.port", 1527), dbName);
+    } else if (backend.startsWith("jdbc:")) {
+      return jdbc(backend, System.getProperty("pjs.db.driver"),
+                  System.getProperty("pjs.db.user"), System.getProperty("pjs.db.password"));
+    }
+    throw new IllegalArgumentException("Unknown pjs.db.backend: " + backend);
+  }
+
+  /**
+   * Derby database on disk (relative to derby.system.home).
+   */
+  static public StorageBackend derby(final String dbName) {
+    return new StorageBackend() {
+      public DataSource makeDataSource(boolean create) {
+        final EmbeddedDataSource ds = new EmbeddedDataSource();
+        ds.setDatabaseName(dbName);
+        if (create) {
+          ds.setCreateDatabase("create");
+          // Set attribute so that it uses Japanese Collator for sorting. (didn't work)
+          // ds.setConnectionAttributes("territory=ja_JP;collation=TERRITORY_BASED");
+        }
+        return ds;
+      }
+      public boolean isTransient() {
+        return false;
+      }
+      public void shutdown() {
+        DBUtil.shutdownDerby();
+      }
+      public String toString() {
+        return "derby:" + dbName;
+      }
+    };
+  }
+
+  /**
+   * Derby database in memory.  The database is always created on the
+   * first connection, and the same name refers to the same database
+   * within the process.
+   */
+  static public StorageBackend memory(final String dbName) {
+    return new StorageBackend() {
+      public DataSource makeDataSource(boolean create) {
+        final EmbeddedDataSource ds = new EmbeddedDataSource();
+        ds.setDatabaseName("memory:" + dbName);
+        ds.setCreateDatabase("create");
+        return ds;
+      }
+      public boolean isTransient() {
+        return true;
+      }
+      public String toString() {
+        return "memory:" + dbName;
+      }
+    };
+  }
+
+  /**
+   * Derby database served by a network server (started with e.g.
+   * "java -jar derbyrun.jar server start -h 0.0.0.0" in derby.system.home).
+   * The server owns the database, so shutdown() does nothing.
+   */
+  static public StorageBackend derbyClient(final String host, final int port, final String dbName) {
+    return new StorageBackend() {
+      public DataSource makeDataSource(boolean create) {
+        final DriverManagerDataSource ds = new DriverManagerDataSource();
+        ds.setDriverClassName("org.apache.derby.jdbc.ClientDriver");
+        ds.setUrl("jdbc:derby://" + host + ":" + port + "/" + dbName + (create ? ";create=true" : ""));
+        return ds;
+      }
+      public boolean isTransient() {
+        return false;
+      }
+      public boolean isShared() {
+        return true;
+      }
+      public String toString() {
+        return "derby://" + host + ":" + port + "/" + dbName;
+      }
+    };
+  }
+
+  /**
+   * Any other embedded engine through DriverManager.  The database
+   * should be created by the URL (e.g. ";create=true") if necessary.
+   */
+  static public StorageBackend jdbc(final String url, final String driverClassName,
+                                    final String user, final String password) {
+    return new StorageBackend() {
+      public DataSource makeDataSource(boolean create) {
+        final DriverManagerDataSource ds = new DriverManagerDataSource();
+        if (driverClassName != null)
+          ds.setDriverClassName(driverClassName);
+        ds.setUrl(url);
+        ds.setUsername(user);
+        ds.setPassword(password);
+        return ds;
+      }
+      public boolean isTransient() {
+        return url.indexOf(":mem:") >= 0 || url.indexOf(":memory:") >= 0;
+      }
+      public String toString() {
+        return url;
+      }
+    };
+  }
+} // StorageBackend
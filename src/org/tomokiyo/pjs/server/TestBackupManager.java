@@ -0,0 +1,72 @@
+package org.tomokiyo.pjs.server;
+
+import java.io.File;
+import java.util.*;
+import junit.framework.*;
+
+import javax.sql.DataSource;
+
+/**
+ * JUnit test routine for {@link BackupManager}.
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public class TestBackupManager extends TestCase
+{
+  private File backupDir;
+
+  /** Creates an instance of the test */
+  public TestBackupManager(String name) {
+    super(name);
+  }
+
+  protected void setUp() throws Exception {
+    backupDir = File.createTempFile("TestBackupManager", "");
+    backupDir.delete();
+  }
+
+  protected void tearDown() {
+    delete(backupDir);
+  }
+
+  static private final void delete(File f) {
+    final File[] children = f.listFiles();
+    if (children != null)
+      for (File child : children)
+        delete(child);
+    f.delete();
+  }
+
+  /**
+   * Snapshots are verified and only the newest ones are kept.
+   */
+  public void testBackup() throws Exception {
+    final DataSource ds = Fixtures.newDatabase("TestBackupManager", 10, 50, 5);
+    final BackupManager manager = new BackupManager(ds, backupDir, 2, 0);
+    assertNull(manager.getLastStatus());
+    for (int i = 0; i < 3; i++) {
+      final BackupManager.Status status = manager.backup();
+      assertTrue(status.toString(), status.isSuccessful());
+      assertEquals(50, status.getNumBooks());
+      assertEquals(20, status.getNumPersons());
+      assertTrue(status.getSnapshot().isDirectory());
+      assertSame(status, manager.getLastStatus());
+      Thread.sleep(5);  // snapshots are named by the time
+    }
+    final List<File> snapshots = manager.listSnapshots();
+    assertEquals(2, snapshots.size());
+    assertEquals(manager.getLastStatus().getSnapshot(), snapshots.get(1));
+    assertEquals(2, backupDir.list().length);  // no work directories left
+  }
+
+  /**
+   * common setup
+   */
+  public static Test suite() {
+    return new TestSuite( TestBackupManager.class );
+  }
+
+  public static void main (String[] args) {
+    junit.textui.TestRunner.run (suite());
+  }
+}
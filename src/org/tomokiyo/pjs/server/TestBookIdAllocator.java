@@ -0,0 +1,106 @@
+package org.tomokiyo.pjs.server;
+
+import java.sql.SQLException;
+import java.util.*;
+import junit.framework.*;
+
+import javax.sql.DataSource;
+import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+
+/**
+ * JUnit test routine for {@link BookIdAllocator}.
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public class TestBookIdAllocator extends TestCase
+{
+  private DataSource ds;
+
+  /** Creates an instance of the test */
+  public TestBookIdAllocator(String name) {
+    super(name);
+  }
+
+  protected void setUp() throws SQLException {
+    ds = Fixtures.newDatabase("TestBookIdAllocator");
+  }
+
+  public void testConcurrentAllocation() throws InterruptedException {
+    final BookIdAllocator allocator = new BookIdAllocator(ds);
+    final Set<Integer> numbers = Collections.synchronizedSet(new HashSet<Integer>());
+    final Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+          public void run() {
+            for (int j = 0; j < 100; j++)
+              assertTrue(numbers.add(allocator.allocate("A")));
+          }
+        };
+      threads[i].start();
+    }
+    for (Thread t : threads)
+      t.join();
+    assertEquals(400, numbers.size());
+    assertEquals(1, (int) Collections.min(numbers));
+    assertEquals(400, (int) Collections.max(numbers));
+    assertEquals("B001", allocator.allocateId("B"));
+  }
+
+  /**
+   * A new allocator (i.e. after a restart) never hands out the same number.
+   */
+  public void testRestart() {
+    final BookIdAllocator allocator = new BookIdAllocator(ds);
+    final int last = allocator.allocate("A");
+    final int next = new BookIdAllocator(ds).allocate("A");
+    assertTrue(next > last);
+    assertTrue(allocator.allocate("A") > last);
+  }
+
+  public void testRegistered() {
+    final BookIdAllocator allocator = BookIdAllocator.forDataSource(ds);
+    assertEquals("E001", allocator.allocateId("E"));
+    final org.tomokiyo.pjs.client.BookRecord book = new org.tomokiyo.pjs.client.BookRecord("E050");
+    book.setTitle("ぐりとぐら");
+    DBUtil.registerNewBook(new SimpleJdbcTemplate(ds), book);
+    assertEquals("E051", allocator.allocateId("E"));
+    assertEquals(60, DBUtil.getLastIdFor(new SimpleJdbcTemplate(ds), "E"));  // reserved a new block
+  }
+
+  public void testPeek() {
+    final BookIdAllocator allocator = BookIdAllocator.forDataSource(ds);
+    assertEquals("F001", allocator.peekId("F"));
+    assertEquals("F001", allocator.peekId("F"));  // not taken
+    final org.tomokiyo.pjs.client.BookRecord book = new org.tomokiyo.pjs.client.BookRecord("F001");
+    book.setTitle("ぐりとぐら");
+    DBUtil.registerNewBook(new SimpleJdbcTemplate(ds), book);
+    assertEquals("F002", allocator.peekId("F"));
+  }
+
+  /**
+   * A number registered through another allocator (e.g. on another node)
+   * is skipped after resync().
+   */
+  public void testResync() {
+    final BookIdAllocator allocator = new BookIdAllocator(ds);
+    assertEquals(1, allocator.allocate("G"));
+    final org.tomokiyo.pjs.client.BookRecord book = new org.tomokiyo.pjs.client.BookRecord("G002");
+    book.setTitle("ぐりとぐら");
+    DBUtil.registerNewBook(new SimpleJdbcTemplate(ds), book);
+    assertEquals(2, allocator.peek("G"));  // within the block reserved before
+    allocator.resync("G");
+    assertEquals(3, allocator.peek("G"));
+    assertEquals(3, allocator.allocate("G"));
+  }
+
+  /**
+   * common setup
+   */
+  public static Test suite() {
+    return new TestSuite( TestBookIdAllocator.class );
+  }
+
+  public static void main (String[] args) {
+    junit.textui.TestRunner.run (suite());
+  }
+}
@@ -0,0 +1,119 @@
+package org.tomokiyo.pjs.server;
+
+import org.tomokiyo.pjs.client.BookRecord;
+
+import java.sql.SQLException;
+import java.util.*;
+import junit.framework.*;
+
+import javax.sql.DataSource;
+import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+
+/**
+ * JUnit test routine for {@link BookSearchIndex}.
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public class TestBookSearchIndex extends TestCase
+{
+  /** Creates an instance of the test */
+  public TestBookSearchIndex(String name) {
+    super(name);
+  }
+
+  public void testQueryNGrams() {
+    assertNull(BookSearchIndex.getQueryNGrams("ぐ"));
+    assertEquals(Arrays.asList("ぐり"), new ArrayList<String>(BookSearchIndex.getQueryNGrams("ぐり")));
+    assertEquals(Arrays.asList("グリト", "リトグ", "トグラ"),
+                 new ArrayList<String>(BookSearchIndex.getQueryNGrams("グリトグラ")));
+    assertEquals(Arrays.asList("田 太"), new ArrayList<String>(BookSearchIndex.getQueryNGrams("山田 太")));
+    assertFalse(BookSearchIndex.getNGrams("山田 太郎").contains("山田 "));
+  }
+
+  static private final BookRecord makeBook(String id, String title, String kana, String authors) {
+    final BookRecord book = new BookRecord(id);
+    book.setTitle(title);
+    book.setKatakanaTitle(kana);
+    book.setAuthors(authors);
+    return book;
+  }
+
+  /**
+   * The result should be the same as the plain LIKE search, in the same order.
+   */
+  public void testSearchBooks() throws Exception {
+    final DataSource ds = Fixtures.newDatabase("TestBookSearchIndex");
+    final SimpleJdbcTemplate jdbcTemplate = new SimpleJdbcTemplate(ds);
+    DBUtil.registerNewBook(jdbcTemplate, makeBook("E010", "ぐりとぐらのおきゃくさま", "グリトグラノオキャクサマ", "中川李枝子"));
+    DBUtil.registerNewBook(jdbcTemplate, makeBook("E002", "ぐりとぐら", "グリトグラ", "中川李枝子"));
+    DBUtil.registerNewBook(jdbcTemplate, makeBook("A001", "羅生門", "ラショウモン", "芥川龍之介"));
+
+    final DBLookupServiceImpl service = new DBLookupServiceImpl(ds);
+    final List<BookRecord> result = service.searchBooks("ぐりとぐら", 0, 0);
+    assertEquals(2, result.size());
+    assertEquals("E002", result.get(0).getId());
+    assertEquals("E010", result.get(1).getId());
+    assertEquals(1, service.searchBooks("羅生門 author:芥川", 0, 0).size());
+    assertEquals(0, service.searchBooks("ぐりとぐら author:芥川", 0, 0).size());
+    assertEquals(1, service.searchBooks("門", 0, 0).size());  // too short for the index
+
+    // The index follows updates.
+    final BookRecord book = service.lookupBookByID("A001");
+    book.setTitle("藪の中");
+    assertTrue(service.updateRecord(book));
+    assertEquals(0, service.searchBooks("羅生門", 0, 0).size());
+    assertEquals(1, service.searchBooks("藪の中", 0, 0).size());
+  }
+
+  /**
+   * A book is not registered if its index cannot be written.
+   */
+  public void testRegisterFailure() throws Exception {
+    final DataSource ds = Fixtures.newDatabase("TestBookSearchIndexFailure");
+    final SimpleJdbcTemplate jdbcTemplate = new SimpleJdbcTemplate(ds);
+    jdbcTemplate.update("RENAME TABLE BookNGram TO BookNGramMissing");
+    try {
+      DBUtil.registerNewBook(jdbcTemplate, makeBook("E010", "ぐりとぐらのおきゃくさま", "グリトグラノオキャクサマ", "中川李枝子"));
+      fail("The index should not be written.");
+    } catch (org.springframework.dao.DataAccessException e) {
+      // expected
+    } finally {
+      jdbcTemplate.update("RENAME TABLE BookNGramMissing TO BookNGram");
+    }
+    assertEquals(0, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM Book WHERE id = 'E010'"));
+  }
+
+  /**
+   * The index follows the database even if the cache of this node is
+   * stale (updated on another node sharing the database).
+   */
+  public void testUpdateWithStaleCache() throws Exception {
+    final DataSource ds1 = Fixtures.newDatabase("TestBookSearchIndexStale");
+    final DataSource ds2 = StorageBackend.memory("TestBookSearchIndexStale").makeDataSource(false);
+    DBUtil.registerNewBook(new SimpleJdbcTemplate(ds1), makeBook("A001", "羅生門", "ラショウモン", "芥川龍之介"));
+    final DBLookupServiceImpl service1 = new DBLookupServiceImpl(ds1);
+    final DBLookupServiceImpl service2 = new DBLookupServiceImpl(ds2);
+    final BookRecord stale = service2.lookupBookByID("A001");  // cached on node2
+
+    final BookRecord book = service1.lookupBookByID("A001");
+    book.setTitle("藪の中");
+    assertTrue(service1.updateRecord(book));
+    // node2 sets the title back, with the current version.
+    assertEquals("羅生門", service2.lookupBookByID("A001").getTitle());  // stale
+    stale.setVersion(book.getVersion());
+    assertTrue(service2.updateRecord(stale));
+    assertEquals(1, service1.searchBooks("羅生門", 0, 0).size());
+    assertEquals(0, service1.searchBooks("藪の中", 0, 0).size());
+  }
+
+  /**
+   * common setup
+   */
+  public static Test suite() {
+    return new TestSuite( TestBookSearchIndex.class );
+  }
+
+  public static void main (String[] args) {
+    junit.textui.TestRunner.run (suite());
+  }
+}
@@ -0,0 +1,177 @@
+package org.tomokiyo.pjs.server;
+
+import org.tomokiyo.pjs.client.PersonRecord;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.sql.SQLException;
+import junit.framework.*;
+
+import javax.sql.DataSource;
+import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+
+/**
+ * JUnit test routine for {@link BulkImporter}.
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public class TestBulkImporter extends TestCase
+{
+  private DataSource ds;
+  private SimpleJdbcTemplate jdbcTemplate;
+  private StringWriter messages;
+
+  /** Creates an instance of the test */
+  public TestBulkImporter(String name) {
+    super(name);
+  }
+
+  protected void setUp() throws SQLException {
+    ds = Fixtures.newDatabase("TestBulkImporter");
+    jdbcTemplate = new SimpleJdbcTemplate(ds);
+    messages = new StringWriter();
+  }
+
+  private BulkImporter makeImporter() {
+    return new BulkImporter(ds, new PrintWriter(messages, true), "UTF-8");
+  }
+
+  static private final InputStream toStream(String s) throws java.io.IOException {
+    return new ByteArrayInputStream(s.getBytes("UTF-8"));
+  }
+
+  public void testPersonRecords() throws java.io.IOException {
+    final BulkImporter importer = makeImporter();
+    importer.readPersonRecords(toStream(
+      "# comment\n" +
+      "1001,保護者,山田 太郎,ヤマダ タロウ,Yamada Taro\n" +
+      "1001,年少,山田 花子,ヤマダ ハナコ,Yamada Hanako\n" +
+      "1002,保護者,鈴木 一郎,スズキ イチロウ,Suzuki Ichiro,3/31/08\n"));
+    assertFalse(messages.toString(), importer.hasErrors());
+    importer.commit();
+    assertEquals(2, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM Family"));
+    assertEquals(3, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM Person"));
+    assertEquals(1, jdbcTemplate.queryForInt("SELECT COUNT(DISTINCT family_id) FROM Person WHERE katakana LIKE 'ヤマダ%'"));
+    assertEquals(1, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM Person WHERE deletion_date IS NOT NULL"));
+    assertEquals(PersonRecord.Type.PARENTS.getDisplayName(),
+                 jdbcTemplate.queryForObject("SELECT type FROM Person WHERE romaji = 'Suzuki Ichiro'", String.class));
+  }
+
+  /**
+   * All the errors are reported and nothing is registered.
+   */
+  public void testPersonRecordErrors() throws java.io.IOException {
+    final BulkImporter importer = makeImporter();
+    importer.readPersonRecords(toStream(
+      "1001,保護者,山田 太郎,ヤマダ タロウ,Yamada Taro\n" +
+      "X,保護者,山田 花子,ヤマダ ハナコ,Yamada Hanako\n" +
+      "1002,保護者,鈴木 一郎,すずき いちろう,Suzuki Ichiro\n"));
+    assertTrue(importer.hasErrors());
+    assertTrue(messages.toString().contains("at line 2"));
+    assertTrue(messages.toString().contains("at line 3"));
+    try {
+      importer.commit();
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    assertEquals(0, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM Person"));
+  }
+
+  /**
+   * Incremental import: bad lines are skipped, families are not split
+   * across the commits.
+   */
+  public void testImportPersonRecords() throws java.io.IOException {
+    final StringBuilder csv = new StringBuilder();
+    for (int i = 0; i < 500; i++)
+      csv.append(1000 + i / 3).append(",保護者,山田 太郎,ヤマダ タロウ,Yamada Taro\n");
+    csv.append("X,保護者,山田 花子,ヤマダ ハナコ,Yamada Hanako\n");
+    final ImportProgress progress = ImportProgress.start("test");
+    makeImporter().importPersonRecords(toStream(csv.toString()), progress);
+    assertTrue(progress.isFinished());
+    assertEquals(501, progress.getParsed());
+    assertEquals(500, progress.getInserted());
+    assertEquals(1, progress.getErrors());
+    assertEquals(500, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM Person"));
+    assertEquals(167, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM Family"));
+    assertTrue(ImportProgress.getRecentStatus().startsWith("test: finished parsed=501 inserted=500 errors=1"));
+  }
+
+  public void testBookRecords() throws java.io.IOException {
+    final BookRecordCSV csv = new BookRecordCSV();
+    csv.add("A001", "羅生門");
+    csv.add("A012", "藪の中");
+    csv.add("E002", "ぐりとぐら");
+    BulkImporter importer = makeImporter();
+    importer.readBookRecords(toStream(csv.toString()));
+    assertFalse(messages.toString(), importer.hasErrors());
+    importer.commit();
+    assertEquals(3, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM Book"));
+    assertEquals(12, jdbcTemplate.queryForInt("SELECT last_id FROM LastID WHERE name = 'A'"));
+    assertEquals(2, jdbcTemplate.queryForInt("SELECT last_id FROM LastID WHERE name = 'E'"));
+    assertEquals(1, new DBLookupServiceImpl(ds).searchBooks("藪の中", 0, 0).size());
+
+    // Duplicates within the file and against the DB.
+    final BookRecordCSV csv2 = new BookRecordCSV();
+    csv2.add("A013", "蜘蛛の糸");
+    csv2.add("A013", "鼻");
+    csv2.add("E002", "ぐりとぐら");
+    importer = makeImporter();
+    importer.readBookRecords(toStream(csv2.toString()));
+    assertTrue(importer.hasErrors());
+    assertEquals(3, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM Book"));
+  }
+
+  /**
+   * Lines are parsed in parallel, but the records and the line numbers
+   * of the errors should be in the order of the file.
+   */
+  public void testParallelParsing() throws java.io.IOException {
+    final BookRecordCSV csv = new BookRecordCSV();
+    for (int i = 1; i <= 2000; i++)
+      csv.add((i == 1234) ? "?" : "B" + i, "本" + i);
+    final BulkImporter importer = makeImporter();
+    importer.readBookRecords(toStream(csv.toString()));
+    assertTrue(importer.hasErrors());
+    assertTrue(messages.toString(), messages.toString().contains("at line 1235"));  // with the header
+    final StringWriter errors = messages;
+    messages = new StringWriter();
+    final BookRecordCSV valid = new BookRecordCSV();
+    for (int i = 1; i <= 2000; i++)
+      valid.add("B" + i, "本" + i);
+    final BulkImporter importer2 = makeImporter();
+    importer2.readBookRecords(toStream(valid.toString()));
+    assertFalse(importer2.hasErrors());
+    importer2.commit();
+    assertEquals(2000, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM Book"));
+    assertEquals(2000, jdbcTemplate.queryForInt("SELECT last_id FROM LastID WHERE name = 'B'"));
+    assertEquals(1, errors.toString().split("\n").length);
+  }
+
+  /**
+   * Builds the CSV in the format of {@link DBUtil#createBookRecordFromCSV}.
+   */
+  static private final class BookRecordCSV {
+    private final StringBuilder sbuf = new StringBuilder("題名,カナ,著者,出版社,ID,登録日,購入日,廃棄日,備考\n");
+    void add(String id, String title) {
+      sbuf.append(title).append(",,,,").append(id).append(",4/1/08,,,\n");
+    }
+    public String toString() {
+      return sbuf.toString();
+    }
+  }
+
+  /**
+   * common setup
+   */
+  public static Test suite() {
+    return new TestSuite( TestBulkImporter.class );
+  }
+
+  public static void main (String[] args) {
+    junit.textui.TestRunner.run (suite());
+  }
+}
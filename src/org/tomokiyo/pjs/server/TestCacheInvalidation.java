@@ -0,0 +1,66 @@
+package org.tomokiyo.pjs.server;
+
+import org.tomokiyo.pjs.client.BookRecord;
+
+import junit.framework.*;
+
+import javax.sql.DataSource;
+import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+
+/**
+ * JUnit test routine for {@link CacheInvalidation}.
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public class TestCacheInvalidation extends TestCase
+{
+  /** Creates an instance of the test */
+  public TestCacheInvalidation(String name) {
+    super(name);
+  }
+
+  /**
+   * Two nodes (DataSources with their own caches) on the same database.
+   */
+  public void testTwoNodes() throws Exception {
+    final DataSource ds1 = Fixtures.newDatabase("TestCacheInvalidation", 2, 5, 0);
+    final DataSource ds2 = StorageBackend.memory("TestCacheInvalidation").makeDataSource(false);
+    assertNotSame(RecordCache.forBooks(ds1), RecordCache.forBooks(ds2));
+    final CacheInvalidation node1 = new CacheInvalidation(ds1, "node1");
+    final CacheInvalidation node2 = new CacheInvalidation(ds2, "node2");
+    final DBLookupServiceImpl service1 = new DBLookupServiceImpl(ds1);
+    final DBLookupServiceImpl service2 = new DBLookupServiceImpl(ds2);
+
+    // node2 caches A001, then node1 updates it.
+    assertEquals("本0", service2.lookupBookByID("A001").getTitle());
+    final BookRecord record = service1.lookupBookByID("A001");
+    record.setTitle("新しい本");
+    assertTrue(service1.updateRecord(record));
+    assertEquals("本0", service2.lookupBookByID("A001").getTitle());  // stale until polled
+    assertEquals(0, node1.poll());  // its own
+    assertEquals(1, node2.poll());
+    assertEquals("新しい本", service2.lookupBookByID("A001").getTitle());
+    assertEquals(0, node2.poll());  // applied only once
+
+    // A book registered on node1 passes the negative filter of node2.
+    assertNull(service2.lookupBookByID("E999"));
+    final BookRecord book = new BookRecord("E999");
+    book.setTitle("追加");
+    assertTrue(service1.registerNewBook(book));
+    node2.poll();
+    assertEquals("追加", service2.lookupBookByID("E999").getTitle());
+    assertTrue(node2.getStatistics(), node2.getStatistics().contains("received=2"));
+
+    RecordCache.forBooks(ds1).setInvalidationListener(null);
+    RecordCache.forPersons(ds1).setInvalidationListener(null);
+    assertEquals(2, new SimpleJdbcTemplate(ds1).queryForInt("SELECT COUNT(*) FROM CacheInvalidation WHERE node = 'node1'"));
+  }
+
+  public static Test suite() {
+    return new TestSuite(TestCacheInvalidation.class);
+  }
+
+  public static void main (String[] args) {
+    junit.textui.TestRunner.run (suite());
+  }
+} // TestCacheInvalidation
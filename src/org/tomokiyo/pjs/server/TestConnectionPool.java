@@ -0,0 +1,108 @@
+package org.tomokiyo.pjs.server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.*;
+import junit.framework.*;
+
+import javax.sql.DataSource;
+
+/**
+ * JUnit test routine for {@link ConnectionPool}.
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public class TestConnectionPool extends TestCase
+{
+  /** Creates an instance of the test */
+  public TestConnectionPool(String name) {
+    super(name);
+  }
+
+  static private final ConnectionPool makePool(int maxSize) {
+    final DataSource ds = StorageBackend.memory("TestConnectionPool").makeDataSource(true);
+    return new ConnectionPool(ds, 1, maxSize, 100L, "VALUES 1", 0L, 4);
+  }
+
+  /**
+   * Closing a handle returns the physical connection to the pool.
+   */
+  public void testReuse() throws SQLException {
+    final ConnectionPool pool = makePool(2);
+    final Connection c1 = pool.getConnection();
+    c1.setAutoCommit(false);
+    c1.close();
+    assertTrue(c1.isClosed());
+    final Connection c2 = pool.getConnection();
+    assertTrue("auto-commit should be restored", c2.getAutoCommit());
+    c2.close();
+    assertTrue(pool.getStatistics(), pool.getStatistics().contains("created=1,"));
+    pool.close();
+  }
+
+  /**
+   * Callers wait at most maxWaitMillis when the pool is exhausted.
+   */
+  public void testMaxSize() throws SQLException {
+    final ConnectionPool pool = makePool(1);
+    final Connection c1 = pool.getConnection();
+    try {
+      pool.getConnection();
+      fail("should time out");
+    } catch (SQLException e) {
+      // expected
+    }
+    c1.close();
+    pool.getConnection().close();
+    pool.close();
+  }
+
+  /**
+   * PreparedStatements are reused within a physical connection.
+   */
+  public void testStatementCache() throws SQLException {
+    final ConnectionPool pool = makePool(1);
+    for (int i = 0; i < 3; i++) {
+      final Connection conn = pool.getConnection();
+      final PreparedStatement ps = conn.prepareStatement("VALUES CAST(? AS INT)");
+      ps.setInt(1, i);
+      ps.executeQuery().close();
+      ps.close();
+      conn.close();
+    }
+    assertTrue(pool.getStatistics(), pool.getStatistics().contains("stmtCacheHits=2,"));
+    pool.close();
+  }
+
+  /**
+   * The default isolation and read-only flag (as in the reporting pool)
+   * are restored when a connection is returned.
+   */
+  public void testDefaultIsolation() throws SQLException {
+    final ConnectionPool pool = makePool(1);
+    pool.setDefaultTransactionIsolation(ConnectionPool.parseIsolation("READ_UNCOMMITTED"));
+    pool.setDefaultReadOnly(true);
+    final Connection c1 = pool.getConnection();
+    assertEquals(Connection.TRANSACTION_READ_UNCOMMITTED, c1.getTransactionIsolation());
+    assertTrue(c1.isReadOnly());
+    c1.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+    c1.close();
+    final Connection c2 = pool.getConnection();
+    assertEquals(Connection.TRANSACTION_READ_UNCOMMITTED, c2.getTransactionIsolation());
+    assertTrue(c2.isReadOnly());
+    c2.close();
+    pool.close();
+  }
+
+  /**
+   * common setup
+   */
+  public static Test suite() {
+    return new TestSuite( TestConnectionPool.class );
+  }
+
+  public static void main (String[] args) {
+    junit.textui.TestRunner.run (suite());
+  }
+}
@@ -0,0 +1,333 @@
+package org.tomokiyo.pjs.server;
+
+import org.tomokiyo.pjs.client.BookRecord;
+import org.tomokiyo.pjs.client.BookRentalHistoryRecord;
+import org.tomokiyo.pjs.client.ConcurrentUpdateException;
+import org.tomokiyo.pjs.client.PersonRecord;
+import org.tomokiyo.pjs.client.ResultPage;
+
+import java.sql.SQLException;
+import java.util.*;
+import junit.framework.*;
+
+import javax.sql.DataSource;
+import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+
+/**
+ * JUnit test routine for {@link DBLookupServiceImpl} over an in-memory database.
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public class TestDBLookupServiceImpl extends TestCase
+{
+  private DataSource ds;
+  private DBLookupServiceImpl service;
+  private int userId;
+
+  /** Creates an instance of the test */
+  public TestDBLookupServiceImpl(String name) {
+    super(name);
+  }
+
+  protected void setUp() throws Exception {
+    ds = Fixtures.newDatabase("TestDBLookupServiceImpl");
+    final SimpleJdbcTemplate jdbcTemplate = new SimpleJdbcTemplate(ds);
+    for (String id : new String[] { "A001", "A002", "A003" }) {
+      final BookRecord book = new BookRecord(id);
+      book.setTitle("本" + id);
+      DBUtil.registerNewBook(jdbcTemplate, book);
+    }
+    service = new DBLookupServiceImpl(ds);
+    RecordCache.forBooks(ds).invalidateAll();
+    RecordCache.forPersons(ds).invalidateAll();
+    final PersonRecord person = new PersonRecord(-1);
+    person.setFamilyId(-1);
+    person.setType(PersonRecord.Type.PARENTS);
+    person.setName("山田 太郎");
+    person.setKatakanaName("ヤマダ タロウ");
+    person.setRomanName("Yamada Taro");
+    userId = service.updateRecord(person).getId();
+  }
+
+  public void testRecordRentalEvents() {
+    assertTrue(service.recordRentalEvent("A1", userId));
+    // A001 is already checked out, and A002 is given twice.
+    final List<Boolean> results = service.recordRentalEvents(Arrays.asList("A001", "A002", "A003", "A2"), userId);
+    assertEquals(Arrays.asList(false, true, true, false), results);
+    assertEquals(3, service.getRentalHistoryForUsers(new int[] { userId }, true).size());
+    assertTrue(service.recordRentalEvents(new ArrayList<String>(), userId).isEmpty());
+  }
+
+  public void testRecordReturnEvents() {
+    service.recordRentalEvents(Arrays.asList("A001", "A002"), userId);
+    final List<BookRentalHistoryRecord> results = service.recordReturnEvents(Arrays.asList("A1", "A003", "A002", "A002"));
+    assertEquals(4, results.size());
+    assertEquals("A001", results.get(0).getBookID());
+    assertNull(results.get(1));  // not checked out
+    assertEquals("A002", results.get(2).getBookID());
+    assertNull(results.get(3));  // already returned
+    assertTrue(service.getRentalHistoryForUsers(new int[] { userId }, true).isEmpty());
+    assertNull(service.recordReturnEvent("A001"));
+  }
+
+  /**
+   * A book with an older loan left open can still be returned.
+   */
+  public void testReturnWithStaleLoan() {
+    final SimpleJdbcTemplate jdbcTemplate = new SimpleJdbcTemplate(ds);
+    jdbcTemplate.update("INSERT INTO CheckoutHistory (book_id, person_id, checkout_date) VALUES ('A001', ?, ?)",
+                        userId, new java.sql.Timestamp(System.currentTimeMillis() - 86400000L));
+    assertTrue(service.recordRentalEvent("A001", userId));
+    assertEquals("A001", service.recordReturnEvent("A001").getBookID());
+    assertEquals(1, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM CheckoutHistory WHERE status = 1"));
+    assertEquals(0, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM OpenLoan"));
+    assertNull(service.recordReturnEvent("A001"));
+  }
+
+  /**
+   * OpenLoan has exactly the unreturned books, and can be rebuilt from the history.
+   */
+  public void testOpenLoans() {
+    final SimpleJdbcTemplate jdbcTemplate = new SimpleJdbcTemplate(ds);
+    service.recordRentalEvents(Arrays.asList("A001", "A002", "A003"), userId);
+    service.recordReturnEvent("A002");
+    final String sql = "SELECT COUNT(*) FROM OpenLoan INNER JOIN CheckoutHistory ON history_id = CheckoutHistory.id WHERE status = 1";
+    assertEquals(2, jdbcTemplate.queryForInt(sql));
+    assertEquals(2, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM OpenLoan"));
+    final List<BookRentalHistoryRecord> out =
+      service.getRentalHistoryForBooks(new HashSet<String>(Arrays.asList("A001", "A002")), true);
+    assertEquals(1, out.size());
+    assertEquals("A001", out.get(0).getBookID());
+    assertEquals(2, OpenLoans.rebuild(jdbcTemplate));
+    assertEquals(2, jdbcTemplate.queryForInt(sql));
+    // A001 checked out again without a return: the older loan is closed by the rebuild.
+    jdbcTemplate.update("INSERT INTO CheckoutHistory (book_id, person_id, checkout_date) VALUES ('A001', ?, ?)",
+                        userId, new java.sql.Timestamp(System.currentTimeMillis() + 60000L));
+    assertEquals(2, OpenLoans.rebuild(jdbcTemplate));
+    assertEquals(2, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM CheckoutHistory WHERE status = 1"));
+    assertEquals(1, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM CheckoutHistory WHERE book_id = 'A001' AND status = 0"
+                                             + " AND returned_date > checkout_date"));
+    try {
+      service.recordRentalEvent("Z999", userId);  // not registered
+      fail();
+    } catch (org.springframework.dao.DataIntegrityViolationException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Stations checking out and returning the same book at the same time.
+   */
+  public void testConcurrentCirculation() throws Exception {
+    final int numThreads = 8;
+    final java.util.concurrent.atomic.AtomicInteger numCheckedOut = new java.util.concurrent.atomic.AtomicInteger();
+    final java.util.concurrent.atomic.AtomicInteger numReturned = new java.util.concurrent.atomic.AtomicInteger();
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    final java.util.concurrent.CountDownLatch start = new java.util.concurrent.CountDownLatch(1);
+    final Thread[] threads = new Thread[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      threads[i] = new Thread() {
+          public void run() {
+            try {
+              start.await();
+              for (int j = 0; j < 20; j++) {
+                if (service.recordRentalEvent("A001", userId))
+                  numCheckedOut.incrementAndGet();
+                if (service.recordReturnEvent("A001") != null)
+                  numReturned.incrementAndGet();
+              }
+            } catch (Throwable t) {
+              errors.add(t);
+            }
+          }
+        };
+      threads[i].start();
+    }
+    start.countDown();
+    for (Thread t : threads)
+      t.join();
+    assertEquals(Collections.<Throwable>emptyList(), errors);
+    assertEquals(numCheckedOut.get(), numReturned.get());
+    final SimpleJdbcTemplate jdbcTemplate = new SimpleJdbcTemplate(ds);
+    assertEquals(numCheckedOut.get(), jdbcTemplate.queryForInt("SELECT COUNT(*) FROM CheckoutHistory WHERE book_id = 'A001'"));
+    assertEquals(0, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM OpenLoan"));
+  }
+
+  public void testFindUsersByFamilyId() {
+    final int familyId = service.lookupUserByID(userId).getFamilyId();
+    final int[] familyIds = new int[300];  // more than one IN list
+    for (int i = 0; i < familyIds.length; i++)
+      familyIds[i] = familyId + 150 - i;
+    final List<PersonRecord> result = service.findUsersByFamilyId(familyIds);
+    assertEquals(1, result.size());
+    assertEquals(userId, result.get(0).getId());
+    service.recordRentalEvents(Arrays.asList("A001", "A002"), userId);
+    assertEquals(2, service.getRentalHistoryForUsers(new int[] { userId, userId }, true).size());
+    assertEquals(1, service.getRentalHistoryForBooks(new HashSet<String>(Arrays.asList("A002", "A003")), false).size());
+  }
+
+  /**
+   * An edit based on a stale version is rejected.
+   */
+  public void testConcurrentUpdate() throws Exception {
+    final PersonRecord a = service.lookupUserByID(userId);
+    final PersonRecord b = service.lookupUserByID(userId);
+    a.setRomanName("Yamada Taro A");
+    assertEquals(a.getVersion() + 1, service.updateRecord(a).getVersion());
+    b.setRomanName("Yamada Taro B");
+    try {
+      service.updateRecord(b);
+      fail();
+    } catch (ConcurrentUpdateException e) {
+      // expected
+    }
+    assertEquals("Yamada Taro A", service.lookupUserByID(userId).getRomanName());
+
+    final BookRecord book1 = service.lookupBookByID("A001");
+    final BookRecord book2 = service.lookupBookByID("A001");
+    book1.setTitle("新しい題名");
+    assertTrue(service.updateRecord(book1));
+    book2.setPublisher("出版社");
+    try {
+      service.updateRecord(book2);
+      fail();
+    } catch (ConcurrentUpdateException e) {
+      // expected
+    }
+    book1.setPublisher("出版社");
+    assertTrue(service.updateRecord(book1));  // the version was incremented
+    assertEquals(2, service.lookupBookByID("A001").getVersion());
+    assertEquals(1, service.searchBooks("新しい題名", 0, 0).size());
+  }
+
+  /**
+   * A book with a legacy (non 13-digit) ISBN can be edited as long as the
+   * ISBN is kept, and discarding a book returns it.
+   */
+  public void testLegacyISBN() throws Exception {
+    new SimpleJdbcTemplate(ds).update("UPDATE Book SET isbn = '4834000826' WHERE id = 'A001'");
+    RecordCache.forBooks(ds).invalidateAll();
+    final BookRecord book = service.lookupBookByID("A001");
+    book.setTitle("古い絵本");
+    assertTrue(service.updateRecord(book));
+    assertEquals("4834000826", service.lookupBookByID("A001").getISBN());
+    assertEquals(1, service.searchBooks("古い絵本", 0, 0).size());
+    book.setISBN("4834000827");
+    try {
+      service.updateRecord(book);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    book.setISBN("9784834000825");
+    assertTrue(service.updateRecord(book));
+
+    assertTrue(service.recordRentalEvent("A001", userId));
+    book.setDiscardDate(new Date());
+    assertTrue(service.updateRecord(book));
+    assertTrue(service.getRentalHistoryForUsers(new int[] { userId }, true).isEmpty());
+  }
+
+  public void testKeysetPagination() {
+    final SimpleJdbcTemplate jdbcTemplate = new SimpleJdbcTemplate(ds);
+    for (String id : new String[] { "B001", "A010-02", "A010-01", "A004", "A010" }) {
+      final BookRecord book = new BookRecord(id);
+      book.setTitle("本" + id);
+      DBUtil.registerNewBook(jdbcTemplate, book);
+    }
+    final List<String> expected = new ArrayList<String>();
+    for (BookRecord book : service.searchBooks("本", 0, 0))
+      expected.add(book.getId());
+    assertEquals(Arrays.asList("A001", "A002", "A003", "A004", "A010", "A010-01", "A010-02", "B001"), expected);
+    final List<String> actual = new ArrayList<String>();
+    String token = null;
+    int numPages = 0;
+    do {
+      final ResultPage<BookRecord> page = service.searchBooksAfter("本", token, 3);
+      for (BookRecord book : page.getRecords())
+        actual.add(book.getId());
+      token = page.getContinuationToken();
+      numPages++;
+    } while (token != null);
+    assertEquals(expected, actual);
+    assertEquals(3, numPages);
+
+    // 貸出中のリスト
+    service.recordRentalEvents(expected, userId);
+    for (BookRentalHistoryRecord.Constraints c : new BookRentalHistoryRecord.Constraints[] {
+        BookRentalHistoryRecord.Constraints.EVERYTHING, BookRentalHistoryRecord.Constraints.ONLY_TODAY }) {
+      final Set<String> loans = new HashSet<String>();
+      token = null;
+      do {
+        final ResultPage<BookRentalHistoryRecord> page = service.getUnreturnedBookInfoAfter(c, token, 3);
+        assertTrue(page.getRecords().size() <= 3);
+        for (BookRentalHistoryRecord r : page.getRecords())
+          assertTrue("duplicated " + r.getBookID(), loans.add(r.getBookID()));
+        token = page.getContinuationToken();
+      } while (token != null);
+      assertEquals(new HashSet<String>(expected), loans);
+    }
+  }
+
+  /**
+   * The page size must be positive.
+   */
+  public void testInvalidPageSize() {
+    for (int max : new int[] { 0, -1 }) {
+      try {
+        service.searchBooksAfter("本", null, max);
+        fail();
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+      try {
+        service.getUnreturnedBookInfoAfter(BookRentalHistoryRecord.Constraints.EVERYTHING, null, max);
+        fail();
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+
+  /**
+   * The due date is stored at checkout, and the constraints select by
+   * the checkout date or the due date.
+   */
+  public void testOverdue() {
+    final SimpleJdbcTemplate jdbcTemplate = new SimpleJdbcTemplate(ds);
+    service.recordRentalEvents(Arrays.asList("A001", "A002", "A003"), userId);
+    final Date due = service.getUnreturnedBookInfo(BookRentalHistoryRecord.Constraints.EVERYTHING, 0, 0).get(0).getDueDate();
+    assertEquals(LoanPolicy.getDefault().getDueDate(PersonRecord.Type.PARENTS, new Date()), due);
+
+    // A001: 5週間前に貸出、A002: 2週間前に貸出 (期限切れ)、A003: 本日
+    final Date now = new Date();
+    jdbcTemplate.update("UPDATE CheckoutHistory SET checkout_date = ?, due_date = ? WHERE book_id = 'A001'",
+                        new java.sql.Timestamp(DateUtil.nDaysAgo(now, 35).getTime()), DateUtil.nDaysAgo(now, 21));
+    jdbcTemplate.update("UPDATE CheckoutHistory SET checkout_date = ?, due_date = ? WHERE book_id = 'A002'",
+                        new java.sql.Timestamp(DateUtil.nDaysAgo(now, 14).getTime()), DateUtil.nDaysAgo(now, 1));
+    assertEquals(Arrays.asList("A001"), unreturned(BookRentalHistoryRecord.Constraints.FIVE_WEEKS_AGO));
+    assertEquals(Arrays.asList("A001"), unreturned(BookRentalHistoryRecord.Constraints.THREE_WEEKS_AGO));
+    assertEquals(Arrays.asList("A001", "A002"), unreturned(BookRentalHistoryRecord.Constraints.TWO_WEEKS_AGO));
+    assertEquals(Arrays.asList("A001", "A002"), unreturned(BookRentalHistoryRecord.Constraints.OVERDUE));
+    assertEquals(Arrays.asList("A001", "A002"), unreturned(BookRentalHistoryRecord.Constraints.EXCEPT_TODAY));
+    assertEquals(Arrays.asList("A003"), unreturned(BookRentalHistoryRecord.Constraints.ONLY_TODAY));
+  }
+
+  private List<String> unreturned(BookRentalHistoryRecord.Constraints c) {
+    final List<String> ids = new ArrayList<String>();
+    for (BookRentalHistoryRecord r : service.getUnreturnedBookInfo(c, 0, 0))
+      ids.add(r.getBookID().trim());
+    return ids;
+  }
+
+  /**
+   * common setup
+   */
+  public static Test suite() {
+    return new TestSuite( TestDBLookupServiceImpl.class );
+  }
+
+  public static void main (String[] args) {
+    junit.textui.TestRunner.run (suite());
+  }
+}
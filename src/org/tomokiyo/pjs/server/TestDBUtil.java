@@ -1,8 +1,12 @@
 package org.tomokiyo.pjs.server;
 
+import java.sql.SQLException;
 import java.util.*;
 import junit.framework.*;
 
+import javax.sql.DataSource;
+import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+
 /**
  * JUnit test routine for {@link DBUtil}.
  *
@@ -15,6 +19,16 @@ public class TestDBUtil extends TestCase
     super(name);
   }
 
+  /**
+   * test the values stored in Book.category and Book.sortkey.
+   */
+  public void testSortKey() {
+    assertEquals("A", DBUtil.getCategory("A028-27"));
+    assertEquals(28027, DBUtil.getSortKey("A028-27"));
+    assertEquals(28000, DBUtil.getSortKey("A028"));
+    assertTrue(DBUtil.getSortKey("A009-10") < DBUtil.getSortKey("A010-01"));
+  }
+
   /**
    * test BookPhraseQueryParser.
    */
@@ -44,6 +58,47 @@ public class TestDBUtil extends TestCase
     }
   }
 
+  /**
+   * test the in-memory database populated by Fixtures.
+   */
+  public void testFixtures() throws SQLException {
+    final DataSource ds = Fixtures.newDatabase("TestDBUtil", 30, 100, 10);
+    final SimpleJdbcTemplate jdbcTemplate = new SimpleJdbcTemplate(ds);
+    assertEquals(30, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM Family"));
+    assertEquals(60, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM Person"));
+    assertEquals(100, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM Book"));
+    assertEquals(20, DBUtil.getLastIdFor(jdbcTemplate, "E"));
+    assertEquals(10, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM CheckoutHistory WHERE status = 1"));
+    assertEquals("A021", BookIdAllocator.forDataSource(ds).allocateId("A"));
+
+    // Recreated empty.
+    assertEquals(0, new SimpleJdbcTemplate(Fixtures.newDatabase("TestDBUtil")).queryForInt("SELECT COUNT(*) FROM Book"));
+  }
+
+  public void testStorageBackend() {
+    final String saved = System.getProperty("pjs.db.backend");
+    try {
+      System.setProperty("pjs.db.backend", "memory");
+      assertTrue(StorageBackend.fromSystemProperties().isTransient());
+      System.setProperty("pjs.db.backend", "derby");
+      assertFalse(StorageBackend.fromSystemProperties().isTransient());
+      System.setProperty("pjs.db.backend", "jdbc:h2:mem:test;MODE=Derby");
+      assertTrue(StorageBackend.fromSystemProperties().isTransient());
+      System.setProperty("pjs.db.backend", "oracle");
+      try {
+        StorageBackend.fromSystemProperties();
+        fail();
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    } finally {
+      if (saved == null)
+        System.clearProperty("pjs.db.backend");
+      else
+        System.setProperty("pjs.db.backend", saved);
+    }
+  }
+
   /**
    * common setup
    */
@@ -0,0 +1,80 @@
+package org.tomokiyo.pjs.server;
+
+import org.tomokiyo.pjs.client.PersonRecord;
+
+import java.sql.SQLException;
+import java.util.*;
+import junit.framework.*;
+
+import javax.sql.DataSource;
+import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+
+/**
+ * JUnit test routine for {@link GradePromotion}.
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public class TestGradePromotion extends TestCase
+{
+  private DataSource ds;
+  private SimpleJdbcTemplate jdbcTemplate;
+
+  /** Creates an instance of the test */
+  public TestGradePromotion(String name) {
+    super(name);
+  }
+
+  protected void setUp() throws SQLException {
+    ds = Fixtures.newDatabase("TestGradePromotion");
+    jdbcTemplate = new SimpleJdbcTemplate(ds);
+    final int familyId = DBUtil.createFamilyRecord(jdbcTemplate.getJdbcOperations(), "山田");
+    for (PersonRecord.Type type : new PersonRecord.Type[] {
+        PersonRecord.Type.PRE_L, PersonRecord.Type.ELEM6, PersonRecord.Type.ELEM6,
+        PersonRecord.Type.HIGH3, PersonRecord.Type.PARENTS }) {
+      jdbcTemplate.update("INSERT INTO Person (family_id, type, name, katakana, romaji) VALUES (?,?,?,?,?)",
+                          familyId, type.getDisplayName(), "山田", "ヤマダ", "Yamada");
+    }
+  }
+
+  private int count(PersonRecord.Type type) {
+    return jdbcTemplate.queryForInt("SELECT COUNT(*) FROM Person WHERE deletion_date IS NULL AND type = ?", type.getDisplayName());
+  }
+
+  public void testPromote() {
+    final GradePromotion promotion = new GradePromotion(ds);
+    final Map<PersonRecord.Type,Integer> dryRun = promotion.countByGrade();
+    assertEquals(2, (int) dryRun.get(PersonRecord.Type.ELEM6));
+    assertEquals(0, (int) dryRun.get(PersonRecord.Type.MID1));
+    assertFalse(dryRun.containsKey(PersonRecord.Type.PARENTS));
+    assertEquals(2, count(PersonRecord.Type.ELEM6));  // nothing changed
+
+    assertEquals(dryRun, promotion.promote(2010));
+    assertEquals(1, count(PersonRecord.Type.PRE_M));
+    assertEquals(2, count(PersonRecord.Type.MID1));
+    assertEquals(0, count(PersonRecord.Type.ELEM6));
+    assertEquals(0, count(PersonRecord.Type.HIGH3));  // graduated
+    assertEquals(1, count(PersonRecord.Type.PARENTS));
+    assertTrue(promotion.isDone(2010));
+
+    // 同じ年度は二度実行できない。
+    try {
+      promotion.promote(2010);
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    assertEquals(2, count(PersonRecord.Type.MID1));
+    assertTrue(GradePromotion.format(dryRun).contains("小6 -> 中1: 2"));
+  }
+
+  /**
+   * common setup
+   */
+  public static Test suite() {
+    return new TestSuite( TestGradePromotion.class );
+  }
+
+  public static void main (String[] args) {
+    junit.textui.TestRunner.run (suite());
+  }
+}
@@ -0,0 +1,59 @@
+package org.tomokiyo.pjs.server;
+
+import java.util.*;
+import junit.framework.*;
+
+/**
+ * JUnit test routine for {@link InList}.
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public class TestInList extends TestCase
+{
+  /** Creates an instance of the test */
+  public TestInList(String name) {
+    super(name);
+  }
+
+  public void testBucketSize() {
+    assertEquals(1, InList.bucketSize(1));
+    assertEquals(4, InList.bucketSize(2));
+    assertEquals(16, InList.bucketSize(5));
+    assertEquals(256, InList.bucketSize(256));
+    try {
+      InList.bucketSize(257);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testSQLAndArguments() {
+    assertEquals("id IN (?)", InList.sql("id", 1));
+    assertEquals("id IN (?,?,?,?)", InList.sql("id", 3));
+    assertEquals(Arrays.asList((Object) "a", "b", "c", "c"),
+                 Arrays.asList(InList.arguments(Arrays.asList("a", "b", "c"))));
+  }
+
+  public void testPartition() {
+    final List<Integer> values = new ArrayList<Integer>();
+    for (int i = 0; i < 600; i++)
+      values.add(i);
+    final List<List<Integer>> chunks = InList.partition(values);
+    assertEquals(3, chunks.size());
+    assertEquals(256, chunks.get(0).size());
+    assertEquals(88, chunks.get(2).size());
+    assertEquals(256, (int) chunks.get(1).get(0));
+  }
+
+  /**
+   * common setup
+   */
+  public static Test suite() {
+    return new TestSuite( TestInList.class );
+  }
+
+  public static void main (String[] args) {
+    junit.textui.TestRunner.run (suite());
+  }
+}
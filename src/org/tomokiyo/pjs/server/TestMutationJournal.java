@@ -0,0 +1,154 @@
+package org.tomokiyo.pjs.server;
+
+import java.io.File;
+import java.util.*;
+import junit.framework.*;
+
+import javax.sql.DataSource;
+
+/**
+ * JUnit test routine for {@link MutationJournal}.
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public class TestMutationJournal extends TestCase
+{
+  private File dir;
+
+  /** Creates an instance of the test */
+  public TestMutationJournal(String name) {
+    super(name);
+  }
+
+  protected void setUp() throws Exception {
+    dir = File.createTempFile("TestMutationJournal", "");
+    dir.delete();
+  }
+
+  protected void tearDown() {
+    final File[] files = dir.listFiles();
+    if (files != null)
+      for (File f : files)
+        f.delete();
+    dir.delete();
+  }
+
+  static private final List<MutationJournal.Event> replay(File dir, long fromSeq) throws java.io.IOException {
+    final List<MutationJournal.Event> events = new ArrayList<MutationJournal.Event>();
+    MutationJournal.replay(dir, fromSeq, new MutationJournal.Listener() {
+        public void event(MutationJournal.Event e) {
+          events.add(e);
+        }
+      });
+    return events;
+  }
+
+  /**
+   * Events from several threads are all recorded in sequence across
+   * the segments, and a reopened journal continues the sequence.
+   */
+  public void testAppendAndReplay() throws Exception {
+    final MutationJournal journal = new MutationJournal(dir, 4096);
+    final Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      final int person = i;
+      threads[i] = new Thread() {
+          public void run() {
+            for (int j = 0; j < 100; j++)
+              journal.append("checkout", "book", "A" + j, "person", person);
+          }
+        };
+      threads[i].start();
+    }
+    for (Thread t : threads)
+      t.join();
+    journal.flush();
+    journal.close();
+    assertTrue(dir.list().length > 1);  // rolled over
+
+    List<MutationJournal.Event> events = replay(dir, 0);
+    assertEquals(400, events.size());
+    for (int i = 0; i < events.size(); i++)
+      assertEquals(i + 1, events.get(i).getSeq());
+    assertEquals("checkout", events.get(0).getType());
+    assertEquals(300, replay(dir, 101).size());
+
+    final MutationJournal reopened = new MutationJournal(dir, 4096);
+    reopened.append("person.delete", "person", 1, "deletion_date", new Date());
+    reopened.close();
+    events = replay(dir, 401);
+    assertEquals(1, events.size());
+    assertEquals("person.delete", events.get(0).getType());
+    assertEquals(1.0, events.get(0).getData().get("person"));
+  }
+
+  /**
+   * Only one journal at a time can write to a directory.
+   */
+  public void testLock() throws Exception {
+    final MutationJournal journal = new MutationJournal(dir, 4096);
+    try {
+      new MutationJournal(dir, 4096);
+      fail();
+    } catch (java.io.IOException e) {
+      // expected
+    }
+    journal.append("checkout", "book", "A001", "person", 1);
+    journal.close();
+    final MutationJournal reopened = new MutationJournal(dir, 4096);
+    reopened.close();
+    assertEquals(1, replay(dir, 0).size());
+  }
+
+  /**
+   * An event larger than a segment is rejected alone.
+   */
+  public void testTooLargeEvent() throws Exception {
+    final MutationJournal journal = new MutationJournal(dir, 4096);
+    final StringBuilder title = new StringBuilder();
+    for (int i = 0; i < 5000; i++)
+      title.append('x');
+    journal.append("book.update", "book", "A001", "title", title.toString());
+    journal.append("checkout", "book", "A001", "person", 1);
+    journal.flush();
+    journal.close();
+    final List<MutationJournal.Event> events = replay(dir, 0);
+    assertEquals(1, events.size());
+    assertEquals("checkout", events.get(0).getType());
+    assertEquals(1, events.get(0).getSeq());
+    assertTrue(journal.getStatistics(), journal.getStatistics().contains("written=1, rejected=1, dropped=0"));
+  }
+
+  /**
+   * The circulation desk operations are recorded.
+   */
+  public void testServiceWrites() throws Exception {
+    final DataSource ds = Fixtures.newDatabase("TestMutationJournal", 3, 10, 0);
+    final MutationJournal journal = new MutationJournal(dir, 1 << 16);
+    final DBLookupServiceImpl service = new DBLookupServiceImpl(ds, journal);
+    final int userId = service.findUsersByFamilyId(new int[] { 1 }).get(0).getId();
+    service.recordRentalEvents(Arrays.asList("A001", "A001", "B001"), userId);
+    service.recordReturnEvent("A001");
+    service.deleteUser(userId);
+    journal.close();
+    final List<MutationJournal.Event> events = replay(dir, 0);
+    assertEquals(4, events.size());
+    assertEquals("checkout", events.get(0).getType());
+    assertEquals("A001", events.get(0).getData().get("book"));
+    assertEquals("B001", events.get(1).getData().get("book"));
+    assertEquals("return", events.get(2).getType());
+    assertEquals((double) userId, events.get(2).getData().get("person"));
+    assertEquals("person.delete", events.get(3).getType());
+  }
+
+  /**
+   * common setup
+   */
+  public static Test suite() {
+    return new TestSuite( TestMutationJournal.class );
+  }
+
+  public static void main (String[] args) {
+    junit.textui.TestRunner.run (suite());
+  }
+}
@@ -15,10 +15,24 @@ public class TestPackage extends TestCase {
   public static Test suite() {
     TestSuite suite = new TestSuite();
     suite.addTest( TestAmazonLookupServiceImpl.suite() );
+    suite.addTest( TestBackupManager.suite() );
+    suite.addTest( TestBookIdAllocator.suite() );
+    suite.addTest( TestBookSearchIndex.suite() );
+    suite.addTest( TestBulkImporter.suite() );
+    suite.addTest( TestCacheInvalidation.suite() );
+    suite.addTest( TestConnectionPool.suite() );
+    suite.addTest( TestDBLookupServiceImpl.suite() );
     suite.addTest( TestDBUtil.suite() );
     suite.addTest( TestDateUtil.suite() );
+    suite.addTest( TestGradePromotion.suite() );
+    suite.addTest( TestInList.suite() );
     suite.addTest( TestJapaneseUtil.suite() );
+    suite.addTest( TestMutationJournal.suite() );
+    suite.addTest( TestRecordCache.suite() );
+    suite.addTest( TestReplicationManager.suite() );
+    suite.addTest( TestSchemaMigrator.suite() );
     suite.addTest( TestStringUtil.suite() );
+    suite.addTest( TestStripedLock.suite() );
     suite.addTest( TestYahooFuriganaService.suite() );
     return suite;
   }
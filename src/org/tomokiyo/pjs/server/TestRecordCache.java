@@ -0,0 +1,83 @@
+package org.tomokiyo.pjs.server;
+
+import java.util.*;
+import junit.framework.*;
+
+/**
+ * JUnit test routine for {@link RecordCache}.
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public class TestRecordCache extends TestCase
+{
+  /** Creates an instance of the test */
+  public TestRecordCache(String name) {
+    super(name);
+  }
+
+  // "DB" with keys 0..99 which counts the number of loads.
+  static private final class CountingLoader implements RecordCache.Loader<Integer,StringBuilder> {
+    int loads = 0;
+    int numKeys = 100;
+    public StringBuilder load(Integer key) {
+      loads++;
+      return (key < numKeys) ? new StringBuilder("v" + key) : null;
+    }
+    public Collection<Integer> loadAllKeys() {
+      final List<Integer> keys = new ArrayList<Integer>();
+      for (int i = 0; i < numKeys; i++) keys.add(i);
+      return keys;
+    }
+    public StringBuilder copy(StringBuilder value) {
+      return new StringBuilder(value);
+    }
+  }
+
+  public void testReadThrough() {
+    final CountingLoader loader = new CountingLoader();
+    final RecordCache<Integer,StringBuilder> cache = new RecordCache<Integer,StringBuilder>("test", 10, loader);
+    assertEquals("v1", cache.get(1).toString());
+    cache.get(1).append("modified by the caller");
+    assertEquals("v1", cache.get(1).toString());
+    assertEquals(1, loader.loads);
+    cache.invalidate(1);
+    assertEquals("v1", cache.get(1).toString());
+    assertEquals(2, loader.loads);
+  }
+
+  public void testEviction() {
+    final CountingLoader loader = new CountingLoader();
+    final RecordCache<Integer,StringBuilder> cache = new RecordCache<Integer,StringBuilder>("test", 10, loader);
+    for (int i = 0; i < 20; i++)
+      cache.get(i);
+    assertEquals(20, loader.loads);
+    cache.get(19);  // still there
+    assertEquals(20, loader.loads);
+    cache.get(0);  // evicted
+    assertEquals(21, loader.loads);
+    assertTrue(cache.getStatistics(), cache.getStatistics().contains("evictions=11"));
+  }
+
+  public void testNegativeFilter() {
+    final CountingLoader loader = new CountingLoader();
+    final RecordCache<Integer,StringBuilder> cache = new RecordCache<Integer,StringBuilder>("test", 10, loader);
+    for (int i = 1000; i < 1100; i++)
+      assertNull(cache.get(i));
+    assertTrue("most unknown keys should not be loaded: " + loader.loads, loader.loads < 10);
+    // New key becomes visible once added.
+    loader.numKeys = 2000;
+    cache.added(1500);
+    assertEquals("v1500", cache.get(1500).toString());
+  }
+
+  /**
+   * common setup
+   */
+  public static Test suite() {
+    return new TestSuite( TestRecordCache.class );
+  }
+
+  public static void main (String[] args) {
+    junit.textui.TestRunner.run (suite());
+  }
+}
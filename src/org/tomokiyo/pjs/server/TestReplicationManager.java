@@ -0,0 +1,194 @@
+package org.tomokiyo.pjs.server;
+
+import junit.framework.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.sql.DataSource;
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+
+/**
+ * JUnit test routine for {@link ReplicationManager}.
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public class TestReplicationManager extends TestCase
+{
+  /** Creates an instance of the test */
+  public TestReplicationManager(String name) {
+    super(name);
+  }
+
+  public void testLag() throws Exception {
+    final File dbDir = new File(System.getProperty("java.io.tmpdir"), "TestReplicationManager" + System.nanoTime());
+    try {
+      assertEquals(-1, ReplicationManager.getLagMillis(dbDir));  // no log
+      final File log = new File(dbDir, "log");
+      assertTrue(log.mkdirs());
+      final File dat = new File(log, "log1.dat");
+      assertTrue(dat.createNewFile());
+      assertTrue(dat.setLastModified(System.currentTimeMillis() - 60 * 1000L));
+      final long lag = ReplicationManager.getLagMillis(dbDir);
+      assertTrue("lag=" + lag, 59 * 1000L <= lag && lag < 120 * 1000L);
+    } finally {
+      BackupManager.deleteRecursively(dbDir);
+    }
+  }
+
+  public void testHeartbeat() throws Exception {
+    final DataSource ds = Fixtures.newDatabase("TestReplicationManager", 0, 0, 0);
+    final SimpleJdbcTemplate jdbcTemplate = new SimpleJdbcTemplate(ds);
+    ReplicationManager.beat(ds, "node1");
+    ReplicationManager.beat(ds, "node1");
+    assertEquals(1, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM ReplicationHeartbeat WHERE node = 'node1'"));
+  }
+
+  /**
+   * The master copies the database only to a standby waiting for it, and
+   * never over a database which has failed over.
+   */
+  public void testCopyRefused() throws Exception {
+    final File standbyHome = new File(System.getProperty("java.io.tmpdir"), "TestReplicationManager" + System.nanoTime());
+    final File db = new File(new File(standbyHome, "TestReplicationManager"), "seg0");
+    assertTrue(db.mkdirs());
+    try {
+      final DataSource ds = Fixtures.newDatabase("TestReplicationManager", 0, 0, 0);
+      final ReplicationManager manager = new ReplicationManager("TestReplicationManager", "localhost", 4851);
+      try {
+        manager.startMaster(ds, standbyHome, 0);  // no standby
+        fail();
+      } catch (IOException e) {
+        // expected
+      }
+      assertTrue(new File(standbyHome, "TestReplicationManager.waiting").createNewFile());
+      assertTrue(new File(standbyHome, "TestReplicationManager.failedover").createNewFile());
+      try {
+        manager.startMaster(ds, standbyHome, 0);
+        fail();
+      } catch (IOException e) {
+        // expected
+      }
+      assertTrue(db.exists());
+      assertTrue(manager.getStatistics().startsWith("failed"));
+      new SimpleJdbcTemplate(ds).update("DELETE FROM ReplicationHeartbeat");  // not frozen
+    } finally {
+      BackupManager.deleteRecursively(standbyHome);
+    }
+  }
+
+  /**
+   * Smoke test with two JVMs: "DBUtil replication-master" replicates to
+   * "DBUtil replication-standby" and is killed, and the standby fails
+   * over with the heartbeats the master wrote after the copy.
+   */
+  public void testFailover() throws Exception {
+    final File root = new File(System.getProperty("java.io.tmpdir"), "TestReplicationManager" + System.nanoTime());
+    final File masterHome = new File(root, "master");
+    final File standbyHome = new File(root, "standby");
+    assertTrue(masterHome.mkdirs() && standbyHome.mkdirs());
+    final java.net.ServerSocket socket = new java.net.ServerSocket(0);
+    final int port = socket.getLocalPort();
+    socket.close();
+    final DataSource ds = makeDataSource(new File(masterHome, DBUtil.DB_NAME), true);
+    DBUtil.createTables(ds);
+    shutdown(new File(masterHome, DBUtil.DB_NAME));
+    final StringBuffer standbyLog = new StringBuffer();
+    final StringBuffer masterLog = new StringBuffer();
+    final Process standby = startDBUtil(standbyHome, port, standbyLog, "replication-standby");
+    Process master = null;
+    try {
+      master = startDBUtil(masterHome, port, masterLog, "replication-master", standbyHome.getPath());
+      waitFor(masterLog, "master since", 120);
+      Thread.sleep(3000);  // heartbeats
+      master.destroy();
+      master.waitFor();
+      new ReplicationManager(DBUtil.DB_NAME, "localhost", port).requestFailover(standbyHome);
+      waitFor(standbyLog, "Failover completed", 120);
+      standby.waitFor();
+      assertTrue(new File(standbyHome, DBUtil.DB_NAME + ".failedover").exists());
+      final File copy = new File(standbyHome, DBUtil.DB_NAME);
+      assertTrue(new SimpleJdbcTemplate(makeDataSource(copy, false))
+                 .queryForInt("SELECT COUNT(*) FROM ReplicationHeartbeat") > 0);
+      shutdown(copy);
+    } finally {
+      if (master != null)
+        master.destroy();
+      standby.destroy();
+      BackupManager.deleteRecursively(root);
+    }
+  }
+
+  static private DataSource makeDataSource(File dbDir, boolean create) {
+    final EmbeddedDataSource ds = new EmbeddedDataSource();
+    ds.setDatabaseName(dbDir.getPath());
+    if (create)
+      ds.setCreateDatabase("create");
+    return ds;
+  }
+
+  static private void shutdown(File dbDir) {
+    final EmbeddedDataSource ds = new EmbeddedDataSource();
+    ds.setDatabaseName(dbDir.getPath());
+    ds.setShutdownDatabase("shutdown");
+    try {
+      ds.getConnection();
+    } catch (SQLException e) {
+      // 08006: shut down
+    }
+  }
+
+  /**
+   * Runs a DBUtil command in another JVM, copying its output to log.
+   */
+  static private Process startDBUtil(File home, int port, final StringBuffer log, String... args) throws IOException {
+    final List<String> command = new ArrayList<String>();
+    command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add("-Dderby.system.home=" + home.getPath());
+    command.add("-Dpjs.db.backend=derby");
+    command.add("-Dpjs.journal.enabled=false");
+    command.add("-Dpjs.replication.host=localhost");
+    command.add("-Dpjs.replication.port=" + port);
+    command.add("-Dpjs.replication.heartbeatMillis=500");
+    command.add("-Dpjs.replication.timeoutSeconds=120");
+    command.add(DBUtil.class.getName());
+    for (String arg : args)
+      command.add(arg);
+    final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+    final Thread reader = new Thread() {
+        public void run() {
+          try {
+            final BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            for (String line = in.readLine(); line != null; line = in.readLine())
+              log.append(line).append('\n');
+          } catch (IOException e) {
+            // the process is gone
+          }
+        }
+      };
+    reader.setDaemon(true);
+    reader.start();
+    return process;
+  }
+
+  static private void waitFor(StringBuffer log, String text, int timeoutSeconds) throws InterruptedException {
+    for (int i = 0; i < timeoutSeconds * 10 && log.indexOf(text) < 0; i++)
+      Thread.sleep(100);
+    assertTrue(log.toString(), log.indexOf(text) >= 0);
+  }
+
+  public static Test suite() {
+    return new TestSuite(TestReplicationManager.class);
+  }
+
+  public static void main (String[] args) {
+    junit.textui.TestRunner.run (suite());
+  }
+} // TestReplicationManager
@@ -0,0 +1,101 @@
+package org.tomokiyo.pjs.server;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import junit.framework.*;
+
+import javax.sql.DataSource;
+import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+
+/**
+ * JUnit test routine for {@link SchemaMigrator}.
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public class TestSchemaMigrator extends TestCase
+{
+  private DataSource ds;
+  private SimpleJdbcTemplate jdbcTemplate;
+  private SchemaMigrator migrator;
+
+  /** Creates an instance of the test */
+  public TestSchemaMigrator(String name) {
+    super(name);
+  }
+
+  protected void setUp() throws SQLException {
+    ds = Fixtures.newDatabase("TestSchemaMigrator", 3, 10, 2);
+    jdbcTemplate = new SimpleJdbcTemplate(ds);
+    migrator = new SchemaMigrator(ds);
+  }
+
+  private boolean indexExists(String table, String index) throws SQLException {
+    final Connection conn = ds.getConnection();
+    try {
+      return SchemaMigrator.indexExists(conn, table, index);
+    } finally {
+      conn.close();
+    }
+  }
+
+  public void testNewDatabase() throws SQLException {
+    assertEquals(SchemaMigrator.getLatestVersion(), migrator.getCurrentVersion());
+    assertEquals(SchemaMigrator.getLatestVersion(), jdbcTemplate.queryForInt("SELECT COUNT(*) FROM SchemaVersion"));
+    assertTrue(indexExists("CheckoutHistory", "history_book_idx"));
+    assertTrue(indexExists("Person", "person_family_idx"));
+    assertEquals(0, migrator.migrate());
+  }
+
+  public void testUpgrade() throws SQLException {
+    // Roll back to a DB made before due_date and SchemaVersion.
+    jdbcTemplate.update("DROP TABLE SchemaVersion");
+    jdbcTemplate.update("DROP TABLE OpenLoan");
+    jdbcTemplate.update("DROP INDEX history_due_idx");
+    jdbcTemplate.update("DROP INDEX history_checkout_idx");
+    jdbcTemplate.update("DROP INDEX history_book_idx");
+    jdbcTemplate.update("ALTER TABLE CheckoutHistory DROP COLUMN due_date");
+    jdbcTemplate.update("CREATE INDEX history_status_idx ON CheckoutHistory(status)");
+    assertEquals(0, migrator.getCurrentVersion());
+
+    assertEquals(SchemaMigrator.getLatestVersion(), migrator.migrate());
+    assertEquals(SchemaMigrator.getLatestVersion(), migrator.getCurrentVersion());
+    assertEquals(2, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM CheckoutHistory WHERE due_date IS NOT NULL"));
+    assertFalse(indexExists("CheckoutHistory", "history_status_idx"));
+    assertTrue(indexExists("CheckoutHistory", "history_due_idx"));
+    assertTrue(indexExists("CheckoutHistory", "history_book_idx"));
+    assertEquals(2, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM OpenLoan"));
+    // 二度目は何もしない
+    assertEquals(0, migrator.migrate());
+  }
+
+  public void testUpgradeSortKey() throws SQLException {
+    // Roll back to a DB made before Book.category and Book.sortkey.
+    jdbcTemplate.update("DROP TABLE SchemaVersion");
+    jdbcTemplate.update("DROP INDEX book_sort_idx");
+    jdbcTemplate.update("ALTER TABLE Book DROP COLUMN category");
+    jdbcTemplate.update("ALTER TABLE Book DROP COLUMN sortkey");
+
+    assertEquals(SchemaMigrator.getLatestVersion(), migrator.migrate());
+    assertEquals(10, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM Book WHERE category = SUBSTR(id,1,1)"));
+    // Same as a new database.
+    final Connection conn = ds.getConnection();
+    try {
+      for (String column : new String[] { "CATEGORY", "SORTKEY" }) {
+        final java.sql.ResultSet rs = conn.getMetaData().getColumns(null, null, "BOOK", column);
+        assertTrue(rs.next());
+        assertEquals(column, "NO", rs.getString("IS_NULLABLE"));
+        rs.close();
+      }
+    } finally {
+      conn.close();
+    }
+  }
+
+  public static Test suite() {
+    return new TestSuite(TestSchemaMigrator.class);
+  }
+
+  public static void main (String[] args) {
+    junit.textui.TestRunner.run (suite());
+  }
+} // TestSchemaMigrator
@@ -0,0 +1,60 @@
+package org.tomokiyo.pjs.server;
+
+import java.util.*;
+import junit.framework.*;
+
+/**
+ * JUnit test routine for {@link StripedLock}.
+ *
+ * @author Takashi Tomokiyo (tomokiyo@gmail.com)
+ */
+public class TestStripedLock extends TestCase
+{
+  /** Creates an instance of the test */
+  public TestStripedLock(String name) {
+    super(name);
+  }
+
+  public void testLock() throws Exception {
+    final StripedLock locks = new StripedLock(4);
+    final StripedLock.Held held = locks.lock(Arrays.asList("A001", "B002", "A001"));
+    // Another thread cannot take the same key until released.
+    final boolean[] acquired = new boolean[1];
+    final Thread t = new Thread() {
+        public void run() {
+          final StripedLock.Held h = locks.lock(Collections.singletonList("A001"));
+          synchronized (acquired) {
+            acquired[0] = true;
+          }
+          h.unlock();
+        }
+      };
+    t.start();
+    t.join(200);
+    synchronized (acquired) {
+      assertFalse(acquired[0]);
+    }
+    held.unlock();
+    held.unlock();  // no-op
+    t.join();
+    assertTrue(acquired[0]);
+    assertTrue(locks.getStatistics(), locks.getStatistics().contains("locked=2, contended=1"));
+  }
+
+  public void testStripe() {
+    final StripedLock locks = new StripedLock(16);
+    assertEquals(locks.getStripe("A001"), locks.getStripe("A001"));
+    for (int i = 0; i < 100; i++) {
+      final int stripe = locks.getStripe("X" + i);
+      assertTrue(0 <= stripe && stripe < 16);
+    }
+  }
+
+  public static Test suite() {
+    return new TestSuite(TestStripedLock.class);
+  }
+
+  public static void main (String[] args) {
+    junit.textui.TestRunner.run (suite());
+  }
+} // TestStripedLock